@@ -21,24 +21,49 @@
 
 package com.crust87.motionpicturegenerator;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
 import android.view.MotionEvent;
-
-import com.crust87.videotrackview.VideoTrackOverlay;
-import com.crust87.videotrackview.VideoTrackView;
-
-public class AnchorOverlay extends VideoTrackOverlay {
+import android.view.View;
+
+import com.crust87.motionpicturegenerator.mp4.SampleIndex;
+import com.crust87.motionpicturegenerator.thumbnail.ThumbnailStrip;
+import com.crust87.motionpicturegenerator.waveform.WaveformLane;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Start and end anchors of the selection over the track, with the cached thumbnails and the kept ranges.
+ * <p>
+ * Drawing allocates nothing, it runs for every frame of a drag. Touch events only move the
+ * selection, the listener hears of it and the changed part of the track is invalidated once per
+ * display frame, however many events the frame batched.
+ */
+public class AnchorOverlay extends TrackOverlay {
     private enum ACTION_TYPE {anchor, normal, idle}	// touch event action type
 
+    private static final long FRAME_INTERVAL_MS = 16;		// update interval where Choreographer is not available
+
     // Overlay Components
     private Anchor mAnchor;
     private Paint mDisablePaint;
     private Rect mDisableRect;
+    private Paint mRangePaint;
+    private ThumbnailStrip mThumbnailStrip;
+    private WaveformLane mWaveformLane;
+    private View mTrackView;				// invalidated by dirty region, may be null
+    private Handler mHandler;
+    private Object mFrameCallback;			// Choreographer.FrameCallback, created on first drag
 
     // Event Listener
     private OnUpdateAnchorListener mOnUpdateAnchorListener;
@@ -49,12 +74,22 @@ public class AnchorOverlay extends VideoTrackOverlay {
     private int mAnchorRound;
     private int mAnchorArea;
     private boolean isVideoOpen;
+    private SampleIndex mSampleIndex;		// keyframe index of current video, may be null
+    private boolean mSnapToKeyframe;
+    private int mThumbnailPerScreen;
+    private int mThumbnailIntervalMs;
+    private int mRangeMarkerHeight;
+    private int mWaveformHeight;
 
     // Working Variables
     protected int currentPosition;			// current start position
     private int currentDuration;			// current duration position
     private ACTION_TYPE actionType;			// current touche event type
     protected float pastX;					// past position x of touch event
+    private float mTrackLeft;				// x of the start of the video
+    private final ArrayList<int[]> mRanges;	// added ranges, start and duration in milliseconds
+    private final Rect mDirtyRect;			// part of the track changed since the last frame
+    private boolean isUpdatePending;
 
     // Constructors
     public AnchorOverlay(Context context) {
@@ -65,10 +100,20 @@ public class AnchorOverlay extends VideoTrackOverlay {
         mAnchorWidth = context.getResources().getDimensionPixelOffset(R.dimen.anchor_width);
         mAnchorRound = context.getResources().getDimensionPixelOffset(R.dimen.anchor_round);
         mAnchorArea = context.getResources().getDimensionPixelOffset(R.dimen.anchor_area);
+        mThumbnailPerScreen = context.getResources().getInteger(R.integer.thumbnail_per_screen);
+        mThumbnailIntervalMs = context.getResources().getInteger(R.integer.screen_duration) / mThumbnailPerScreen;
+        mRangeMarkerHeight = context.getResources().getDimensionPixelOffset(R.dimen.range_marker_height);
+        mWaveformHeight = context.getResources().getDimensionPixelOffset(R.dimen.waveform_height);
+        mRanges = new ArrayList<>();
+        mDirtyRect = new Rect();
+        mHandler = new Handler();
         isVideoOpen = false;
 
         mDisablePaint = new Paint(Color.parseColor("#000000"));
         mDisablePaint.setAlpha(128);
+
+        mRangePaint = new Paint();
+        mRangePaint.setColor(context.getResources().getColor(R.color.rangeMarker));
     }
 
     @Override
@@ -82,15 +127,24 @@ public class AnchorOverlay extends VideoTrackOverlay {
     public void onSetVideo(int videoDuration, float millisecondsPerWidth) {
         super.onSetVideo(videoDuration, millisecondsPerWidth);
 
+        // moves batched for the last video are not heard anymore
+        cancelUpdate();
+
         currentPosition = 0;
         currentDuration = (int) (mDefaultAnchorPosition / mMillisecondsPerWidth);
         mAnchor.position = mDefaultAnchorPosition;
         mDisableRect.left = mDefaultAnchorPosition;
+        mTrackLeft = 0;
+        mRanges.clear();
         isVideoOpen = true;
+
+        if(mThumbnailStrip != null) {
+            mThumbnailStrip.layout(videoDuration, mThumbnailIntervalMs, mWidth / mThumbnailPerScreen, mHeight);
+        }
     }
 
     @Override
-    public boolean onTrackTouchEvent(VideoTrackView.Track track, MotionEvent event) {
+    public boolean onTrackTouchEvent(TrackView.Track track, MotionEvent event) {
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
                 if(mOnUpdateAnchorListener != null) {
@@ -118,6 +172,16 @@ public class AnchorOverlay extends VideoTrackOverlay {
                 }
                 break;
             case MotionEvent.ACTION_UP:
+                if(isSnapEnabled()) {
+                    alignToPosition(track);
+                }
+
+                // the last move and the alignment are heard before the end
+                if(isUpdatePending || !mDirtyRect.isEmpty()) {
+                    cancelUpdate();
+                    dispatchUpdate();
+                }
+
                 if(mOnUpdateAnchorListener != null) {
                     mOnUpdateAnchorListener.onUpdatePositionEnd(currentPosition, currentDuration);
                 }
@@ -130,7 +194,7 @@ public class AnchorOverlay extends VideoTrackOverlay {
 
     // update track position
     // int x: it's actually delta x
-    private void updateTrackPosition(VideoTrackView.Track track, float x) {
+    private void updateTrackPosition(TrackView.Track track, float x) {
         // check next position in boundary
         if(track.left + x > 0) {
             x = -track.left;
@@ -142,8 +206,9 @@ public class AnchorOverlay extends VideoTrackOverlay {
 
         track.left += x;
         track.right += x;
+        mTrackLeft = track.left;
 
-        currentPosition = (int) -(track.left / mMillisecondsPerWidth);
+        currentPosition = snapToKeyframe((int) -(track.left / mMillisecondsPerWidth));
         if(x < 0) {
             int nextDuration = mVideoDuration - currentPosition;
             currentDuration = nextDuration > currentDuration ? currentDuration : nextDuration;
@@ -151,12 +216,12 @@ public class AnchorOverlay extends VideoTrackOverlay {
             mDisableRect.left = (int) mAnchor.position;
         }
 
-        if(mOnUpdateAnchorListener != null) {
-            mOnUpdateAnchorListener.onUpdatePosition(currentPosition, currentDuration);
-        }
+        // thumbnails and markers move with the track
+        mDirtyRect.union(0, 0, mWidth, mHeight);
+        scheduleUpdate();
     }
 
-    private void updateAnchorPosition(VideoTrackView.Track track, float x) {
+    private void updateAnchorPosition(TrackView.Track track, float x) {
         // check next position in boundary
         if(mAnchor.position + x < 0) {
             x = 0 - mAnchor.position;
@@ -166,29 +231,163 @@ public class AnchorOverlay extends VideoTrackOverlay {
             x = track.right - mAnchor.position;
         }
 
+        float pastPosition = mAnchor.position;
         mAnchor.position += x;
         mDisableRect.left = (int) mAnchor.position;
 
         currentDuration = (int) (mAnchor.position / mMillisecondsPerWidth);
+        if(isSnapEnabled()) {
+            int snappedDuration = snapToKeyframe(currentPosition + currentDuration) - currentPosition;
+            if(snappedDuration > 0) {
+                currentDuration = snappedDuration;
+            }
+        }
+
+        // only the strip the anchor swept over changes, the dimmed area starts at the anchor
+        mDirtyRect.union((int) Math.min(pastPosition, mAnchor.position) - 1, 0,
+                (int) Math.max(pastPosition, mAnchor.position) + mAnchorWidth + 1, mHeight);
+        scheduleUpdate();
+    }
+
+    // one listener call and one invalidate per frame for all the moves it batched
+    private void scheduleUpdate() {
+        if(isUpdatePending) {
+            return;
+        }
+
+        isUpdatePending = true;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            mHandler.postDelayed(mDispatchUpdate, FRAME_INTERVAL_MS);
+        }
+    }
+
+    private void cancelUpdate() {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            removeFrameCallback();
+        } else {
+            mHandler.removeCallbacks(mDispatchUpdate);
+        }
+        isUpdatePending = false;
+        mDirtyRect.setEmpty();
+    }
+
+    // a frame callback must not outlive the view it invalidates
+    @Override
+    public void onDetached() {
+        cancelUpdate();
+    }
+
+    private final Runnable mDispatchUpdate = new Runnable() {
+        @Override
+        public void run() {
+            dispatchUpdate();
+        }
+    };
+
+    private void dispatchUpdate() {
+        isUpdatePending = false;
+
         if(mOnUpdateAnchorListener != null) {
             mOnUpdateAnchorListener.onUpdatePosition(currentPosition, currentDuration);
         }
+
+        if(mTrackView != null && !mDirtyRect.isEmpty()) {
+            mTrackView.invalidate(mDirtyRect.left, mDirtyRect.top, mDirtyRect.right, mDirtyRect.bottom);
+        }
+        mDirtyRect.setEmpty();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if(mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    dispatchUpdate();
+                }
+            };
+        }
+
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+        if(mFrameCallback != null) {
+            Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+        }
+    }
+
+    private boolean isSnapEnabled() {
+        return mSnapToKeyframe && mSampleIndex != null && mSampleIndex.getKeyframeCount() > 0;
+    }
+
+    // nearest keyframe of position in milliseconds, binary search over sample index
+    private int snapToKeyframe(int position) {
+        if(!isSnapEnabled()) {
+            return position;
+        }
+
+        int snapped = (int) (mSampleIndex.nearestKeyframeUs(position * 1000L) / 1000);
+        return Math.max(0, Math.min(snapped, mVideoDuration));
+    }
+
+    // move track and anchor to snapped position, while dragging they follow the finger
+    private void alignToPosition(TrackView.Track track) {
+        float x = -(currentPosition * mMillisecondsPerWidth) - track.left;
+        track.left += x;
+        track.right += x;
+        mTrackLeft = track.left;
+
+        float pastPosition = mAnchor.position;
+        mAnchor.position = currentDuration * mMillisecondsPerWidth;
+        mDisableRect.left = (int) mAnchor.position;
+
+        if(x != 0) {
+            mDirtyRect.union(0, 0, mWidth, mHeight);
+        } else if(pastPosition != mAnchor.position) {
+            mDirtyRect.union((int) Math.min(pastPosition, mAnchor.position) - 1, 0,
+                    (int) Math.max(pastPosition, mAnchor.position) + mAnchorWidth + 1, mHeight);
+        }
     }
 
     @Override
     public void drawOverlay(Canvas canvas) {
         if(isVideoOpen) {
+            if(mThumbnailStrip != null) {
+                mThumbnailStrip.draw(canvas, mTrackLeft, mMillisecondsPerWidth, mWidth, mHeight);
+            }
+            if(mWaveformLane != null) {
+                mWaveformLane.draw(canvas, mTrackLeft, mMillisecondsPerWidth, mWidth, mHeight - mWaveformHeight, mWaveformHeight);
+            }
             canvas.drawRect(mDisableRect, mDisablePaint);
+            drawRanges(canvas);
             mAnchor.draw(canvas);
         }
     }
 
+    // added ranges are marked along the bottom of the track
+    private void drawRanges(Canvas canvas) {
+        for(int i = 0; i < mRanges.size(); i++) {
+            int[] range = mRanges.get(i);
+            float left = mTrackLeft + range[0] * mMillisecondsPerWidth;
+            float right = left + range[1] * mMillisecondsPerWidth;
+            if(right > 0 && left < mWidth) {
+                canvas.drawRect(left, mHeight - mRangeMarkerHeight, right, mHeight, mRangePaint);
+            }
+        }
+    }
+
     // Track anchor class
     private class Anchor {
         private Paint mAnchorPaint;
+        private RectF mBounds;				// reused by every draw
         public float position;
 
         public Anchor() {
+            mBounds = new RectF();
             mAnchorPaint = new Paint();
             mAnchorPaint.setColor(Color.parseColor("#ffffff"));
         }
@@ -202,8 +401,92 @@ public class AnchorOverlay extends VideoTrackOverlay {
         }
 
         public void draw(Canvas canvas) {
-            canvas.drawRoundRect(new RectF(position, 0, position + mAnchorWidth, mHeight), mAnchorRound, mAnchorRound, mAnchorPaint);
+            mBounds.set(position, 0, position + mAnchorWidth, mHeight);
+            canvas.drawRoundRect(mBounds, mAnchorRound, mAnchorRound, mAnchorPaint);
+        }
+    }
+
+    // thumbnails of the track, the track view decodes none itself
+    public void setThumbnailStrip(ThumbnailStrip thumbnailStrip) {
+        mThumbnailStrip = thumbnailStrip;
+    }
+
+    // audio peaks drawn along the bottom of the track, on top of the thumbnails
+    public void setWaveformLane(WaveformLane waveformLane) {
+        mWaveformLane = waveformLane;
+    }
+
+    // view the overlay is drawn on, changed parts of it are invalidated instead of the whole
+    public void setTrackView(View trackView) {
+        mTrackView = trackView;
+    }
+
+    public void setSampleIndex(SampleIndex sampleIndex) {
+        mSampleIndex = sampleIndex;
+    }
+
+    public void setSnapToKeyframe(boolean snapToKeyframe) {
+        mSnapToKeyframe = snapToKeyframe;
+    }
+
+    public boolean isSnapToKeyframe() {
+        return mSnapToKeyframe;
+    }
+
+    // keeps the current selection as a range of its own, returns false if it is already kept
+    public boolean addRange() {
+        if(!isVideoOpen || currentDuration <= 0) {
+            return false;
         }
+
+        for(int[] range: mRanges) {
+            if(range[0] == currentPosition && range[1] == currentDuration) {
+                return false;
+            }
+        }
+
+        mRanges.add(new int[] {currentPosition, currentDuration});
+        invalidateRanges();
+        return true;
+    }
+
+    public void clearRanges() {
+        mRanges.clear();
+        invalidateRanges();
+    }
+
+    // markers take the bottom strip of the track only
+    private void invalidateRanges() {
+        if(mTrackView != null) {
+            mTrackView.invalidate(0, mHeight - mRangeMarkerHeight, mWidth, mHeight);
+        }
+    }
+
+    public int getRangeCount() {
+        return mRanges.size();
+    }
+
+    // added ranges ordered by start, the current selection if none was added, start and duration in milliseconds
+    public int[] getRanges() {
+        ArrayList<int[]> ranges = new ArrayList<>(mRanges);
+        if(ranges.isEmpty() && currentDuration > 0) {
+            ranges.add(new int[] {currentPosition, currentDuration});
+        }
+
+        Collections.sort(ranges, new Comparator<int[]>() {
+            @Override
+            public int compare(int[] lhs, int[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : lhs[0] > rhs[0] ? 1 : 0;
+            }
+        });
+
+        int[] flat = new int[ranges.size() * 2];
+        for(int i = 0; i < ranges.size(); i++) {
+            flat[i * 2] = ranges.get(i)[0];
+            flat[i * 2 + 1] = ranges.get(i)[1];
+        }
+
+        return flat;
     }
 
     public void setOnUpdateAnchorListener(OnUpdateAnchorListener onUpdateAnchorListener) {
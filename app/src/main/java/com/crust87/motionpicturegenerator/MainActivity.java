@@ -15,27 +15,48 @@
  */
 package com.crust87.motionpicturegenerator;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
-import android.app.ProgressDialog;
+import android.app.ActivityManager;
+import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Intent;
-import android.database.Cursor;
+import android.content.ServiceConnection;
+import android.graphics.RectF;
+import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Message;
-import android.provider.MediaStore;
+import android.os.IBinder;
 import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Toast;
 
-import com.crust87.ffmpegexecutor.FFmpegExecutor;
+import com.crust87.motionpicturegenerator.export.CropRegion;
+import com.crust87.motionpicturegenerator.export.ExportJob;
+import com.crust87.motionpicturegenerator.export.ExportQueue;
+import com.crust87.motionpicturegenerator.export.ExportService;
+import com.crust87.motionpicturegenerator.export.FFmpegBinary;
+import com.crust87.motionpicturegenerator.export.FFmpegProgress;
+import com.crust87.motionpicturegenerator.export.MotionPictureOptions;
+import com.crust87.motionpicturegenerator.export.SourceDescriptor;
+import com.crust87.motionpicturegenerator.mp4.SampleIndex;
+import com.crust87.motionpicturegenerator.mp4.SampleIndexCache;
 import com.crust87.motionpicturegenerator.player.ExoVideoView;
-import com.crust87.videotrackview.VideoTrackView;
+import com.crust87.motionpicturegenerator.player.PlaybackMetrics;
+import com.crust87.motionpicturegenerator.thumbnail.ThumbnailCache;
+import com.crust87.motionpicturegenerator.thumbnail.ThumbnailLoader;
+import com.crust87.motionpicturegenerator.thumbnail.SpriteSheetExtractor;
+import com.crust87.motionpicturegenerator.thumbnail.ThumbnailStrip;
+import com.crust87.motionpicturegenerator.waveform.WaveformExtractor;
+import com.crust87.motionpicturegenerator.waveform.WaveformLane;
+import com.crust87.motionpicturegenerator.waveform.WaveformLoader;
 import com.google.android.exoplayer.AspectRatioFrameLayout;
 import com.google.android.exoplayer.ExoPlaybackException;
 import com.google.android.exoplayer.MediaCodecTrackRenderer;
@@ -43,29 +64,38 @@ import com.google.android.exoplayer.MediaCodecUtil;
 import com.google.android.exoplayer.drm.UnsupportedDrmException;
 import com.google.android.exoplayer.util.Util;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
     private static final int MENU_GROUP_TRACKS = 1;
     private static final int ID_OFFSET = 2;
+    private static final long THUMBNAIL_DISK_BYTES = 16 * 1024 * 1024;
 
     private AspectRatioFrameLayout videoFrame;
 
-    private VideoTrackView mAnchorVideoTrackView;
+    private TrackView mAnchorVideoTrackView;
     private ExoVideoView mVideoView;
     private AnchorOverlay mAnchorOverlay;
 
     // Attributes
-    private String originalPath;
+    private SourceDescriptor mSource;		// held open while the video is edited
+    private String originalPath;			// readable path of the source
+    private boolean mSmartCut = true;		// re-encode only boundary GOPs
+    private MotionPictureOptions mOptions = MotionPictureOptions.MP4;
 
     // Component
-    private FFmpegExecutor mExecutor;
-
-    private ProgressDialog mProgressDialog;
-
+    private ExportService mExportService;
+    private ThumbnailLoader mThumbnailLoader;
+    private ThumbnailStrip mThumbnailStrip;
+    private WaveformLoader mWaveformLoader;
+    private WaveformLane mWaveformLane;
+    private final PlaybackMetrics mPlaybackMetrics = new PlaybackMetrics();
 
     // Working Variables
     private int mVideoSeek;			// generated video seek
@@ -77,30 +107,60 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         getSupportActionBar().setElevation(0);
 
-        setContentView(R.layout.main_activity);
+        // checks or installs ffmpeg while the layout inflates
+        FFmpegBinary.getInstance(this).installAsync();
 
-        if(!initFFmpeg()) {
-            finish();
-            return;
-        }
+        setContentView(R.layout.main_activity);
 
         videoFrame = (AspectRatioFrameLayout) findViewById(R.id.video_frame);
         mVideoView = (ExoVideoView) findViewById(R.id.videoView);
-        mAnchorVideoTrackView = (VideoTrackView) findViewById(R.id.anchorVideoTrackView);
+        mAnchorVideoTrackView = (TrackView) findViewById(R.id.anchorVideoTrackView);
 
         mAnchorOverlay = new AnchorOverlay(getApplicationContext());
-        mAnchorVideoTrackView.setVideoTrackOverlay(mAnchorOverlay);
+        mAnchorVideoTrackView.setTrackOverlay(mAnchorOverlay);
+        mAnchorOverlay.setTrackView(mAnchorVideoTrackView);
+
+        // an eighth of the heap for decoded thumbnails, the disk keeps them across launches
+        int memoryClass = ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryClass();
+        ThumbnailCache thumbnailCache = new ThumbnailCache(new File(getCacheDir(), "thumbnails"),
+                memoryClass * 1024 * 1024 / 8, THUMBNAIL_DISK_BYTES);
+        mThumbnailLoader = new ThumbnailLoader(thumbnailCache, new SpriteSheetExtractor(FFmpegBinary.getInstance(this)),
+                new File(getCacheDir(), "sprite_sheets"));
+        mThumbnailStrip = new ThumbnailStrip(mThumbnailLoader);
+        mThumbnailStrip.setOnUpdateThumbnailListener(new ThumbnailStrip.OnUpdateThumbnailListener() {
+            @Override
+            public void onUpdateThumbnail() {
+                mAnchorVideoTrackView.invalidate();
+            }
+        });
+        mAnchorOverlay.setThumbnailStrip(mThumbnailStrip);
+
+        // peaks are decoded once per video and kept next to the thumbnails
+        mWaveformLoader = new WaveformLoader(new WaveformExtractor(FFmpegBinary.getInstance(this)),
+                new File(getCacheDir(), "waveforms"));
+        mWaveformLane = new WaveformLane(mWaveformLoader, getResources().getColor(R.color.waveform),
+                getResources().getColor(R.color.waveformBackground));
+        mWaveformLane.setOnUpdateWaveformListener(new WaveformLane.OnUpdateWaveformListener() {
+            @Override
+            public void onUpdateWaveform() {
+                mAnchorVideoTrackView.invalidate();
+            }
+        });
+        mAnchorOverlay.setWaveformLane(mWaveformLane);
 
         mVideoView.addListener(mExoListener);
+        mVideoView.setInfoListener(mPlaybackMetrics);
 
         mAnchorOverlay.setOnUpdateAnchorListener(new AnchorOverlay.OnUpdateAnchorListener() {
             @Override
             public void onUpdatePositionStart() {
-                mVideoView.pause();
+                mVideoView.startScrubbing();
             }
 
             @Override
             public void onUpdatePosition(int seek, int duration) {
+                // preview the edge being dragged, the end anchor leaves the seek where it was
+                mVideoView.scrubTo(seek != mVideoSeek ? seek : seek + duration);
                 mVideoSeek = seek;
                 mVideoDuration = duration;
             }
@@ -110,44 +170,47 @@ public class MainActivity extends AppCompatActivity {
                 mVideoSeek = seek;
                 mVideoDuration = duration;
 
-                mVideoView.seekTo(mVideoSeek);
+                mVideoView.stopScrubbing(mVideoSeek);
+                mVideoView.setLoopRange(mVideoSeek, mVideoDuration);
                 mVideoView.start();
             }
         });
 
-        mExecutor.setOnReadProcessLineListener(new FFmpegExecutor.OnReadProcessLineListener() {
-            @Override
-            public void onReadProcessLine(String line) {
-                Message message = Message.obtain();
-                message.obj = line;
-                message.setTarget(mMessageHandler);
-                message.sendToTarget();
-            }
-        });
-    }
-
-    private boolean initFFmpeg() {
-        try {
-            InputStream ffmpegFileStream = getApplicationContext().getAssets().open("ffmpeg");
-            mExecutor = new FFmpegExecutor(getApplicationContext(), ffmpegFileStream);
-
-            return true;
-        } catch (Exception e) {
-            Toast.makeText(getApplicationContext(), "Fail FFmpeg Setting", Toast.LENGTH_LONG).show();
-            return false;
-        }
+        bindService(new Intent(this, ExportService.class), mServiceConnection, BIND_AUTO_CREATE);
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.action_smart_cut).setChecked(mSmartCut);
+        menu.findItem(R.id.action_snap_keyframe).setChecked(mAnchorOverlay.isSnapToKeyframe());
+
+        switch(mOptions.getFormat()) {
+            case MotionPictureOptions.FORMAT_GIF:
+                menu.findItem(R.id.action_format_gif).setChecked(true);
+                break;
+            case MotionPictureOptions.FORMAT_WEBP:
+                menu.findItem(R.id.action_format_webp).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.action_format_mp4).setChecked(true);
+                break;
+        }
 
         return true;
     }
 
+    // documents can be granted for good, so exports journaled with their uri survive process death
     public void openVideo() {
-        Intent lIntent = new Intent(Intent.ACTION_PICK);
+        Intent lIntent;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            lIntent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            lIntent.addCategory(Intent.CATEGORY_OPENABLE);
+            lIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        } else {
+            lIntent = new Intent(Intent.ACTION_PICK);
+        }
         lIntent.setType("video/*");
         lIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
         startActivityForResult(lIntent, 1000);
@@ -162,105 +225,223 @@ public class MainActivity extends AppCompatActivity {
             case R.id.action_crop:
                 cropVideo();
                 return true;
+            case R.id.action_add_range:
+                if(mAnchorOverlay.addRange()) {
+                    Toast.makeText(getApplicationContext(), getString(R.string.range_added, mAnchorOverlay.getRangeCount()), Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            case R.id.action_clear_ranges:
+                mAnchorOverlay.clearRanges();
+                return true;
+            case R.id.action_smart_cut:
+                mSmartCut = !item.isChecked();
+                item.setChecked(mSmartCut);
+                return true;
+            case R.id.action_snap_keyframe:
+                mAnchorOverlay.setSnapToKeyframe(!item.isChecked());
+                item.setChecked(mAnchorOverlay.isSnapToKeyframe());
+                return true;
+            case R.id.action_format_mp4:
+                mOptions = MotionPictureOptions.MP4;
+                item.setChecked(true);
+                return true;
+            case R.id.action_format_gif:
+                mOptions = MotionPictureOptions.GIF;
+                item.setChecked(true);
+                return true;
+            case R.id.action_format_webp:
+                mOptions = MotionPictureOptions.WEBP;
+                item.setChecked(true);
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
-    private Handler mMessageHandler = new Handler() {
+    private ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
-        public void handleMessage(Message msg) {
-            super.handleMessage(msg);
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mExportService = ((ExportService.LocalBinder) service).getService();
+            mExportService.setOnExportListener(mOnExportListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mExportService = null;
+        }
+    };
 
-            String message = (String) msg.obj;
-            if(mProgressDialog != null) {
-                mProgressDialog.setMessage(message);
+    private ExportQueue.OnExportListener mOnExportListener = new ExportQueue.OnExportListener() {
+        @Override
+        public void onQueueChanged(int pendingCount, int runningCount) {
+            if(pendingCount + runningCount > 0) {
+                getSupportActionBar().setSubtitle(getString(R.string.export_status, runningCount, pendingCount));
+            } else {
+                getSupportActionBar().setSubtitle(null);
+            }
+        }
+
+        @Override
+        public void onJobProgress(ExportJob job, FFmpegProgress progress) {
+            getSupportActionBar().setSubtitle(getString(R.string.export_progress, (int) progress.percent, Math.max(0, progress.speed)));
+        }
+
+        @Override
+        public void onJobFinished(ExportJob job) {
+            if(job.getState() == ExportJob.STATE_DONE) {
+                Toast.makeText(getApplicationContext(), getString(R.string.export_done, job.getOutputPath()), Toast.LENGTH_SHORT).show();
+            } else {
+                Toast.makeText(getApplicationContext(), R.string.export_failed, Toast.LENGTH_LONG).show();
             }
         }
     };
 
     public void cropVideo() {
+        if(originalPath == null) {
+            return;
+        }
+
         mVideoView.pause();
 
-        new AsyncTask<Void, Void, Void>() {
-
-            float scale;
-            int viewWidth;
-            int viewHeight;
-            int width;
-            int height;
-            int positionX;
-            int positionY;
-            int videoWidth;
-            int videoHeight;
-            int rotate;
-            String start;
-            String dur;
+        // export what the viewport shows, the zoom and pan of the preview become the crop
+        RectF visibleRegion = new RectF();
+        mVideoView.getVisibleRegion(visibleRegion);
+        MotionPictureOptions options = mOptions.withCrop(new CropRegion(visibleRegion.left, visibleRegion.top,
+                visibleRegion.right, visibleRegion.bottom));
 
-            @Override
-            protected void onPreExecute() {
-                mExecutor.init();
-                mProgressDialog = ProgressDialog.show(MainActivity.this, null, "execute....", true);
-
-                int startMinute = mVideoSeek / 60000;
-                int startSeconds = mVideoSeek - startMinute*60000;
-                start = String.format("00:%02d:%02.2f", startMinute, startSeconds/1000f);
-                dur = String.format("00:00:%02.2f", mVideoDuration/1000f);
+        String name = "result_" + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date());
+        int[] ranges = mAnchorOverlay.getRanges();
+        int rangeCount = ranges.length / 2;
+        if(rangeCount == 0) {
+            return;
+        }
+
+        long[] rangesUs = new long[rangeCount * 2];
+        String[] outputPaths = new String[rangeCount];
+        for(int i = 0; i < rangeCount; i++) {
+            rangesUs[i * 2] = ranges[i * 2] * 1000L;
+            rangesUs[i * 2 + 1] = (ranges[i * 2] + ranges[i * 2 + 1]) * 1000L;
+            String fileName = rangeCount > 1 ? name + "_" + (i + 1) + options.getExtension() : name + options.getExtension();
+            outputPaths[i] = new File(Environment.getExternalStorageDirectory(), fileName).getAbsolutePath();
+        }
+
+        // re-encoded mp4 ranges share one decode of the source, copies and animations are exported one by one
+        if(rangeCount > 1 && !options.isAnimated() && (options.isReframed() || !mSmartCut)) {
+            startService(ExportService.createEnqueueIntent(this, mSource.getSource(), rangesUs, outputPaths, options));
+        } else {
+            for(int i = 0; i < rangeCount; i++) {
+                startService(ExportService.createEnqueueIntent(this, mSource.getSource(), rangesUs[i * 2],
+                        rangesUs[i * 2 + 1], outputPaths[i], mSmartCut, options));
+            }
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == 1000 && resultCode == RESULT_OK) {
+            Uri contentUri = data.getData();
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                takePersistableReadPermission(data, contentUri);
             }
+            setOriginalVideo(contentUri);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void takePersistableReadPermission(Intent data, Uri uri) {
+        if((data.getFlags() & Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION) == 0) {
+            return;
+        }
+
+        try {
+            getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch(SecurityException e) {
+            // exports of this uri are not journaled then
+            Log.w(TAG, "no persistable grant for " + uri, e);
+        }
+    }
+
+    // Initialization original video, the file behind the uri is opened and indexed off the main thread,
+    // the player sizes its buffers by the bitrate of the index
+    private void setOriginalVideo(final Uri uri) {
+        final ContentResolver contentResolver = getContentResolver();
+        new AsyncTask<Void, Void, SourceDescriptor>() {
+            private int mDuration;
+            private SampleIndex mSampleIndex;
 
             @Override
-            protected Void doInBackground(Void... params) {
+            protected SourceDescriptor doInBackground(Void... params) {
                 try {
-                    mExecutor.putCommand("-y")
-                            .putCommand("-i")
-                            .putCommand(originalPath)
-                            .putCommand("-vcodec")
-                            .putCommand("libx264")
-                            .putCommand("-profile:v")
-                            .putCommand("baseline")
-                            .putCommand("-level")
-                            .putCommand("3.1")
-                            .putCommand("-b:v")
-                            .putCommand("1000k")
-                            .putCommand("-ss")
-                            .putCommand(start)
-                            .putCommand("-t")
-                            .putCommand(dur)
-                            .putCommand("-c:a")
-                            .putCommand("copy")
-                            .putCommand(Environment.getExternalStorageDirectory().getAbsolutePath() + "/result.mp4")
-                            .executeCommand();
+                    SourceDescriptor source = SourceDescriptor.open(contentResolver, SourceDescriptor.resolve(contentResolver, uri));
+                    source.getKey();	// fingerprint the content here rather than on the main thread
+                    mDuration = readDuration(source.getPath());
+                    mSampleIndex = loadSampleIndex(source.getPath(), source.getKey());
+                    return source;
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.w(TAG, "fail to open " + uri, e);
+                    return null;
                 }
-
-                return null;
             }
 
             @Override
-            protected void onPostExecute(Void aVoid) {
-                mProgressDialog.dismiss();
-                mProgressDialog = null;
-            }
+            protected void onPostExecute(SourceDescriptor source) {
+                if(source == null) {
+                    // the player stays on the current video, the track and anchors still describe it
+                    Toast.makeText(getApplicationContext(), R.string.error_open_video, Toast.LENGTH_LONG).show();
+                    return;
+                }
+
+                if(isFinishing()) {
+                    closeSource(source);
+                    return;
+                }
 
+                mVideoView.setContentUri(uri, mSampleIndex != null ? mSampleIndex.getBitrate() : 0);
+                closeSource(mSource);
+                mSource = source;
+                originalPath = source.getPath();
+                mThumbnailStrip.setSource(originalPath, source.getKey());
+                mWaveformLane.setSource(originalPath, source.getKey());
+                mAnchorVideoTrackView.setVideo(mDuration);
+                mAnchorOverlay.setSampleIndex(mSampleIndex);
+                mVideoView.setKeyframes(mSampleIndex != null ? mSampleIndex.getKeyframesUs() : null);
+            }
         }.execute();
     }
 
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == 1000 && resultCode == RESULT_OK) {
-            mVideoView.stopPlayback();
+    // duration in milliseconds from the container, no frame is decoded, 0 if unknown
+    private static int readDuration(String path) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(path);
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return duration != null ? Integer.parseInt(duration) : 0;
+        } catch(RuntimeException e) {
+            Log.w(TAG, "no duration for " + path, e);
+            return 0;
+        } finally {
+            retriever.release();
+        }
+    }
 
-            Uri contentUri = data.getData();
-            setOriginalVideo(contentUri);
+    private void closeSource(SourceDescriptor source) {
+        if(source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                Log.w(TAG, "fail to close " + source.getSource(), e);
+            }
         }
     }
 
-    // Initialization original video
-    private void setOriginalVideo(Uri uri) {
-        originalPath = getRealPathFromURI(uri);
-        mVideoView.setContentUri(uri);
-        mAnchorVideoTrackView.setVideo(originalPath);
+    // keyframe index for anchor snapping, exports reuse the cached index, null if the file has none
+    private static SampleIndex loadSampleIndex(String path, String key) {
+        try {
+            return SampleIndexCache.get(path, key);
+        } catch (IOException e) {
+            Log.w(TAG, "no sample index for " + path, e);
+            return null;
+        }
     }
 
     private ExoVideoView.Listener mExoListener = new ExoVideoView.Listener() {
@@ -300,36 +481,62 @@ public class MainActivity extends AppCompatActivity {
 
         @Override
         public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
-            videoFrame.setAspectRatio(height == 0 ? 1 : (width * pixelWidthHeightRatio) / height);
+            // below api 21 the view turns the frame itself, so the frame is laid out turned
+            float aspectRatio = height == 0 ? 1 : (width * pixelWidthHeightRatio) / height;
+            videoFrame.setAspectRatio(unappliedRotationDegrees % 180 != 0 ? 1 / aspectRatio : aspectRatio);
         }
     };
 
-    public String getRealPathFromURI(Uri contentUri) {
-        Cursor cursor = null;
-        try {
-            String[] proj = { MediaStore.Images.Media.DATA };
-            cursor = getApplicationContext().getContentResolver().query(contentUri, proj, null, null, null);
-            int column_index = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-            cursor.moveToFirst();
-            return cursor.getString(column_index);
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-    }
-
     @Override
     public void onPause() {
         super.onPause();
         mVideoView.pause();
+        dumpPlaybackMetrics();
+    }
+
+    // appended to files/playback_metrics.txt, rotated to playback_metrics.txt.old when full, pull them with adb
+    // to compare devices and builds
+    private void dumpPlaybackMetrics() {
+        final File file = new File(getFilesDir(), "playback_metrics.txt");
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mPlaybackMetrics.dump(file);
+                } catch(IOException e) {
+                    Log.w(TAG, "fail to dump playback metrics", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        mVideoView.trimMemory(level);
+        if(level >= TRIM_MEMORY_RUNNING_LOW) {
+            // thumbnails come back from the disk cache
+            mThumbnailLoader.getCache().clearMemory();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
 
+        // exports keep running in the service, they just stop reporting to this activity
+        if(mExportService != null) {
+            mExportService.setOnExportListener(null);
+            mExportService = null;
+        }
+        unbindService(mServiceConnection);
+
+        mThumbnailLoader.release();
+        mWaveformLoader.release();
         mVideoView.stopPlayback();
+        closeSource(mSource);
+        mSource = null;
     }
 
 }
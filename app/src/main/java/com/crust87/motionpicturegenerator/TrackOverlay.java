@@ -0,0 +1,43 @@
+package com.crust87.motionpicturegenerator;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.MotionEvent;
+
+/**
+ * Everything drawn on a {@link TrackView}, and what its touch events do to the track.
+ */
+public abstract class TrackOverlay {
+
+    // Attributes
+    protected Context mContext;
+    protected int mWidth;
+    protected int mHeight;
+    protected int mVideoDuration;				// milliseconds
+    protected float mMillisecondsPerWidth;		// pixels of a millisecond of the video
+
+    // Constructors
+    public TrackOverlay(Context context) {
+        mContext = context;
+    }
+
+    public void onSurfaceChanged(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    // the track is back at the start of the video
+    public void onSetVideo(int videoDuration, float millisecondsPerWidth) {
+        mVideoDuration = videoDuration;
+        mMillisecondsPerWidth = millisecondsPerWidth;
+    }
+
+    // the track view left the window, nothing may be posted to it anymore
+    public void onDetached() {
+    }
+
+    // track is moved in place, returns true if the event was used
+    public abstract boolean onTrackTouchEvent(TrackView.Track track, MotionEvent event);
+
+    public abstract void drawOverlay(Canvas canvas);
+}
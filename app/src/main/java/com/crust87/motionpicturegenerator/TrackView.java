@@ -0,0 +1,110 @@
+package com.crust87.motionpicturegenerator;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+/**
+ * Scrollable track of a video, drawn and moved by its {@link TrackOverlay}.
+ * <p>
+ * The view only needs the duration of the video and decodes no frame, the thumbnails on the track
+ * come from the cache of the overlay. The width of the view shows screen_duration milliseconds.
+ */
+public class TrackView extends View {
+
+    // Components
+    private TrackOverlay mTrackOverlay;
+    private final Track mTrack;
+
+    // Attributes
+    private final int mScreenDuration;
+    private int mVideoDuration;				// 0 until a video is set
+
+    // Constructors
+    public TrackView(Context context) {
+        this(context, null);
+    }
+
+    public TrackView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public TrackView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+
+        mTrack = new Track();
+        mScreenDuration = context.getResources().getInteger(R.integer.screen_duration);
+    }
+
+    public void setTrackOverlay(TrackOverlay trackOverlay) {
+        mTrackOverlay = trackOverlay;
+        if(getWidth() > 0) {
+            mTrackOverlay.onSurfaceChanged(getWidth(), getHeight());
+            layoutTrack();
+        }
+    }
+
+    // duration of the video in milliseconds, the track starts over at its beginning
+    public void setVideo(int videoDuration) {
+        mVideoDuration = videoDuration;
+        layoutTrack();
+        invalidate();
+    }
+
+    // before the first layout the track is laid out by onSizeChanged
+    private void layoutTrack() {
+        if(mVideoDuration <= 0 || getWidth() <= 0) {
+            return;
+        }
+
+        float millisecondsPerWidth = (float) getWidth() / mScreenDuration;
+        mTrack.left = 0;
+        mTrack.right = mVideoDuration * millisecondsPerWidth;
+        if(mTrackOverlay != null) {
+            mTrackOverlay.onSetVideo(mVideoDuration, millisecondsPerWidth);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+
+        if(mTrackOverlay != null) {
+            mTrackOverlay.onSurfaceChanged(width, height);
+        }
+        layoutTrack();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if(mTrackOverlay == null || mVideoDuration <= 0) {
+            return super.onTouchEvent(event);
+        }
+
+        return mTrackOverlay.onTrackTouchEvent(mTrack, event);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        if(mTrackOverlay != null) {
+            mTrackOverlay.onDetached();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if(mTrackOverlay != null) {
+            mTrackOverlay.drawOverlay(canvas);
+        }
+    }
+
+    // x of the start and end of the video in view coordinates
+    public static class Track {
+        public float left;
+        public float right;
+    }
+}
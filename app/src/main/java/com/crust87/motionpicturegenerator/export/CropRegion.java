@@ -0,0 +1,89 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.util.Locale;
+
+/**
+ * Part of the frame an export keeps, in fractions of the frame as it is displayed.
+ * <p>
+ * Fractions make the region independent of the source resolution, so it can be taken from the
+ * preview viewport and turned into pixels by ffmpeg. Rotated sources are stored unturned with a
+ * rotation tag, {@link #rotate(int)} maps the displayed region onto the stored frame.
+ */
+public class CropRegion {
+
+    public static final CropRegion FULL = new CropRegion(0, 0, 1, 1);
+
+    private static final float EPSILON = 0.001f;
+
+    // Attributes
+    private final float mLeft;
+    private final float mTop;
+    private final float mRight;
+    private final float mBottom;
+
+    // Constructors
+    public CropRegion(float left, float top, float right, float bottom) {
+        mLeft = clamp(Math.min(left, right));
+        mTop = clamp(Math.min(top, bottom));
+        mRight = clamp(Math.max(left, right));
+        mBottom = clamp(Math.max(top, bottom));
+    }
+
+    public boolean isFull() {
+        return mLeft < EPSILON && mTop < EPSILON && mRight > 1 - EPSILON && mBottom > 1 - EPSILON;
+    }
+
+    // the same region in the stored frame of a source displayed turned clockwise by degrees
+    public CropRegion rotate(int degrees) {
+        switch(((degrees % 360) + 360) % 360) {
+            case 90:
+                return new CropRegion(mTop, 1 - mRight, mBottom, 1 - mLeft);
+            case 180:
+                return new CropRegion(1 - mRight, 1 - mBottom, 1 - mLeft, 1 - mTop);
+            case 270:
+                return new CropRegion(1 - mBottom, mLeft, 1 - mTop, mRight);
+            default:
+                return this;
+        }
+    }
+
+    // crop filter in pixels of the frames it is applied to, sizes and offsets kept even for 4:2:0
+    public String getFilter() {
+        return String.format(Locale.US, "crop=%1$s:%2$s:%3$s:%4$s",
+                even("iw", mRight - mLeft), even("ih", mBottom - mTop), even("iw", mLeft), even("ih", mTop));
+    }
+
+    // share of the source pixels that are kept
+    public float getArea() {
+        return (mRight - mLeft) * (mBottom - mTop);
+    }
+
+    public float getLeft() {
+        return mLeft;
+    }
+
+    public float getTop() {
+        return mTop;
+    }
+
+    public float getRight() {
+        return mRight;
+    }
+
+    public float getBottom() {
+        return mBottom;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.4f,%.4f,%.4f,%.4f", mLeft, mTop, mRight, mBottom);
+    }
+
+    private static String even(String size, float fraction) {
+        return String.format(Locale.US, "trunc(%s*%.5f/2)*2", size, fraction);
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
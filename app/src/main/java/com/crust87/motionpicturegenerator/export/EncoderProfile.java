@@ -0,0 +1,164 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Video encoder options shared by every export path, so that re-encoded pieces of a smart cut
+ * match the settings of a full re-encode.
+ * <p>
+ * Rate control is either constant quality, when crf is set, or a target bitrate. Null options
+ * are left to the encoder. libwebp takes the preset as its compression level and the crf as its
+ * quality.
+ */
+public class EncoderProfile {
+
+    public static final String LIBWEBP = "libwebp";
+
+    public static final EncoderProfile DEFAULT = new EncoderProfile("libx264", "baseline", "3.1", "1000k");
+    public static final EncoderProfile WEBP = new EncoderProfile(LIBWEBP, null, null, "4", 75, null, 0);
+
+    // Attributes
+    private final String mCodec;
+    private final String mProfile;
+    private final String mLevel;
+    private final String mPreset;
+    private final int mCrf;					// -1 encodes to the bitrate
+    private final String mBitrate;
+    private final int mThreads;				// encoder threads, 0 lets ffmpeg decide
+
+    // Constructors
+    public EncoderProfile(String codec, String profile, String level, String bitrate) {
+        this(codec, profile, level, null, -1, bitrate, 0);
+    }
+
+    public EncoderProfile(String codec, String profile, String level, String preset, int crf, String bitrate, int threads) {
+        mCodec = codec;
+        mProfile = profile;
+        mLevel = level;
+        mPreset = preset;
+        mCrf = crf;
+        mBitrate = bitrate;
+        mThreads = threads;
+    }
+
+    public EncoderProfile withThreads(int threads) {
+        return new EncoderProfile(mCodec, mProfile, mLevel, mPreset, mCrf, mBitrate, threads);
+    }
+
+    public FFmpegExecutor putVideoOptions(FFmpegExecutor executor) {
+        for(String option: addVideoOptions(new ArrayList<String>())) {
+            executor.putCommand(option);
+        }
+
+        return executor;
+    }
+
+    // global option, has to be put before the first input
+    public FFmpegExecutor putFilterThreadOptions(FFmpegExecutor executor) {
+        for(String option: addFilterThreadOptions(new ArrayList<String>())) {
+            executor.putCommand(option);
+        }
+
+        return executor;
+    }
+
+    // same options as arguments of a process started directly
+    public List<String> addVideoOptions(List<String> arguments) {
+        arguments.add("-vcodec");
+        arguments.add(mCodec);
+
+        if(LIBWEBP.equals(mCodec)) {
+            return addWebpOptions(arguments);
+        }
+
+        if(mProfile != null) {
+            arguments.add("-profile:v");
+            arguments.add(mProfile);
+        }
+
+        if(mLevel != null) {
+            arguments.add("-level");
+            arguments.add(mLevel);
+        }
+
+        if(mPreset != null) {
+            arguments.add("-preset");
+            arguments.add(mPreset);
+        }
+
+        if(mCrf >= 0) {
+            arguments.add("-crf");
+            arguments.add(String.valueOf(mCrf));
+        } else if(mBitrate != null) {
+            arguments.add("-b:v");
+            arguments.add(mBitrate);
+        }
+
+        if(mThreads > 0) {
+            arguments.add("-threads");
+            arguments.add(String.valueOf(mThreads));
+        }
+
+        return arguments;
+    }
+
+    private List<String> addWebpOptions(List<String> arguments) {
+        arguments.add("-lossless");
+        arguments.add("0");
+
+        if(mPreset != null) {
+            arguments.add("-compression_level");
+            arguments.add(mPreset);
+        }
+
+        if(mCrf >= 0) {
+            arguments.add("-q:v");
+            arguments.add(String.valueOf(mCrf));
+        }
+
+        if(mThreads > 0) {
+            arguments.add("-threads");
+            arguments.add(String.valueOf(mThreads));
+        }
+
+        return arguments;
+    }
+
+    public List<String> addFilterThreadOptions(List<String> arguments) {
+        if(mThreads > 0) {
+            arguments.add("-filter_threads");
+            arguments.add(String.valueOf(mThreads));
+        }
+
+        return arguments;
+    }
+
+    public String getCodec() {
+        return mCodec;
+    }
+
+    public String getProfile() {
+        return mProfile;
+    }
+
+    public String getLevel() {
+        return mLevel;
+    }
+
+    public String getPreset() {
+        return mPreset;
+    }
+
+    public int getCrf() {
+        return mCrf;
+    }
+
+    public String getBitrate() {
+        return mBitrate;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+}
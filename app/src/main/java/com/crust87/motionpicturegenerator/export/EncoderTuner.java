@@ -0,0 +1,335 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Picks encoder settings from a benchmark run on the device.
+ * <p>
+ * {@link #calibrate} encodes a short synthetic clip with every candidate of every output format,
+ * libx264 presets and crfs for mp4, libwebp compression levels and qualities for webp and the
+ * paletteuse dithers for gif, and records the encoding frame rate and the bits per pixel of the
+ * output. A candidate ffmpeg fails on, like a codec missing from the build, is skipped. The
+ * measurements are persisted with the device they were taken on, and {@link #choose(int)} returns
+ * the fastest candidate that meets the quality and size target of an output type. A format without
+ * measurements uses its defaults.
+ * <p>
+ * Candidates of every encoder are compared by a quality loss, lower is better: the crf of libx264,
+ * 100 minus the quality of libwebp and the rank of the gif dither. The gif dither is measured
+ * through ffmpeg, the in-process encoder dithers the same ways at about the same relative cost.
+ * Frame rate and size are not candidates, they are chosen by the user for every export.
+ */
+public class EncoderTuner {
+
+    private static final String TAG = "EncoderTuner";
+
+    public static final int TYPE_SMART_CUT = 0;		// mp4 boundary pieces, have to blend in with copied GOPs
+    public static final int TYPE_REENCODE = 1;		// mp4 range encoded once
+    public static final int TYPE_WEBP = 2;
+    public static final int TYPE_GIF = 3;
+
+    private static final String CODEC = "libx264";
+    private static final String PROFILE = "main";
+    private static final String[] PRESETS = {"ultrafast", "superfast", "veryfast", "faster", "fast", "medium"};
+    private static final int[] CRFS = {20, 23, 26};
+
+    private static final String[] WEBP_COMPRESSION_LEVELS = {"0", "3", "6"};
+    private static final int[] WEBP_QUALITIES = {60, 75, 90};
+
+    private static final String GIF = "gif";
+    // dithers with their quality loss, error diffusion looks best and compresses worst
+    private static final String[] GIF_DITHERS = {MotionPictureOptions.DITHER_SIERRA, MotionPictureOptions.DITHER_FLOYD_STEINBERG,
+            MotionPictureOptions.DITHER_BAYER};
+    private static final int[] GIF_DITHER_LOSSES = {0, 0, 1};
+
+    // encoder, highest quality loss and bits per pixel accepted per output type
+    private static final String[] CODECS = {CODEC, CODEC, EncoderProfile.LIBWEBP, GIF};
+    private static final int[] MAX_LOSS = {20, 26, 25, 1};
+    private static final float[] MAX_BITS_PER_PIXEL = {0.20f, 0.10f, 0.50f, 2.0f};
+
+    private static final int CLIP_WIDTH = 640;
+    private static final int CLIP_HEIGHT = 360;
+    private static final int CLIP_FPS = 30;
+    private static final int CLIP_FRAMES = 45;
+
+    // Attributes
+    private final File mFile;
+    private final String mDeviceStamp;
+
+    // Working Variables
+    private final List<Measurement> mMeasurements;
+    private final Set<String> mTriedCodecs;		// codecs calibrated, with or without a measurement
+
+    // Constructors
+    public EncoderTuner(File file, String deviceStamp) {
+        mFile = file;
+        mDeviceStamp = deviceStamp;
+        mMeasurements = new ArrayList<>();
+        mTriedCodecs = new LinkedHashSet<>();
+    }
+
+    public synchronized void load() {
+        mMeasurements.clear();
+        mTriedCodecs.clear();
+        if(!mFile.exists()) {
+            return;
+        }
+
+        try {
+            JSONObject profile = new JSONObject(ExportJournal.readFile(mFile));
+            if(!mDeviceStamp.equals(profile.optString("device", null))) {
+                Log.d(TAG, "profile of another device or build, calibrate again");
+                return;
+            }
+
+            JSONArray array = profile.getJSONArray("measurements");
+            for(int i = 0; i < array.length(); i++) {
+                JSONObject entry = array.getJSONObject(i);
+                Measurement measurement = new Measurement(entry.optString("codec", CODEC), entry.getString("preset"),
+                        entry.getInt("crf"), (float) entry.getDouble("fps"), (float) entry.getDouble("bpp"));
+                mMeasurements.add(measurement);
+                mTriedCodecs.add(measurement.codec);
+            }
+
+            // profiles from before it was saved only know the codecs they measured
+            JSONArray tried = profile.optJSONArray("tried");
+            if(tried != null) {
+                for(int i = 0; i < tried.length(); i++) {
+                    mTriedCodecs.add(tried.getString(i));
+                }
+            }
+        } catch(IOException | JSONException e) {
+            Log.e(TAG, "fail to read device profile", e);
+            mMeasurements.clear();
+            mTriedCodecs.clear();
+        }
+    }
+
+    // a profile from before the animated formats were tuned is calibrated again, a codec that failed is not
+    public synchronized boolean isCalibrated() {
+        for(String codec: CODECS) {
+            if(!mTriedCodecs.contains(codec)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // output type of an export in the format
+    public static int getType(int format, boolean smartCut) {
+        switch(format) {
+            case MotionPictureOptions.FORMAT_WEBP:
+                return TYPE_WEBP;
+            case MotionPictureOptions.FORMAT_GIF:
+                return TYPE_GIF;
+            default:
+                return smartCut ? TYPE_SMART_CUT : TYPE_REENCODE;
+        }
+    }
+
+    // runs every candidate, takes a few seconds on fast devices and up to a minute on slow ones
+    public void calibrate(FFmpegExecutor executor, File workDirectory, int threads) throws IOException {
+        if(!workDirectory.isDirectory() && !workDirectory.mkdirs()) {
+            throw new IOException("fail to create " + workDirectory);
+        }
+
+        List<Measurement> measurements = new ArrayList<>();
+        for(String preset: PRESETS) {
+            for(int crf: CRFS) {
+                EncoderProfile profile = new EncoderProfile(CODEC, PROFILE, null, preset, crf, null, threads);
+                tryMeasure(executor, profile, null, new File(workDirectory, "calibration.mp4"), crf, measurements);
+            }
+        }
+
+        for(String compressionLevel: WEBP_COMPRESSION_LEVELS) {
+            for(int quality: WEBP_QUALITIES) {
+                EncoderProfile profile = new EncoderProfile(EncoderProfile.LIBWEBP, null, null, compressionLevel, quality, null, threads);
+                tryMeasure(executor, profile, null, new File(workDirectory, "calibration.webp"), 100 - quality, measurements);
+            }
+        }
+
+        for(int i = 0; i < GIF_DITHERS.length; i++) {
+            tryMeasure(executor, null, GIF_DITHERS[i], new File(workDirectory, "calibration.gif"), GIF_DITHER_LOSSES[i], measurements);
+        }
+
+        synchronized(this) {
+            mMeasurements.clear();
+            mMeasurements.addAll(measurements);
+            mTriedCodecs.clear();
+            for(String codec: CODECS) {
+                mTriedCodecs.add(codec);
+            }
+            save();
+        }
+    }
+
+    // adds the measurement of one candidate, a failed one is left out and the others still run
+    private void tryMeasure(FFmpegExecutor executor, EncoderProfile profile, String dither, File output, int loss,
+                            List<Measurement> measurements) throws IOException {
+        try {
+            measurements.add(measure(executor, profile, dither, output, loss));
+        } catch(IOException e) {
+            if(Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+
+            Log.w(TAG, "skip candidate " + (profile != null ? profile.getCodec() + " " + profile.getPreset() : dither), e);
+        }
+    }
+
+    // gif exports only take the thread count of the profile, their dither comes from chooseDither
+    public synchronized EncoderProfile choose(int type) {
+        Measurement best = choose(mMeasurements, CODECS[type], MAX_LOSS[type], MAX_BITS_PER_PIXEL[type]);
+        if(type == TYPE_WEBP) {
+            return best != null ? new EncoderProfile(EncoderProfile.LIBWEBP, null, null, best.preset, 100 - best.crf, null, 0)
+                    : EncoderProfile.WEBP;
+        }
+
+        if(best == null || type == TYPE_GIF) {
+            return EncoderProfile.DEFAULT;
+        }
+
+        return new EncoderProfile(CODEC, PROFILE, null, best.preset, best.crf, null, 0);
+    }
+
+    // dither of gif exports that leave it to the tuner
+    public synchronized String chooseDither() {
+        Measurement best = choose(mMeasurements, GIF, MAX_LOSS[TYPE_GIF], MAX_BITS_PER_PIXEL[TYPE_GIF]);
+        return best != null ? best.preset : MotionPictureOptions.DITHER_SIERRA;
+    }
+
+    // fastest candidate of the codec within the quality and size target, else the smallest one of the right quality
+    /* package */ static Measurement choose(List<Measurement> measurements, String codec, int maxLoss, float maxBitsPerPixel) {
+        Measurement fastest = null;
+        Measurement smallest = null;
+        for(Measurement measurement: measurements) {
+            if(!measurement.codec.equals(codec) || measurement.crf > maxLoss) {
+                continue;
+            }
+
+            if(measurement.bitsPerPixel <= maxBitsPerPixel && (fastest == null || measurement.fps > fastest.fps)) {
+                fastest = measurement;
+            }
+
+            if(smallest == null || measurement.bitsPerPixel < smallest.bitsPerPixel) {
+                smallest = measurement;
+            }
+        }
+
+        return fastest != null ? fastest : smallest;
+    }
+
+    // encodes the clip with the profile, or to a gif with the dither when there is none
+    private Measurement measure(FFmpegExecutor executor, EncoderProfile profile, String dither, File output, int loss) throws IOException {
+        String preset = profile != null ? profile.getPreset() : dither;
+        try {
+            long startedAt = System.nanoTime();
+            encodeClip(executor, profile, dither, output);
+            long elapsedNs = System.nanoTime() - startedAt;
+
+            if(!output.exists() || output.length() == 0) {
+                throw new IOException("calibration with " + preset + " wrote nothing");
+            }
+
+            float fps = CLIP_FRAMES * 1000000000f / Math.max(1, elapsedNs);
+            float bitsPerPixel = output.length() * 8f / ((long) CLIP_WIDTH * CLIP_HEIGHT * CLIP_FRAMES);
+            String codec = profile != null ? profile.getCodec() : GIF;
+            Log.d(TAG, codec + " " + preset + " loss " + loss + ": " + fps + " fps, " + bitsPerPixel + " bpp");
+
+            return new Measurement(codec, preset, loss, fps, bitsPerPixel);
+        } finally {
+            output.delete();
+        }
+    }
+
+    private void encodeClip(FFmpegExecutor executor, EncoderProfile profile, String dither, File output) throws IOException {
+        // noise keeps the test pattern about as hard to compress as camera footage
+        String source = "testsrc=size=" + CLIP_WIDTH + "x" + CLIP_HEIGHT + ":rate=" + CLIP_FPS
+                + ",noise=alls=12:allf=t";
+
+        executor.init();
+        executor.putCommand("-y")
+                .putCommand("-f")
+                .putCommand("lavfi")
+                .putCommand("-i")
+                .putCommand(source)
+                .putCommand("-frames:v")
+                .putCommand(String.valueOf(CLIP_FRAMES));
+        if(profile != null) {
+            profile.putVideoOptions(executor);
+        } else {
+            executor.putCommand("-lavfi")
+                    .putCommand("split[x][y];[x]palettegen=stats_mode=diff[p];[y][p]paletteuse=dither=" + dither);
+        }
+        executor.putCommand("-an")
+                .putCommand(output.getAbsolutePath())
+                .executeCommand();
+    }
+
+    private void save() {
+        try {
+            JSONArray array = new JSONArray();
+            for(Measurement measurement: mMeasurements) {
+                JSONObject entry = new JSONObject();
+                entry.put("codec", measurement.codec);
+                entry.put("preset", measurement.preset);
+                entry.put("crf", measurement.crf);
+                entry.put("fps", measurement.fps);
+                entry.put("bpp", measurement.bitsPerPixel);
+                array.put(entry);
+            }
+
+            JSONArray tried = new JSONArray();
+            for(String codec: mTriedCodecs) {
+                tried.put(codec);
+            }
+
+            JSONObject profile = new JSONObject();
+            profile.put("device", mDeviceStamp);
+            profile.put("measurements", array);
+            profile.put("tried", tried);
+
+            File temp = new File(mFile.getPath() + ".tmp");
+            FileOutputStream outputStream = new FileOutputStream(temp);
+            try {
+                outputStream.write(profile.toString().getBytes("UTF-8"));
+            } finally {
+                outputStream.close();
+            }
+
+            if(!temp.renameTo(mFile)) {
+                throw new IOException("fail to replace " + mFile);
+            }
+        } catch(JSONException | IOException e) {
+            Log.e(TAG, "fail to save device profile", e);
+        }
+    }
+
+    /* package */ static class Measurement {
+        final String codec;
+        final String preset;			// libx264 preset, libwebp compression level or gif dither
+        final int crf;					// quality loss
+        final float fps;
+        final float bitsPerPixel;
+
+        Measurement(String codec, String preset, int crf, float fps, float bitsPerPixel) {
+            this.codec = codec;
+            this.preset = preset;
+            this.crf = crf;
+            this.fps = fps;
+            this.bitsPerPixel = bitsPerPixel;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Directory of finished exports, addressed by what they were made from.
+ * <p>
+ * The key is a fingerprint of the source, its size and a hash of a few blocks sampled across it,
+ * together with the normalized parameters of the export, so the same range exported with the same
+ * settings is copied out of the cache instead of encoded again. An export whose key is already
+ * being produced by another job waits for that job and then takes its result. Least recently used
+ * entries are deleted past the disk budget.
+ */
+public class ExportCache {
+
+    private static final String TAG = "ExportCache";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Attributes
+    private final File mDirectory;
+    private volatile long mMaxBytes;
+
+    // Working Variables, guarded by this
+    private final Set<String> mInFlight;
+
+    // Constructors
+    public ExportCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mInFlight = new HashSet<>();
+    }
+
+    // key of the job's output, the fingerprint is the one of SourceDescriptor
+    public static String getKey(String sourceFingerprint, ExportJob job) {
+        MotionPictureOptions options = job.getOptions();
+        EncoderProfile profile = job.getEncoderProfile();
+
+        StringBuilder key = new StringBuilder(sourceFingerprint);
+        key.append('|').append(job.getStartUs()).append('|').append(job.getEndUs());
+        key.append('|').append(options.getFormat()).append('|').append(options.getFrameFilter());
+        if(options.isAnimated()) {
+            key.append('|').append(options.getLoopCount());
+            if(options.getFormat() == MotionPictureOptions.FORMAT_GIF) {
+                key.append('|').append(options.getDither());
+            }
+        } else if(!options.isReframed()) {
+            key.append('|').append(job.isSmartCut());
+        }
+
+        // threads change the speed, not the output worth keeping
+        key.append('|').append(profile.getCodec()).append('|').append(profile.getProfile())
+                .append('|').append(profile.getLevel()).append('|').append(profile.getPreset())
+                .append('|').append(profile.getCrf()).append('|').append(profile.getBitrate());
+
+        return hash(key.toString()) + options.getExtension();
+    }
+
+    /**
+     * Cached output of the key, null if the caller has to export it and then {@link #put} or
+     * {@link #release} the key. Waits while another caller exports the same key.
+     */
+    public File acquire(String key) throws InterruptedException {
+        File entry = new File(mDirectory, key);
+        synchronized(this) {
+            while(mInFlight.contains(key)) {
+                wait();
+            }
+
+            if(entry.exists() && entry.length() > 0) {
+                entry.setLastModified(System.currentTimeMillis());
+                return entry;
+            }
+
+            mInFlight.add(key);
+        }
+
+        return null;
+    }
+
+    // stores a copy of the output and lets the callers waiting for the key take it
+    public void put(String key, File output) throws IOException {
+        try {
+            if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("fail to create " + mDirectory);
+            }
+
+            File entry = new File(mDirectory, key);
+            File temp = new File(mDirectory, key + TEMP_SUFFIX);
+            copy(output, temp);
+            if(!temp.renameTo(entry)) {
+                temp.delete();
+                throw new IOException("fail to store " + entry);
+            }
+        } finally {
+            release(key);
+        }
+
+        trim();
+    }
+
+    // gives up the key after a failed export, a waiting caller exports it then
+    public synchronized void release(String key) {
+        mInFlight.remove(key);
+        notifyAll();
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public synchronized void trim() {
+        File[] entries = mDirectory.listFiles();
+        if(entries == null) {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : l > r ? -1 : 0;
+            }
+        });
+
+        long size = 0;
+        for(File entry: entries) {
+            String name = entry.getName();
+            if(mInFlight.contains(name.endsWith(TEMP_SUFFIX) ? name.substring(0, name.length() - TEMP_SUFFIX.length()) : name)) {
+                continue;
+            }
+
+            size += entry.length();
+            if(size > mMaxBytes) {
+                Log.d(TAG, "evict " + entry.getName());
+                entry.delete();
+            }
+        }
+    }
+
+    public static void copy(File source, File destination) throws IOException {
+        InputStream inputStream = new FileInputStream(source);
+        try {
+            OutputStream outputStream = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while((read = inputStream.read(buffer)) > 0) {
+                    outputStream.write(buffer, 0, read);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8")));
+        } catch(NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for(byte b: bytes) {
+            builder.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+
+        return builder.toString();
+    }
+}
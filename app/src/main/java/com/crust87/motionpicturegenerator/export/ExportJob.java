@@ -0,0 +1,416 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import com.crust87.motionpicturegenerator.mp4.SampleIndex;
+import com.crust87.motionpicturegenerator.mp4.SampleIndexCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One export of a range of a source video, and the timing of its run.
+ * <p>
+ * The source is a path or a content uri, it is opened through a {@link SourceDescriptor} for the
+ * length of the run. With an {@link ExportCache} on the queue, an output made before from the same
+ * source and settings is copied instead of exported again.
+ * <p>
+ * A job may cover several ranges of the source, each with an output of its own. They are re-encoded
+ * to mp4 by a {@link MultiRangeEncoder} that decodes the source once for all of them.
+ */
+public class ExportJob {
+
+    private static final String TAG = "ExportJob";
+
+    public static final int STATE_QUEUED = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+    private static final String DIRECTORY_PREFIX = "job_";
+
+    // Attributes
+    private final int mId;
+    private final String mInputPath;
+    private final long mStartUs;
+    private final long mEndUs;
+    private final String mOutputPath;
+    private final long[] mRangesUs;			// start and end of every range
+    private final String[] mOutputPaths;		// output of every range
+    private final boolean mSmartCut;
+    private final EncoderProfile mEncoderProfile;
+    private final MotionPictureOptions mOptions;
+
+    // Working Variables
+    private volatile int mState;
+    private volatile long mQueuedAt;
+    private volatile long mStartedAt;
+    private volatile long mFinishedAt;
+    private volatile int mThreads;
+    private volatile IOException mError;
+    private volatile boolean isCached;			// the output was copied from the export cache
+    private final FFmpegProgressParser mProgressParser;
+    private final FFmpegProgress mParsedProgress;		// worker thread only
+    private final FFmpegProgress mPendingProgress;		// guarded by itself
+    private final FFmpegProgress mProgress;				// main thread only
+    private boolean isProgressDirty;
+
+    // Constructors
+    public ExportJob(String inputPath, long startUs, long endUs, String outputPath, boolean smartCut,
+                     EncoderProfile encoderProfile, MotionPictureOptions options) {
+        this(sNextId.getAndIncrement(), inputPath, new long[] {startUs, endUs}, new String[] {outputPath}, smartCut,
+                encoderProfile, options);
+    }
+
+    // ranges sorted by start, one output path per range, several ranges are exported to mp4 only
+    public ExportJob(String inputPath, long[] rangesUs, String[] outputPaths, EncoderProfile encoderProfile,
+                     MotionPictureOptions options) {
+        this(sNextId.getAndIncrement(), inputPath, rangesUs, outputPaths, false, encoderProfile, options);
+    }
+
+    // restore a job with the id it was journaled with
+    /* package */ ExportJob(int id, String inputPath, long[] rangesUs, String[] outputPaths, boolean smartCut,
+                            EncoderProfile encoderProfile, MotionPictureOptions options) {
+        if(rangesUs.length < 2 || rangesUs.length != outputPaths.length * 2) {
+            throw new IllegalArgumentException("every range needs a start, an end and an output");
+        }
+        if(outputPaths.length > 1 && options.isAnimated()) {
+            throw new IllegalArgumentException("several ranges are exported to mp4 only");
+        }
+
+        long endUs = 0;
+        for(int i = 1; i < rangesUs.length; i += 2) {
+            endUs = Math.max(endUs, rangesUs[i]);
+        }
+
+        mId = id;
+        mInputPath = inputPath;
+        mStartUs = rangesUs[0];
+        mEndUs = endUs;
+        mOutputPath = outputPaths[0];
+        mRangesUs = rangesUs;
+        mOutputPaths = outputPaths;
+        mSmartCut = smartCut;
+        mEncoderProfile = encoderProfile;
+        mOptions = options;
+        mState = STATE_QUEUED;
+        mQueuedAt = System.currentTimeMillis();
+        mProgressParser = new FFmpegProgressParser(endUs - mStartUs);
+        mParsedProgress = new FFmpegProgress();
+        mPendingProgress = new FFmpegProgress();
+        mProgress = new FFmpegProgress();
+    }
+
+    // make sure new jobs never reuse the id of a restored one
+    /* package */ static void reserveId(int id) {
+        int next;
+        do {
+            next = sNextId.get();
+            if(next > id) {
+                return;
+            }
+        } while(!sNextId.compareAndSet(next, id + 1));
+    }
+
+    /* package */ void run(ExportQueue queue, FFmpegExecutor executor,
+                           FFmpegExecutor.OnReadProcessLineListener listener) throws IOException {
+        int threads = queue.getThreadsPerJob();
+        mThreads = threads;
+        mState = STATE_RUNNING;
+        mStartedAt = System.currentTimeMillis();
+
+        File jobDirectory = new File(queue.getWorkDirectory(), DIRECTORY_PREFIX + mId);
+        SourceDescriptor source = null;
+        ExportCache cache = queue.getExportCache();
+        String cacheKey = null;
+        try {
+            if(!jobDirectory.isDirectory() && !jobDirectory.mkdirs()) {
+                throw new IOException("fail to create " + jobDirectory);
+            }
+
+            source = SourceDescriptor.open(queue.getContentResolver(), mInputPath);
+            String inputPath = source.getPath();
+
+            String key = cache != null && !isMultiRange() ? getCacheKey(source) : null;
+            if(key != null) {
+                File cached = acquire(cache, key);
+                if(cached != null) {
+                    ExportCache.copy(cached, new File(mOutputPath));
+                    isCached = true;
+                    mState = STATE_DONE;
+                    return;
+                }
+                cacheKey = key;
+            }
+
+            if(mOptions.isAnimated()) {
+                MotionPictureEncoder encoder = new MotionPictureEncoder(executor, queue.getPaletteCache());
+                encoder.setEncoderProfile(mEncoderProfile.withThreads(threads));
+                encoder.setSourceKey(source.getKey());
+                if(queue.getFramePool() != null) {
+                    encoder.setFramePool(queue.getBinary(), queue.getFramePool(), queue.getFramePoolSize());
+                }
+                encoder.setOnReadProcessLineListener(listener);
+                encoder.setProgressParser(mProgressParser);
+                encoder.encode(inputPath, mStartUs, mEndUs, mOptions, mOutputPath);
+            } else if(isMultiRange()) {
+                MultiRangeEncoder encoder = new MultiRangeEncoder(executor);
+                encoder.setEncoderProfile(mEncoderProfile);
+                encoder.setOnReadProcessLineListener(listener);
+                encoder.setProgressParser(mProgressParser);
+
+                SampleIndex sampleIndex = loadSampleIndex(source);
+                encoder.setSampleIndex(sampleIndex);
+                if(sampleIndex != null) {
+                    int rotation = sampleIndex.getRotation();
+                    encoder.setVideoFilter(mOptions.getVideoFilter(rotation), rotation);
+                } else {
+                    encoder.setVideoFilter(mOptions.getVideoFilter(0), -1);
+                }
+                encoder.encode(inputPath, mRangesUs, mOutputPaths, queue.getCoresPerRunningJob());
+            } else {
+                SmartCutter smartCutter = new SmartCutter(executor, jobDirectory);
+                smartCutter.setEncoderProfile(mEncoderProfile.withThreads(threads));
+                smartCutter.setOnReadProcessLineListener(listener);
+                smartCutter.setProgressParser(mProgressParser);
+                if(queue.getBinary() != null) {
+                    smartCutter.setParallelEncoding(queue.getBinary(), queue.getCoresPerRunningJob());
+                }
+
+                if(mOptions.isReframed()) {
+                    // copied GOPs would keep every source pixel, so a crop or downscale re-encodes the range
+                    SampleIndex sampleIndex = loadSampleIndex(source);
+                    smartCutter.setSampleIndex(sampleIndex);
+                    if(sampleIndex != null) {
+                        int rotation = sampleIndex.getRotation();
+                        smartCutter.setVideoFilter(mOptions.getVideoFilter(rotation), rotation);
+                    } else {
+                        smartCutter.setVideoFilter(mOptions.getVideoFilter(0), -1);
+                    }
+                    smartCutter.encode(inputPath, mStartUs, mEndUs, mOutputPath);
+                } else if(mSmartCut) {
+                    smartCutter.setSampleIndex(loadSampleIndex(source));
+                    smartCutter.cut(inputPath, mStartUs, mEndUs, mOutputPath);
+                } else {
+                    smartCutter.setSampleIndex(loadSampleIndex(source));
+                    smartCutter.encode(inputPath, mStartUs, mEndUs, mOutputPath);
+                }
+            }
+
+            for(String outputPath: mOutputPaths) {
+                File output = new File(outputPath);
+                if(!output.exists() || output.length() == 0) {
+                    throw new IOException("no output written to " + outputPath);
+                }
+            }
+
+            mState = STATE_DONE;
+
+            if(cacheKey != null) {
+                try {
+                    cache.put(cacheKey, new File(mOutputPath));
+                } catch(IOException e) {
+                    Log.w(TAG, "fail to cache " + mOutputPath, e);
+                }
+                cacheKey = null;
+            }
+        } catch(IOException e) {
+            mError = e;
+            mState = STATE_FAILED;
+            throw e;
+        } catch(RuntimeException e) {
+            // fail the job rather than the worker, a crash would leave it in the journal to replay forever
+            mError = new IOException("job " + mId + " failed", e);
+            mState = STATE_FAILED;
+            throw mError;
+        } finally {
+            mFinishedAt = System.currentTimeMillis();
+            // the job leaves the journal either way, only a killed process keeps its pieces to resume
+            deleteRecursively(jobDirectory);
+            if(cacheKey != null) {
+                cache.release(cacheKey);
+            }
+            if(source != null) {
+                source.close();
+            }
+        }
+    }
+
+    // called with every ffmpeg line on the worker, returns true if it carried new progress
+    /* package */ boolean onProcessLine(String line) {
+        if(!mProgressParser.parse(line, mParsedProgress)) {
+            return false;
+        }
+
+        synchronized(mPendingProgress) {
+            mPendingProgress.copyFrom(mParsedProgress);
+            isProgressDirty = true;
+        }
+
+        return true;
+    }
+
+    // moves the latest parsed progress to the one handed to the ui, returns false if nothing changed
+    /* package */ boolean publishProgress() {
+        synchronized(mPendingProgress) {
+            if(!isProgressDirty) {
+                return false;
+            }
+
+            mProgress.copyFrom(mPendingProgress);
+            isProgressDirty = false;
+        }
+
+        return true;
+    }
+
+    // null if the source can not be fingerprinted, a pipe can not seek
+    private String getCacheKey(SourceDescriptor source) {
+        try {
+            return ExportCache.getKey(source.getFingerprint(), this);
+        } catch(IOException e) {
+            Log.w(TAG, "export of " + mInputPath + " is not cached", e);
+            return null;
+        }
+    }
+
+    // waits while an identical job runs, then takes its output
+    // drops the directories of jobs that are not in the journal, a new job reusing their id would pick up their pieces
+    /* package */ static void deleteStaleDirectories(File workDirectory, List<ExportJob> jobs) {
+        File[] files = workDirectory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        for(ExportJob job: jobs) {
+            names.add(DIRECTORY_PREFIX + job.getId());
+        }
+
+        for(File file: files) {
+            if(file.getName().startsWith(DIRECTORY_PREFIX) && !names.contains(file.getName())) {
+                deleteRecursively(file);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if(files != null) {
+            for(File child: files) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    private static File acquire(ExportCache cache, String key) throws IOException {
+        try {
+            return cache.acquire(key);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for an identical export");
+        }
+    }
+
+    private SampleIndex loadSampleIndex(SourceDescriptor source) {
+        try {
+            return SampleIndexCache.get(source.getPath(), source.getKey());
+        } catch(IOException e) {
+            Log.d(TAG, "no sample index, probe keyframes with ffmpeg");
+            return null;
+        }
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    // path or content uri of the source
+    public String getInputPath() {
+        return mInputPath;
+    }
+
+    public long getStartUs() {
+        return mStartUs;
+    }
+
+    public long getEndUs() {
+        return mEndUs;
+    }
+
+    // output of the first range
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    public long[] getRangesUs() {
+        return mRangesUs;
+    }
+
+    public String[] getOutputPaths() {
+        return mOutputPaths;
+    }
+
+    public boolean isMultiRange() {
+        return mOutputPaths.length > 1;
+    }
+
+    public boolean isSmartCut() {
+        return mSmartCut;
+    }
+
+    public EncoderProfile getEncoderProfile() {
+        return mEncoderProfile;
+    }
+
+    public MotionPictureOptions getOptions() {
+        return mOptions;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public IOException getError() {
+        return mError;
+    }
+
+    public boolean isCached() {
+        return isCached;
+    }
+
+    // progress as of the last delivery, read it on the main thread
+    public FFmpegProgress getProgress() {
+        return mProgress;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    // time spent waiting for a worker
+    public long getWaitMs() {
+        return (mStartedAt > 0 ? mStartedAt : System.currentTimeMillis()) - mQueuedAt;
+    }
+
+    public long getElapsedMs() {
+        if(mStartedAt == 0) {
+            return 0;
+        }
+
+        return (mFinishedAt > 0 ? mFinishedAt : System.currentTimeMillis()) - mStartedAt;
+    }
+
+    // exported media seconds per wall clock second, 1.0 is real time
+    public float getSpeed() {
+        long elapsedMs = getElapsedMs();
+        return elapsedMs > 0 ? (mEndUs - mStartUs) / 1000f / elapsedMs : 0;
+    }
+}
@@ -0,0 +1,232 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk record of the export jobs that have not finished yet.
+ * <p>
+ * Jobs are written when they are queued and dropped when they finish, so whatever is left in the
+ * journal after process death is exactly the work that has to be restarted. The file is replaced
+ * through a rename, a crash while writing leaves the previous journal intact.
+ */
+public class ExportJournal {
+
+    private static final String TAG = "ExportJournal";
+
+    // Attributes
+    private final File mFile;
+    private final Map<Integer, JSONObject> mEntries;
+
+    // Constructors
+    public ExportJournal(File file) {
+        mFile = file;
+        mEntries = new LinkedHashMap<>();
+    }
+
+    public synchronized List<ExportJob> load() {
+        mEntries.clear();
+        List<ExportJob> jobs = new ArrayList<>();
+        if(!mFile.exists()) {
+            return jobs;
+        }
+
+        boolean isDropped = false;
+        try {
+            JSONArray array = new JSONArray(readFile(mFile));
+            for(int i = 0; i < array.length(); i++) {
+                try {
+                    JSONObject entry = array.getJSONObject(i);
+                    ExportJob job = fromJson(entry);
+                    ExportJob.reserveId(job.getId());
+                    mEntries.put(job.getId(), entry);
+                    jobs.add(job);
+                } catch(JSONException | RuntimeException e) {
+                    // one bad entry would otherwise fail every start of the service
+                    Log.e(TAG, "fail to read journal entry " + i + ", drop it", e);
+                    isDropped = true;
+                }
+            }
+        } catch(IOException | JSONException e) {
+            Log.e(TAG, "fail to read journal, drop it", e);
+            mEntries.clear();
+            jobs.clear();
+            mFile.delete();
+        }
+
+        if(isDropped) {
+            try {
+                write();
+            } catch(IOException e) {
+                Log.e(TAG, "fail to rewrite journal", e);
+            }
+        }
+
+        return jobs;
+    }
+
+    public synchronized void put(ExportJob job) {
+        try {
+            mEntries.put(job.getId(), toJson(job));
+            write();
+        } catch(JSONException | IOException e) {
+            Log.e(TAG, "fail to journal job " + job.getId(), e);
+        }
+    }
+
+    public synchronized void remove(ExportJob job) {
+        if(mEntries.remove(job.getId()) == null) {
+            return;
+        }
+
+        try {
+            write();
+        } catch(IOException e) {
+            Log.e(TAG, "fail to remove job " + job.getId(), e);
+        }
+    }
+
+    private void write() throws IOException {
+        JSONArray array = new JSONArray();
+        for(JSONObject entry: mEntries.values()) {
+            array.put(entry);
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(temp);
+        try {
+            outputStream.write(array.toString().getBytes("UTF-8"));
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+
+        if(!temp.renameTo(mFile)) {
+            throw new IOException("fail to replace " + mFile);
+        }
+    }
+
+    private static JSONObject toJson(ExportJob job) throws JSONException {
+        EncoderProfile encoderProfile = job.getEncoderProfile();
+
+        JSONObject entry = new JSONObject();
+        entry.put("id", job.getId());
+        entry.put("input", job.getInputPath());
+        entry.put("start_us", job.getStartUs());
+        entry.put("end_us", job.getEndUs());
+        entry.put("output", job.getOutputPath());
+        if(job.isMultiRange()) {
+            JSONArray ranges = new JSONArray();
+            for(long rangeUs: job.getRangesUs()) {
+                ranges.put(rangeUs);
+            }
+            entry.put("ranges_us", ranges);
+
+            JSONArray outputs = new JSONArray();
+            for(String outputPath: job.getOutputPaths()) {
+                outputs.put(outputPath);
+            }
+            entry.put("outputs", outputs);
+        }
+        entry.put("smart_cut", job.isSmartCut());
+        entry.put("codec", encoderProfile.getCodec());
+        entry.putOpt("profile", encoderProfile.getProfile());
+        entry.putOpt("level", encoderProfile.getLevel());
+        entry.putOpt("preset", encoderProfile.getPreset());
+        entry.put("crf", encoderProfile.getCrf());
+        entry.putOpt("bitrate", encoderProfile.getBitrate());
+
+        MotionPictureOptions options = job.getOptions();
+        entry.put("format", options.getFormat());
+        entry.put("fps", options.getFps());
+        entry.put("width", options.getWidth());
+        entry.put("loop_count", options.getLoopCount());
+        entry.put("dither", options.getDither());
+
+        CropRegion crop = options.getCrop();
+        if(!crop.isFull()) {
+            JSONArray region = new JSONArray();
+            region.put(crop.getLeft());
+            region.put(crop.getTop());
+            region.put(crop.getRight());
+            region.put(crop.getBottom());
+            entry.put("crop", region);
+        }
+
+        return entry;
+    }
+
+    private static ExportJob fromJson(JSONObject entry) throws JSONException {
+        EncoderProfile encoderProfile = new EncoderProfile(entry.getString("codec"), optString(entry, "profile"),
+                optString(entry, "level"), optString(entry, "preset"), entry.optInt("crf", -1),
+                optString(entry, "bitrate"), 0);
+        MotionPictureOptions options = new MotionPictureOptions(entry.optInt("format", MotionPictureOptions.FORMAT_MP4),
+                entry.optInt("fps"), entry.optInt("width"), entry.optInt("loop_count"),
+                entry.optString("dither", MotionPictureOptions.DITHER_SIERRA), readCrop(entry));
+
+        long[] rangesUs = new long[] {entry.getLong("start_us"), entry.getLong("end_us")};
+        String[] outputPaths = new String[] {entry.getString("output")};
+        JSONArray ranges = entry.optJSONArray("ranges_us");
+        JSONArray outputs = entry.optJSONArray("outputs");
+        if(ranges != null && outputs != null) {
+            rangesUs = new long[ranges.length()];
+            for(int i = 0; i < rangesUs.length; i++) {
+                rangesUs[i] = ranges.getLong(i);
+            }
+
+            outputPaths = new String[outputs.length()];
+            for(int i = 0; i < outputPaths.length; i++) {
+                outputPaths[i] = outputs.getString(i);
+            }
+        }
+
+        return new ExportJob(entry.getInt("id"), entry.getString("input"), rangesUs, outputPaths,
+                entry.getBoolean("smart_cut"), encoderProfile, options);
+    }
+
+    private static CropRegion readCrop(JSONObject entry) throws JSONException {
+        JSONArray region = entry.optJSONArray("crop");
+        if(region == null) {
+            return CropRegion.FULL;
+        }
+
+        return new CropRegion((float) region.getDouble(0), (float) region.getDouble(1),
+                (float) region.getDouble(2), (float) region.getDouble(3));
+    }
+
+    // optString turns a missing value into an empty string
+    private static String optString(JSONObject entry, String name) {
+        return entry.isNull(name) ? null : entry.optString(name);
+    }
+
+    // whole file as UTF-8, the journal and the device profile are small
+    /* package */ static String readFile(File file) throws IOException {
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while((read = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, read);
+            }
+
+            return outputStream.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs export jobs on a bounded number of workers, each with its own ffmpeg process.
+ * <p>
+ * Available cores are split between the workers and every job is started with its share through
+ * -threads and -filter_threads, so concurrent processes do not oversubscribe the CPU while one of
+ * them waits on I/O. Listener callbacks are delivered on the main thread.
+ * <p>
+ * ffmpeg output is parsed on the worker into the job's {@link FFmpegProgress}. Progress of all
+ * running jobs is handed to the main thread at most once per display frame, however fast ffmpeg
+ * prints.
+ */
+public class ExportQueue {
+
+    private static final String TAG = "ExportQueue";
+
+    private static final int MAX_WORKERS = 3;
+    private static final long FRAME_INTERVAL_MS = 16;
+    private static final int MIN_FRAME_POOL_CORES = 4;		// below this ffmpeg's own gif encoder is faster
+
+    // Components
+    private final ThreadPoolExecutor mThreadPool;
+    private final ExecutorFactory mExecutorFactory;
+    private final Handler mHandler;
+    private final PaletteCache mPaletteCache;
+    private final ThreadPoolExecutor mFramePool;
+    private FFmpegBinary mBinary;
+    private ContentResolver mContentResolver;
+    private ExportCache mExportCache;
+
+    // Event Listener
+    private volatile OnExportListener mOnExportListener;
+
+    // Attributes
+    private final File mWorkDirectory;
+    private final int mCores;
+    private final int mWorkerCount;
+    private final int mThreadsPerJob;
+    private final int mFramePoolSize;
+
+    // Working Variables
+    private final AtomicInteger mPendingCount;
+    private final AtomicInteger mRunningCount;
+    private final CopyOnWriteArrayList<ExportJob> mRunningJobs;
+    private final AtomicBoolean isProgressScheduled;
+    private Object mFrameCallback;		// Choreographer.FrameCallback, created on the main thread
+
+    // Constructors
+    public ExportQueue(ExecutorFactory executorFactory, File workDirectory) {
+        this(executorFactory, workDirectory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ExportQueue(ExecutorFactory executorFactory, File workDirectory, int cores) {
+        mExecutorFactory = executorFactory;
+        mWorkDirectory = workDirectory;
+        mPaletteCache = new PaletteCache(new File(workDirectory, "palettes"));
+        mCores = cores;
+        mWorkerCount = Math.max(1, Math.min(MAX_WORKERS, cores / 2));
+        mThreadsPerJob = Math.max(1, cores / mWorkerCount);
+        mHandler = new Handler(Looper.getMainLooper());
+        mPendingCount = new AtomicInteger();
+        mRunningCount = new AtomicInteger();
+        mRunningJobs = new CopyOnWriteArrayList<>();
+        isProgressScheduled = new AtomicBoolean();
+
+        mThreadPool = new ThreadPoolExecutor(mWorkerCount, mWorkerCount, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ExportWorker #" + mCount.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        mThreadPool.allowCoreThreadTimeOut(true);
+
+        // shared by all jobs encoding gif frames in process, one thread per core
+        mFramePoolSize = cores;
+        mFramePool = new ThreadPoolExecutor(mFramePoolSize, mFramePoolSize, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FrameWorker #" + mCount.getAndIncrement());
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }
+        });
+        mFramePool.allowCoreThreadTimeOut(true);
+
+        Log.d(TAG, "workers " + mWorkerCount + ", threads per job " + mThreadsPerJob);
+    }
+
+    public void enqueue(final ExportJob job) {
+        mPendingCount.incrementAndGet();
+        notifyQueueChanged();
+
+        mThreadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPendingCount.decrementAndGet();
+                mRunningCount.incrementAndGet();
+                mRunningJobs.add(job);
+                notifyQueueChanged();
+
+                try {
+                    runJob(job);
+                } finally {
+                    mRunningJobs.remove(job);
+
+                    // report the job before the empty queue, listeners may shut down on the latter
+                    notifyJobFinished(job);
+                    mRunningCount.decrementAndGet();
+                    notifyQueueChanged();
+                }
+            }
+        });
+    }
+
+    // benchmarks the encoder on a worker, jobs queued meanwhile use the tuner's current choice
+    public void calibrate(final EncoderTuner tuner) {
+        mThreadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tuner.calibrate(mExecutorFactory.create(), new File(mWorkDirectory, "calibration"), mThreadsPerJob);
+                } catch(IOException e) {
+                    Log.e(TAG, "calibration failed", e);
+                }
+            }
+        });
+    }
+
+    private void runJob(final ExportJob job) {
+        try {
+            job.run(this, mExecutorFactory.create(), new FFmpegExecutor.OnReadProcessLineListener() {
+                @Override
+                public void onReadProcessLine(String line) {
+                    if(job.onProcessLine(line) && isProgressScheduled.compareAndSet(false, true)) {
+                        mHandler.post(mScheduleProgress);
+                    }
+                }
+            });
+
+            Log.d(TAG, "job " + job.getId() + " done in " + job.getElapsedMs() + "ms, waited " + job.getWaitMs()
+                    + "ms, speed " + job.getSpeed() + "x with " + job.getThreads() + " threads"
+                    + (job.isCached() ? ", from cache" : ""));
+        } catch(IOException | RuntimeException e) {
+            Log.e(TAG, "job " + job.getId() + " failed", e);
+        }
+    }
+
+    private void notifyQueueChanged() {
+        final int pending = mPendingCount.get();
+        final int running = mRunningCount.get();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mOnExportListener != null) {
+                    mOnExportListener.onQueueChanged(pending, running);
+                }
+            }
+        });
+    }
+
+    // runs on the main thread, waits for the next vsync where Choreographer is available
+    private final Runnable mScheduleProgress = new Runnable() {
+        @Override
+        public void run() {
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                postFrameCallback();
+            } else {
+                mHandler.postDelayed(mDeliverProgress, FRAME_INTERVAL_MS);
+            }
+        }
+    };
+
+    private final Runnable mDeliverProgress = new Runnable() {
+        @Override
+        public void run() {
+            isProgressScheduled.set(false);
+
+            OnExportListener listener = mOnExportListener;
+            for(ExportJob job: mRunningJobs) {
+                if(job.publishProgress() && listener != null) {
+                    listener.onJobProgress(job, job.getProgress());
+                }
+            }
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if(mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mDeliverProgress.run();
+                }
+            };
+        }
+
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    private void notifyJobFinished(final ExportJob job) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(mOnExportListener != null) {
+                    mOnExportListener.onJobFinished(job);
+                }
+            }
+        });
+    }
+
+    // deletes the work left by jobs that will not run again, call it before the restored jobs are queued
+    public void deleteStaleWork(List<ExportJob> restoredJobs) {
+        ExportJob.deleteStaleDirectories(mWorkDirectory, restoredJobs);
+    }
+
+    /* package */ File getWorkDirectory() {
+        return mWorkDirectory;
+    }
+
+    /* package */ PaletteCache getPaletteCache() {
+        return mPaletteCache;
+    }
+
+    /* package */ ContentResolver getContentResolver() {
+        return mContentResolver;
+    }
+
+    /* package */ ExportCache getExportCache() {
+        return mExportCache;
+    }
+
+    /* package */ FFmpegBinary getBinary() {
+        return mBinary;
+    }
+
+    // null if gifs should be left to ffmpeg
+    /* package */ ExecutorService getFramePool() {
+        return mBinary != null && mFramePoolSize >= MIN_FRAME_POOL_CORES ? mFramePool : null;
+    }
+
+    /* package */ int getFramePoolSize() {
+        return mFramePoolSize;
+    }
+
+    // binary started directly for pipelines reading frames from ffmpeg
+    public void setBinary(FFmpegBinary binary) {
+        mBinary = binary;
+    }
+
+    // opens sources given as content uris
+    public void setContentResolver(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    // finished outputs are reused from the cache, null exports every job
+    public void setExportCache(ExportCache exportCache) {
+        mExportCache = exportCache;
+    }
+
+    public int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    public int getRunningCount() {
+        return mRunningCount.get();
+    }
+
+    public int getWorkerCount() {
+        return mWorkerCount;
+    }
+
+    public int getThreadsPerJob() {
+        return mThreadsPerJob;
+    }
+
+    // cores a job starting now may keep busy, all of them when it runs alone
+    public int getCoresPerRunningJob() {
+        return Math.max(mThreadsPerJob, mCores / Math.max(1, mRunningCount.get()));
+    }
+
+    public void setOnExportListener(OnExportListener onExportListener) {
+        mOnExportListener = onExportListener;
+    }
+
+    public void shutdown() {
+        mThreadPool.shutdown();
+        mFramePool.shutdown();
+    }
+
+    // creates an executor for every job, executors keep per command state and can not be shared
+    public interface ExecutorFactory {
+        FFmpegExecutor create() throws IOException;
+    }
+
+    public interface OnExportListener {
+        void onQueueChanged(int pendingCount, int runningCount);
+        // progress is reused for the job, copy what has to outlive the callback
+        void onJobProgress(ExportJob job, FFmpegProgress progress);
+        void onJobFinished(ExportJob job);
+    }
+}
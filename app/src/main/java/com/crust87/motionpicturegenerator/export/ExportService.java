@@ -0,0 +1,335 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.annotation.TargetApi;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.UriPermission;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.crust87.motionpicturegenerator.MainActivity;
+import com.crust87.motionpicturegenerator.R;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Long-lived owner of the {@link ExportQueue}.
+ * <p>
+ * Exports keep running in the foreground while the activity is rotated, backgrounded or
+ * destroyed. Every queued job is written to an {@link ExportJournal}, and jobs left in it by a
+ * killed process are queued again when the service is recreated. Activities bind to reattach to
+ * the running jobs.
+ */
+public class ExportService extends Service implements ExportQueue.OnExportListener {
+
+    private static final String TAG = "ExportService";
+
+    public static final String ACTION_ENQUEUE = "com.crust87.motionpicturegenerator.action.ENQUEUE";
+    public static final String EXTRA_INPUT_PATH = "input_path";
+    public static final String EXTRA_START_US = "start_us";
+    public static final String EXTRA_END_US = "end_us";
+    public static final String EXTRA_OUTPUT_PATH = "output_path";
+    public static final String EXTRA_SMART_CUT = "smart_cut";
+    public static final String EXTRA_FORMAT = "format";
+    public static final String EXTRA_FPS = "fps";
+    public static final String EXTRA_WIDTH = "width";
+    public static final String EXTRA_LOOP_COUNT = "loop_count";
+    public static final String EXTRA_DITHER = "dither";
+    public static final String EXTRA_CROP = "crop";
+    public static final String EXTRA_RANGES_US = "ranges_us";
+    public static final String EXTRA_OUTPUT_PATHS = "output_paths";
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final long EXPORT_CACHE_BYTES = 256 * 1024 * 1024;
+
+    // Components
+    private ExportQueue mExportQueue;
+    private ExportJournal mExportJournal;
+    private EncoderTuner mEncoderTuner;
+    private final IBinder mBinder = new LocalBinder();
+
+    // Event Listener
+    private volatile ExportQueue.OnExportListener mOnExportListener;
+
+    // Working Variables
+    private final List<ExportJob> mJobs = new ArrayList<>();
+    private boolean isForeground;
+    private int mPendingCount;
+    private int mRunningCount;
+    private int mNotifiedPercent = -1;
+    private int mLastStartId;			// a start delivered after the queue drained keeps the service alive
+
+    // the input is a path or a content uri, the service is granted to read the latter
+    public static Intent createEnqueueIntent(Context context, String inputPath, long startUs, long endUs,
+                                             String outputPath, boolean smartCut, MotionPictureOptions options) {
+        Intent intent = new Intent(context, ExportService.class);
+        intent.setAction(ACTION_ENQUEUE);
+        intent.putExtra(EXTRA_INPUT_PATH, inputPath);
+        if(SourceDescriptor.isContentUri(inputPath)) {
+            intent.setData(Uri.parse(inputPath));
+            intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        }
+        intent.putExtra(EXTRA_START_US, startUs);
+        intent.putExtra(EXTRA_END_US, endUs);
+        intent.putExtra(EXTRA_OUTPUT_PATH, outputPath);
+        intent.putExtra(EXTRA_SMART_CUT, smartCut);
+        intent.putExtra(EXTRA_FORMAT, options.getFormat());
+        intent.putExtra(EXTRA_FPS, options.getFps());
+        intent.putExtra(EXTRA_WIDTH, options.getWidth());
+        intent.putExtra(EXTRA_LOOP_COUNT, options.getLoopCount());
+        intent.putExtra(EXTRA_DITHER, options.getDither());
+
+        CropRegion crop = options.getCrop();
+        if(!crop.isFull()) {
+            intent.putExtra(EXTRA_CROP, new float[] {crop.getLeft(), crop.getTop(), crop.getRight(), crop.getBottom()});
+        }
+
+        return intent;
+    }
+
+    // several ranges re-encoded to mp4 in one job, start and end of every range sorted by start,
+    // there is no smart cut, every range is re-encoded whatever the single range intents ask for
+    public static Intent createEnqueueIntent(Context context, String inputPath, long[] rangesUs,
+                                             String[] outputPaths, MotionPictureOptions options) {
+        Intent intent = createEnqueueIntent(context, inputPath, rangesUs[0], rangesUs[1], outputPaths[0], false, options);
+        intent.putExtra(EXTRA_RANGES_US, rangesUs);
+        intent.putExtra(EXTRA_OUTPUT_PATHS, outputPaths);
+
+        return intent;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // executors run the installed binary, the install is off the main thread
+        final FFmpegBinary binary = FFmpegBinary.getInstance(this);
+        binary.installAsync();
+        mExportQueue = new ExportQueue(new ExportQueue.ExecutorFactory() {
+            @Override
+            public FFmpegExecutor create() {
+                return new FFmpegExecutor(binary);
+            }
+        }, getCacheDir());
+        mExportQueue.setBinary(binary);
+        mExportQueue.setContentResolver(getContentResolver());
+
+        // exports are large, keep them on external storage when there is one
+        File cacheDirectory = getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir();
+        mExportQueue.setExportCache(new ExportCache(new File(cacheDirectory, "exports"), EXPORT_CACHE_BYTES));
+        mExportQueue.setOnExportListener(this);
+
+        mEncoderTuner = new EncoderTuner(new File(getFilesDir(), "encoder_profile.json"), Build.FINGERPRINT);
+        mEncoderTuner.load();
+        if(!mEncoderTuner.isCalibrated()) {
+            mExportQueue.calibrate(mEncoderTuner);
+        }
+
+        // restart whatever a killed process left behind, finished smart cut pieces are reused
+        mExportJournal = new ExportJournal(new File(getFilesDir(), "export_journal.json"));
+        List<ExportJob> restoredJobs = mExportJournal.load();
+        mExportQueue.deleteStaleWork(restoredJobs);
+        if(!restoredJobs.isEmpty()) {
+            // a service created by bindService alone dies with the last unbind, start it to keep the jobs running
+            startService(new Intent(this, ExportService.class));
+        }
+        for(ExportJob job: restoredJobs) {
+            Log.d(TAG, "restore job " + job.getId());
+            mJobs.add(job);
+            mExportQueue.enqueue(job);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        if(intent != null && ACTION_ENQUEUE.equals(intent.getAction())) {
+            MotionPictureOptions options = new MotionPictureOptions(
+                    intent.getIntExtra(EXTRA_FORMAT, MotionPictureOptions.FORMAT_MP4),
+                    intent.getIntExtra(EXTRA_FPS, 0),
+                    intent.getIntExtra(EXTRA_WIDTH, 0),
+                    intent.getIntExtra(EXTRA_LOOP_COUNT, 0),
+                    intent.getStringExtra(EXTRA_DITHER),
+                    readCrop(intent));
+            if(options.getFormat() == MotionPictureOptions.FORMAT_GIF && options.getDither() == null) {
+                options = options.withDither(mEncoderTuner.chooseDither());
+            }
+
+            boolean smartCut = intent.getBooleanExtra(EXTRA_SMART_CUT, true);
+            ExportJob job;
+            if(intent.hasExtra(EXTRA_RANGES_US)) {
+                job = new ExportJob(intent.getStringExtra(EXTRA_INPUT_PATH),
+                        intent.getLongArrayExtra(EXTRA_RANGES_US),
+                        intent.getStringArrayExtra(EXTRA_OUTPUT_PATHS),
+                        mEncoderTuner.choose(EncoderTuner.TYPE_REENCODE),
+                        options);
+            } else {
+                job = new ExportJob(intent.getStringExtra(EXTRA_INPUT_PATH),
+                        intent.getLongExtra(EXTRA_START_US, 0),
+                        intent.getLongExtra(EXTRA_END_US, 0),
+                        intent.getStringExtra(EXTRA_OUTPUT_PATH),
+                        smartCut,
+                        mEncoderTuner.choose(EncoderTuner.getType(options.getFormat(), smartCut)),
+                        options);
+            }
+            enqueue(job);
+        }
+
+        if(mJobs.isEmpty()) {
+            stopSelf(startId);
+        }
+
+        return START_STICKY;
+    }
+
+    public void enqueue(ExportJob job) {
+        if(isReplayable(job.getInputPath())) {
+            mExportJournal.put(job);
+        } else {
+            Log.d(TAG, "job " + job.getId() + " reads a uri granted to this process only, it is not journaled");
+        }
+        mJobs.add(job);
+        mExportQueue.enqueue(job);
+    }
+
+    // a content uri can be opened again after process death only with a persisted grant
+    private boolean isReplayable(String inputPath) {
+        if(!SourceDescriptor.isContentUri(inputPath)) {
+            return true;
+        }
+
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && hasPersistedGrant(Uri.parse(inputPath));
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean hasPersistedGrant(Uri uri) {
+        for(UriPermission permission: getContentResolver().getPersistedUriPermissions()) {
+            if(permission.isReadPermission() && permission.getUri().equals(uri)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static CropRegion readCrop(Intent intent) {
+        float[] region = intent.getFloatArrayExtra(EXTRA_CROP);
+        if(region == null || region.length != 4) {
+            return CropRegion.FULL;
+        }
+
+        return new CropRegion(region[0], region[1], region[2], region[3]);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        mExportQueue.setOnExportListener(null);
+        mExportQueue.shutdown();
+    }
+
+    // ExportQueue.OnExportListener implementation
+    @Override
+    public void onQueueChanged(int pendingCount, int runningCount) {
+        mPendingCount = pendingCount;
+        mRunningCount = runningCount;
+
+        if(pendingCount + runningCount > 0) {
+            updateNotification();
+        } else if(isForeground) {
+            stopForeground(true);
+            isForeground = false;
+            stopSelfResult(mLastStartId);
+        }
+
+        ExportQueue.OnExportListener listener = mOnExportListener;
+        if(listener != null) {
+            listener.onQueueChanged(pendingCount, runningCount);
+        }
+    }
+
+    @Override
+    public void onJobProgress(ExportJob job, FFmpegProgress progress) {
+        // posting a notification is costly, only do it when the whole percent moves
+        int percent = (int) progress.percent;
+        if(isForeground && percent != mNotifiedPercent) {
+            mNotifiedPercent = percent;
+            updateNotification();
+        }
+
+        ExportQueue.OnExportListener listener = mOnExportListener;
+        if(listener != null) {
+            listener.onJobProgress(job, progress);
+        }
+    }
+
+    @Override
+    public void onJobFinished(ExportJob job) {
+        mNotifiedPercent = -1;
+        mExportJournal.remove(job);
+        mJobs.remove(job);
+
+        ExportQueue.OnExportListener listener = mOnExportListener;
+        if(listener != null) {
+            listener.onJobFinished(job);
+        }
+    }
+
+    private void updateNotification() {
+        Intent intent = new Intent(this, MainActivity.class);
+        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
+                .setSmallIcon(R.drawable.ic_action_crop)
+                .setContentTitle(getString(R.string.application_name))
+                .setContentText(getString(R.string.export_status, mRunningCount, mPendingCount))
+                .setProgress(100, Math.max(0, mNotifiedPercent), mNotifiedPercent < 0)
+                .setContentIntent(pendingIntent)
+                .setOnlyAlertOnce(true)
+                .setOngoing(true);
+
+        startForeground(NOTIFICATION_ID, builder.build());
+        isForeground = true;
+    }
+
+    public List<ExportJob> getJobs() {
+        return new ArrayList<>(mJobs);
+    }
+
+    public int getPendingCount() {
+        return mExportQueue.getPendingCount();
+    }
+
+    public int getRunningCount() {
+        return mExportQueue.getRunningCount();
+    }
+
+    // attach an activity, it gets the current queue state right away
+    public void setOnExportListener(ExportQueue.OnExportListener onExportListener) {
+        mOnExportListener = onExportListener;
+
+        if(onExportListener != null) {
+            onExportListener.onQueueChanged(getPendingCount(), getRunningCount());
+        }
+    }
+
+    public class LocalBinder extends Binder {
+        public ExportService getService() {
+            return ExportService.this;
+        }
+    }
+}
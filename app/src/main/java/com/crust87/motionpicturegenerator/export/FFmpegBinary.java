@@ -0,0 +1,219 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * The bundled ffmpeg installed as an executable of its own.
+ * <p>
+ * Every {@link FFmpegExecutor} and every pipeline reading frames from ffmpeg starts this one file
+ * with a {@link ProcessBuilder}, nothing else copies the binary.
+ * <p>
+ * It is copied out of the {@code ffmpeg} asset of the app once per app version. The CRC32 of the
+ * asset is computed while copying and the copy is checked against it before it replaces the
+ * installed file. A stamp next to it records the version, size, modification time and CRC32 of
+ * the copy, later launches only compare the size and modification time with the stamp and never
+ * read the file. The install runs
+ * in the background, started as early as possible with {@link #installAsync()}, and callers only
+ * wait for it if they need the file before it is done. There is one per process, so the export
+ * service and the activity never install it over each other.
+ */
+public class FFmpegBinary {
+
+    private static final String TAG = "FFmpegBinary";
+
+    private static final String ASSET_NAME = "ffmpeg";
+    private static final String FILE_NAME = "ffmpeg_pipe";
+    private static final String STAMP_NAME = "ffmpeg_pipe.stamp";
+
+    private static FFmpegBinary sInstance;
+
+    // Components
+    private final Context mContext;
+
+    // Working Variables
+    private Future<File> mInstall;
+
+    // Constructors
+    private FFmpegBinary(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    public static synchronized FFmpegBinary getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new FFmpegBinary(context);
+        }
+
+        return sInstance;
+    }
+
+    // starts the install in the background unless it is running or done
+    public synchronized Future<File> installAsync() {
+        if(mInstall == null) {
+            FutureTask<File> install = new FutureTask<>(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return install();
+                }
+            });
+            mInstall = install;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(install);
+        }
+
+        return mInstall;
+    }
+
+    // waits for the install if it is still running
+    public File getFile() throws IOException {
+        Future<File> install = installAsync();
+        try {
+            return install.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while installing ffmpeg");
+        } catch(ExecutionException e) {
+            // let the next caller try again
+            synchronized(this) {
+                if(mInstall == install) {
+                    mInstall = null;
+                }
+            }
+
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    // starts ffmpeg with the arguments, stdout is left to the caller and stderr to the returned process
+    public Process start(List<String> arguments) throws IOException {
+        String[] command = new String[arguments.size() + 1];
+        command[0] = getFile().getAbsolutePath();
+        for(int i = 0; i < arguments.size(); i++) {
+            command[i + 1] = arguments.get(i);
+        }
+
+        return new ProcessBuilder(command).start();
+    }
+
+    private File install() throws IOException {
+        File file = new File(mContext.getFilesDir(), FILE_NAME);
+        File stamp = new File(mContext.getFilesDir(), STAMP_NAME);
+        String version = getAppVersion();
+
+        String[] installed = readStamp(stamp);
+        if(installed != null && installed[0].equals(version) && file.canExecute()
+                && Long.toString(file.length()).equals(installed[1]) && Long.toString(file.lastModified()).equals(installed[2])) {
+            return file;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        stamp.delete();
+
+        File temp = new File(mContext.getFilesDir(), FILE_NAME + ".tmp");
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream inputStream = mContext.getAssets().open(ASSET_NAME);
+        try {
+            OutputStream outputStream = new FileOutputStream(temp);
+            try {
+                int read;
+                while((read = inputStream.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                    outputStream.write(buffer, 0, read);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        // the copy is fresh in the page cache, reading it back is cheap next to a broken binary
+        long checksum = crc.getValue();
+        if(checksum(temp, buffer) != checksum || !temp.setExecutable(true) || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("fail to install " + file);
+        }
+
+        writeStamp(stamp, version + ' ' + file.length() + ' ' + file.lastModified() + ' ' + Long.toHexString(checksum));
+        Log.d(TAG, "installed " + file + " in " + (System.currentTimeMillis() - startedAt) + "ms");
+
+        return file;
+    }
+
+    // an update of the app may bring another binary of the same size
+    private String getAppVersion() {
+        try {
+            PackageInfo info = mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0);
+            return info.versionCode + "-" + info.lastUpdateTime;
+        } catch(PackageManager.NameNotFoundException e) {
+            return "unknown";
+        }
+    }
+
+    private static long checksum(File file, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            int read;
+            while((read = inputStream.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return crc.getValue();
+    }
+
+    // version, size, modification time and CRC32, null if there is no valid stamp
+    private static String[] readStamp(File stamp) {
+        if(!stamp.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] content = new byte[(int) stamp.length()];
+            InputStream inputStream = new FileInputStream(stamp);
+            try {
+                int offset = 0;
+                int read;
+                while(offset < content.length && (read = inputStream.read(content, offset, content.length - offset)) > 0) {
+                    offset += read;
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            String[] fields = new String(content, "UTF-8").trim().split(" ");
+            return fields.length == 4 ? fields : null;
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeStamp(File stamp, String content) throws IOException {
+        OutputStream outputStream = new FileOutputStream(stamp);
+        try {
+            outputStream.write(content.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs one ffmpeg command at a time on the installed {@link FFmpegBinary}.
+ * <p>
+ * Every executor starts the one installed file, so creating one copies nothing and costs nothing.
+ * It keeps the arguments of the command being built, one per worker.
+ */
+public class FFmpegExecutor {
+
+    // Components
+    private final FFmpegBinary mBinary;
+
+    // Event Listener
+    private OnReadProcessLineListener mOnReadProcessLineListener;
+
+    // Working Variables
+    private final List<String> mArguments;
+
+    // Constructors
+    public FFmpegExecutor(FFmpegBinary binary) {
+        mBinary = binary;
+        mArguments = new ArrayList<>();
+    }
+
+    // starts a new command
+    public void init() {
+        mArguments.clear();
+        mArguments.add("-nostdin");
+    }
+
+    public FFmpegExecutor putCommand(String argument) {
+        mArguments.add(argument);
+        return this;
+    }
+
+    public void setOnReadProcessLineListener(OnReadProcessLineListener onReadProcessLineListener) {
+        mOnReadProcessLineListener = onReadProcessLineListener;
+    }
+
+    // runs the command and passes every stderr line to the listener, fails if ffmpeg does
+    public void executeCommand() throws IOException {
+        Process process = mBinary.start(mArguments);
+        try {
+            process.getOutputStream().close();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(mOnReadProcessLineListener != null) {
+                        mOnReadProcessLineListener.onReadProcessLine(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            int exitCode = process.waitFor();
+            if(exitCode != 0) {
+                throw new IOException("ffmpeg exited with " + exitCode);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running ffmpeg");
+        } finally {
+            process.destroy();
+        }
+    }
+
+    public interface OnReadProcessLineListener {
+        void onReadProcessLine(String line);
+    }
+}
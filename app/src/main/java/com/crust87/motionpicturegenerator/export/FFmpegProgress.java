@@ -0,0 +1,40 @@
+package com.crust87.motionpicturegenerator.export;
+
+/**
+ * Mutable progress of one export, filled in place by {@link FFmpegProgressParser} and copied
+ * between threads without allocating. Values ffmpeg reports as N/A are -1.
+ */
+public class FFmpegProgress {
+
+    public int frame;
+    public float fps;
+    public long sizeKb;
+    public long timeUs;
+    public float bitrateKbps;
+    public float speed;
+    public float percent;
+
+    public FFmpegProgress() {
+        reset();
+    }
+
+    public void reset() {
+        frame = -1;
+        fps = -1;
+        sizeKb = -1;
+        timeUs = -1;
+        bitrateKbps = -1;
+        speed = -1;
+        percent = 0;
+    }
+
+    public void copyFrom(FFmpegProgress progress) {
+        frame = progress.frame;
+        fps = progress.fps;
+        sizeKb = progress.sizeKb;
+        timeUs = progress.timeUs;
+        bitrateKbps = progress.bitrateKbps;
+        speed = progress.speed;
+        percent = progress.percent;
+    }
+}
@@ -0,0 +1,200 @@
+package com.crust87.motionpicturegenerator.export;
+
+/**
+ * Parses ffmpeg status lines such as
+ * <pre>frame=  120 fps= 30 q=28.0 size=     512kB time=00:00:04.00 bitrate=1048.6kbits/s speed=1.2x</pre>
+ * into a {@link FFmpegProgress}, scanning characters in place without splitting, regex or boxing.
+ * <p>
+ * An export may run several ffmpeg commands. Each command maps its own time onto a span of the
+ * whole output with {@link #setSpan(long, long)}, and the reported percent never goes backwards.
+ */
+public class FFmpegProgressParser {
+
+    private static final String KEY_FRAME = "frame=";
+    private static final String KEY_FPS = "fps=";
+    private static final String KEY_SIZE = "size=";
+    private static final String KEY_TIME = "time=";
+    private static final String KEY_BITRATE = "bitrate=";
+    private static final String KEY_SPEED = "speed=";
+
+    // Attributes
+    private long mDurationUs;
+    private long mSpanOffsetUs;
+    private long mSpanDurationUs;
+
+    // Working Variables
+    private int mPosition;			// scan position of the last parsed value
+    private float mMaxPercent;
+
+    public FFmpegProgressParser(long durationUs) {
+        mDurationUs = durationUs;
+        mSpanOffsetUs = 0;
+        mSpanDurationUs = durationUs;
+    }
+
+    // output range covered by the command whose lines are parsed next, a zero duration ignores time
+    public void setSpan(long offsetUs, long durationUs) {
+        mSpanOffsetUs = offsetUs;
+        mSpanDurationUs = durationUs;
+    }
+
+    public void setDurationUs(long durationUs) {
+        mDurationUs = durationUs;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    // returns false if line is not a status line, progress is left untouched then
+    public boolean parse(CharSequence line, FFmpegProgress progress) {
+        // input banners print time= too, status lines always carry size=
+        int time = indexOf(line, KEY_TIME, 0);
+        int size = indexOf(line, KEY_SIZE, 0);
+        if(time < 0 || size < 0) {
+            return false;
+        }
+
+        int index = indexOf(line, KEY_FRAME, 0);
+        progress.frame = index < 0 ? -1 : (int) parseLong(line, index + KEY_FRAME.length());
+
+        index = indexOf(line, KEY_FPS, 0);
+        progress.fps = index < 0 ? -1 : parseFloat(line, index + KEY_FPS.length());
+
+        progress.sizeKb = parseLong(line, size + KEY_SIZE.length());
+
+        progress.timeUs = parseTime(line, time + KEY_TIME.length());
+
+        index = indexOf(line, KEY_BITRATE, 0);
+        progress.bitrateKbps = index < 0 ? -1 : parseFloat(line, index + KEY_BITRATE.length());
+
+        index = indexOf(line, KEY_SPEED, 0);
+        progress.speed = index < 0 ? -1 : parseFloat(line, index + KEY_SPEED.length());
+
+        if(progress.timeUs >= 0 && mSpanDurationUs > 0 && mDurationUs > 0) {
+            long doneUs = mSpanOffsetUs + Math.min(progress.timeUs, mSpanDurationUs);
+            float percent = Math.min(100f, doneUs * 100f / mDurationUs);
+            if(percent > mMaxPercent) {
+                mMaxPercent = percent;
+            }
+        }
+        progress.percent = mMaxPercent;
+
+        return true;
+    }
+
+    private int skipSpaces(CharSequence line, int position) {
+        while(position < line.length() && line.charAt(position) == ' ') {
+            position++;
+        }
+
+        return position;
+    }
+
+    // -1 for N/A or a missing number
+    private long parseLong(CharSequence line, int position) {
+        position = skipSpaces(line, position);
+
+        long value = 0;
+        int start = position;
+        for(; position < line.length(); position++) {
+            char c = line.charAt(position);
+            if(c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+        }
+        mPosition = position;
+
+        return position == start ? -1 : value;
+    }
+
+    private float parseFloat(CharSequence line, int position) {
+        position = skipSpaces(line, position);
+
+        long integer = 0;
+        long fraction = 0;
+        long scale = 1;
+        boolean inFraction = false;
+        int start = position;
+        for(; position < line.length(); position++) {
+            char c = line.charAt(position);
+            if(c == '.' && !inFraction) {
+                inFraction = true;
+            } else if(c >= '0' && c <= '9') {
+                if(inFraction) {
+                    if(scale < 1000000) {
+                        fraction = fraction * 10 + (c - '0');
+                        scale *= 10;
+                    }
+                } else {
+                    integer = integer * 10 + (c - '0');
+                }
+            } else {
+                break;
+            }
+        }
+        mPosition = position;
+
+        return position == start ? -1 : integer + (float) fraction / scale;
+    }
+
+    // HH:MM:SS.cc, older builds print plain seconds
+    private long parseTime(CharSequence line, int position) {
+        position = skipSpaces(line, position);
+
+        boolean negative = position < line.length() && line.charAt(position) == '-';
+        if(negative) {
+            position++;
+        }
+
+        long timeUs = 0;
+        int fields = 0;
+        while(true) {
+            long value = parseLong(line, position);
+            if(value < 0) {
+                return fields == 0 ? -1 : timeUs;
+            }
+
+            position = mPosition;
+            if(position < line.length() && line.charAt(position) == ':') {
+                timeUs = (timeUs + value) * 60;
+                position++;
+                fields++;
+            } else {
+                timeUs = (timeUs + value) * 1000000;
+                if(position < line.length() && line.charAt(position) == '.') {
+                    timeUs += FFmpegTime.parseSeconds(line, position);
+                }
+                break;
+            }
+        }
+
+        return negative ? -timeUs : timeUs;
+    }
+
+    private static boolean startsWith(CharSequence line, int offset, String key) {
+        if(offset + key.length() > line.length()) {
+            return false;
+        }
+
+        for(int i = 0; i < key.length(); i++) {
+            if(line.charAt(offset + i) != key.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int indexOf(CharSequence line, String key, int from) {
+        int last = line.length() - key.length();
+        for(int i = from; i <= last; i++) {
+            if(startsWith(line, i, key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,55 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.util.Locale;
+
+/**
+ * Conversions between microsecond timestamps and the time arguments ffmpeg accepts.
+ */
+public final class FFmpegTime {
+
+    private FFmpegTime() {
+    }
+
+    // format as seconds with microsecond precision, e.g. "12.345678"
+    public static String toSeconds(long timeUs) {
+        long absoluteUs = Math.abs(timeUs);
+        return String.format(Locale.US, "%s%d.%06d", timeUs < 0 ? "-" : "", absoluteUs / 1000000, absoluteUs % 1000000);
+    }
+
+    // parse "12.345678" style seconds starting at offset, stops at first non digit character
+    public static long parseSeconds(CharSequence text, int offset) {
+        long seconds = 0;
+        long fraction = 0;
+        long scale = 1000000;
+        boolean negative = false;
+        boolean inFraction = false;
+
+        int length = text.length();
+        int i = offset;
+        if(i < length && text.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+
+        for(; i < length; i++) {
+            char c = text.charAt(i);
+            if(c == '.' && !inFraction) {
+                inFraction = true;
+            } else if(c >= '0' && c <= '9') {
+                if(inFraction) {
+                    if(scale > 1) {
+                        scale /= 10;
+                        fraction += (c - '0') * scale;
+                    }
+                } else {
+                    seconds = seconds * 10 + (c - '0');
+                }
+            } else {
+                break;
+            }
+        }
+
+        long timeUs = seconds * 1000000 + fraction;
+        return negative ? -timeUs : timeUs;
+    }
+}
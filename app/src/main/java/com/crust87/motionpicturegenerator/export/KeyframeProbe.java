@@ -0,0 +1,76 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Collects keyframe timestamps of a source video by decoding only its keyframes through ffmpeg's
+ * showinfo filter.
+ */
+public class KeyframeProbe implements FFmpegExecutor.OnReadProcessLineListener {
+
+    private static final String PTS_TIME = "pts_time:";
+
+    // Working Variables
+    private long[] mKeyframesUs;
+    private int mCount;
+
+    public KeyframeProbe() {
+        mKeyframesUs = new long[64];
+        mCount = 0;
+    }
+
+    // probe keyframes between startUs and endUs, timestamps are kept absolute with -copyts
+    public void probe(FFmpegExecutor executor, String inputPath, long startUs, long endUs) throws IOException {
+        mCount = 0;
+        long seekUs = Math.max(0, startUs - SmartCutPlan.NUDGE_US);
+
+        executor.init();
+        executor.setOnReadProcessLineListener(this);
+        executor.putCommand("-skip_frame")
+                .putCommand("nokey")
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(seekUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(endUs - seekUs + SmartCutPlan.NUDGE_US))
+                .putCommand("-copyts")
+                .putCommand("-i")
+                .putCommand(inputPath)
+                .putCommand("-an")
+                .putCommand("-sn")
+                .putCommand("-vf")
+                .putCommand("showinfo")
+                .putCommand("-f")
+                .putCommand("null")
+                .putCommand("-")
+                .executeCommand();
+
+        Arrays.sort(mKeyframesUs, 0, mCount);
+    }
+
+    @Override
+    public void onReadProcessLine(String line) {
+        int index = line.indexOf(PTS_TIME);
+        if(index < 0) {
+            return;
+        }
+
+        int offset = index + PTS_TIME.length();
+        while(offset < line.length() && line.charAt(offset) == ' ') {
+            offset++;
+        }
+
+        if(mCount == mKeyframesUs.length) {
+            mKeyframesUs = Arrays.copyOf(mKeyframesUs, mCount * 2);
+        }
+        mKeyframesUs[mCount++] = FFmpegTime.parseSeconds(line, offset);
+    }
+
+    public long[] getKeyframesUs() {
+        return mKeyframesUs;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+}
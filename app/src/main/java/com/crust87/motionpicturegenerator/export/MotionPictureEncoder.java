@@ -0,0 +1,265 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import com.crust87.motionpicturegenerator.gif.GifEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Exports a range of a video as an animated gif or webp.
+ * <p>
+ * Gifs are made in two passes, palettegen computes a palette for the frames and paletteuse maps
+ * the frames onto it. The palette is kept in a {@link PaletteCache}, so the first pass is skipped
+ * when the same frames are exported again.
+ * <p>
+ * With a frame pool set, gifs are instead encoded in process by {@link GifEncoder} from rgba frames
+ * of a {@link RawFramePipe}, which quantizes frames on all cores instead of one.
+ */
+public class MotionPictureEncoder {
+
+    private static final String TAG = "MotionPictureEncoder";
+
+    // Components
+    private FFmpegExecutor mExecutor;
+    private PaletteCache mPaletteCache;
+    private EncoderProfile mEncoderProfile;
+    private FFmpegProgressParser mProgressParser;
+    private FFmpegBinary mBinary;
+    private ExecutorService mFramePool;
+    private int mFramePoolSize;
+
+    // Attributes
+    private String mSourceKey;
+
+    // Event Listener
+    private FFmpegExecutor.OnReadProcessLineListener mOnReadProcessLineListener;
+
+    // Constructors
+    public MotionPictureEncoder(FFmpegExecutor executor, PaletteCache paletteCache) {
+        mExecutor = executor;
+        mPaletteCache = paletteCache;
+        mEncoderProfile = EncoderProfile.DEFAULT;
+    }
+
+    // only the thread count is used, the animated encoders have their own options
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        mEncoderProfile = encoderProfile;
+    }
+
+    public void setProgressParser(FFmpegProgressParser progressParser) {
+        mProgressParser = progressParser;
+    }
+
+    // key of the source from SourceDescriptor, palettes are cached by it
+    public void setSourceKey(String sourceKey) {
+        mSourceKey = sourceKey;
+    }
+
+    // encode gifs in process with frames quantized on the pool
+    public void setFramePool(FFmpegBinary binary, ExecutorService framePool, int framePoolSize) {
+        mBinary = binary;
+        mFramePool = framePool;
+        mFramePoolSize = framePoolSize;
+    }
+
+    public void setOnReadProcessLineListener(FFmpegExecutor.OnReadProcessLineListener onReadProcessLineListener) {
+        mOnReadProcessLineListener = onReadProcessLineListener;
+    }
+
+    public void encode(String inputPath, long startUs, long endUs, MotionPictureOptions options, String outputPath) throws IOException {
+        mExecutor.setOnReadProcessLineListener(mOnReadProcessLineListener);
+
+        switch(options.getFormat()) {
+            case MotionPictureOptions.FORMAT_GIF:
+                if(mFramePool != null) {
+                    encodeGifInProcess(inputPath, startUs, endUs, options, outputPath);
+                } else {
+                    encodeGif(inputPath, startUs, endUs, options, outputPath);
+                }
+                break;
+            case MotionPictureOptions.FORMAT_WEBP:
+                encodeWebp(inputPath, startUs, endUs, options, outputPath);
+                break;
+            default:
+                throw new IllegalArgumentException("not an animated format " + options.getFormat());
+        }
+    }
+
+    private void encodeGif(String inputPath, long startUs, long endUs, MotionPictureOptions options, String outputPath) throws IOException {
+        long durationUs = endUs - startUs;
+        File palette = mPaletteCache.get(mSourceKey != null ? mSourceKey : inputPath, startUs, endUs, options);
+
+        if(palette.exists()) {
+            Log.d(TAG, "reuse palette " + palette.getName());
+            setProgressSpan(durationUs, 0, durationUs);
+        } else {
+            // the analysis pass counts as the first half of the export
+            setProgressSpan(durationUs * 2, 0, durationUs);
+            generatePalette(inputPath, startUs, durationUs, options, palette);
+            setProgressSpan(durationUs * 2, durationUs, durationUs);
+        }
+
+        String filter = options.getFrameFilter() + "[x];[x][1:v]paletteuse=dither=" + options.getDither();
+
+        mExecutor.init();
+        mExecutor.putCommand("-y");
+        mEncoderProfile.putFilterThreadOptions(mExecutor)
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(startUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(durationUs))
+                .putCommand("-i")
+                .putCommand(inputPath)
+                .putCommand("-i")
+                .putCommand(palette.getAbsolutePath())
+                .putCommand("-lavfi")
+                .putCommand(filter)
+                .putCommand("-loop")
+                .putCommand(String.valueOf(toGifLoop(options.getLoopCount())))
+                .putCommand("-an")
+                .putCommand(outputPath)
+                .executeCommand();
+    }
+
+    private void encodeGifInProcess(String inputPath, long startUs, long endUs, MotionPictureOptions options, String outputPath) throws IOException {
+        long durationUs = endUs - startUs;
+        setProgressSpan(durationUs, 0, durationUs);
+
+        // enough buffers for every frame the encoder keeps in flight plus the one being read
+        int poolSize = Math.min(RawFramePipe.MAX_POOL_SIZE, mFramePoolSize * 2 + 2);
+        RawFramePipe pipe = new RawFramePipe(mBinary, poolSize);
+        pipe.setOnReadProcessLineListener(mOnReadProcessLineListener);
+        pipe.start(inputPath, startUs, durationUs, options.getFrameFilter(), RawFramePipe.PIX_FMT_RGBA,
+                mEncoderProfile.getThreads());
+
+        OutputStream outputStream = null;
+        GifEncoder encoder = null;
+        try {
+            outputStream = new BufferedOutputStream(new FileOutputStream(outputPath), 64 * 1024);
+            encoder = new GifEncoder(outputStream, pipe.getWidth(), pipe.getHeight(), mFramePool, mFramePoolSize);
+            encoder.setLoopCount(options.getLoopCount());
+            encoder.setDither(toGifEncoderDither(options.getDither()));
+
+            // gif delays are centiseconds, round the running time so the total stays exact
+            float frameRate = pipe.getFrameRate() > 0 ? pipe.getFrameRate() : options.getFps();
+            RawFrame frame;
+            while((frame = pipe.readFrame()) != null) {
+                int index = frame.getIndex();
+                int delayCs = frameRate > 0
+                        ? Math.round((index + 1) * 100 / frameRate) - Math.round(index * 100 / frameRate)
+                        : 10;
+                encoder.addFrame(frame.getBuffer(), frame.getStride(), Math.max(2, delayCs), frame.getRecycler());
+            }
+
+            if(pipe.waitFor() != 0 || encoder.getFrameCount() == 0) {
+                throw new IOException("ffmpeg failed to decode frames of " + inputPath);
+            }
+            encoder.finish();
+        } catch(IOException e) {
+            if(encoder != null) {
+                encoder.cancel();
+            }
+            throw e;
+        } finally {
+            pipe.close();
+            if(outputStream != null) {
+                outputStream.close();
+            }
+        }
+    }
+
+    private void generatePalette(String inputPath, long startUs, long durationUs, MotionPictureOptions options, File palette) throws IOException {
+        File directory = mPaletteCache.getDirectory();
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("fail to create " + directory);
+        }
+
+        File temp = mPaletteCache.createTempFile(palette);
+        try {
+            mExecutor.init();
+            mExecutor.putCommand("-y");
+            mEncoderProfile.putFilterThreadOptions(mExecutor)
+                    .putCommand("-ss")
+                    .putCommand(FFmpegTime.toSeconds(startUs))
+                    .putCommand("-t")
+                    .putCommand(FFmpegTime.toSeconds(durationUs))
+                    .putCommand("-i")
+                    .putCommand(inputPath)
+                    .putCommand("-vf")
+                    .putCommand(options.getFrameFilter() + ",palettegen=stats_mode=diff")
+                    .putCommand("-an")
+                    .putCommand(temp.getAbsolutePath())
+                    .executeCommand();
+
+            if(!temp.exists() || temp.length() == 0 || !temp.renameTo(palette)) {
+                throw new IOException("fail to generate palette for " + inputPath);
+            }
+        } finally {
+            temp.delete();
+        }
+
+        mPaletteCache.trim();
+    }
+
+    private void encodeWebp(String inputPath, long startUs, long endUs, MotionPictureOptions options, String outputPath) throws IOException {
+        long durationUs = endUs - startUs;
+        setProgressSpan(durationUs, 0, durationUs);
+
+        mExecutor.init();
+        mExecutor.putCommand("-y");
+        mEncoderProfile.putFilterThreadOptions(mExecutor)
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(startUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(durationUs))
+                .putCommand("-i")
+                .putCommand(inputPath)
+                .putCommand("-vf")
+                .putCommand(options.getFrameFilter());
+        getWebpProfile().putVideoOptions(mExecutor)
+                .putCommand("-loop")
+                .putCommand(String.valueOf(options.getLoopCount()))
+                .putCommand("-an")
+                .putCommand(outputPath)
+                .executeCommand();
+    }
+
+    // the tuned libwebp settings, the defaults for a profile of another encoder
+    private EncoderProfile getWebpProfile() {
+        if(EncoderProfile.LIBWEBP.equals(mEncoderProfile.getCodec())) {
+            return mEncoderProfile;
+        }
+
+        return EncoderProfile.WEBP.withThreads(mEncoderProfile.getThreads());
+    }
+
+        private void setProgressSpan(long totalUs, long offsetUs, long durationUs) {
+        if(mProgressParser != null) {
+            mProgressParser.setDurationUs(totalUs);
+            mProgressParser.setSpan(offsetUs, durationUs);
+        }
+    }
+
+    private static int toGifEncoderDither(String dither) {
+        if(MotionPictureOptions.DITHER_NONE.equals(dither)) {
+            return GifEncoder.DITHER_NONE;
+        } else if(MotionPictureOptions.DITHER_BAYER.equals(dither)) {
+            return GifEncoder.DITHER_BAYER;
+        } else if(MotionPictureOptions.DITHER_FLOYD_STEINBERG.equals(dither)) {
+            return GifEncoder.DITHER_FLOYD_STEINBERG;
+        } else {
+            return GifEncoder.DITHER_SIERRA_LITE;
+        }
+    }
+
+    // the gif muxer counts repeats after the first play and uses -1 for a single play
+    private static int toGifLoop(int loopCount) {
+        return loopCount == 0 ? 0 : loopCount == 1 ? -1 : loopCount - 1;
+    }
+}
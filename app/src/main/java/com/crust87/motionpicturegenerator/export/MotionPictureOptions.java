@@ -0,0 +1,141 @@
+package com.crust87.motionpicturegenerator.export;
+
+/**
+ * Output format of an export and the options of the animated formats. MP4 exports ignore fps,
+ * loop and dither, they go through the {@link EncoderProfile}. The crop region and width apply to
+ * every format and are applied before the encoder, so only the kept pixels are encoded. A gif
+ * without dither gets the one the {@link EncoderTuner} picked for the device.
+ */
+public class MotionPictureOptions {
+
+    public static final int FORMAT_MP4 = 0;
+    public static final int FORMAT_GIF = 1;
+    public static final int FORMAT_WEBP = 2;
+
+    public static final String DITHER_SIERRA = "sierra2_4a";
+    public static final String DITHER_FLOYD_STEINBERG = "floyd_steinberg";
+    public static final String DITHER_BAYER = "bayer";
+    public static final String DITHER_NONE = "none";
+
+    public static final MotionPictureOptions MP4 = new MotionPictureOptions(FORMAT_MP4, 0, 0, 0, DITHER_SIERRA);
+    public static final MotionPictureOptions GIF = new MotionPictureOptions(FORMAT_GIF, 15, 480, 0, null);
+    public static final MotionPictureOptions WEBP = new MotionPictureOptions(FORMAT_WEBP, 15, 480, 0, DITHER_SIERRA);
+
+    // Attributes
+    private final int mFormat;
+    private final int mFps;					// 0 keeps the source rate
+    private final int mWidth;				// 0 keeps the source width, height follows the aspect ratio
+    private final int mLoopCount;			// times the animation plays, 0 loops forever
+    private final String mDither;			// paletteuse dither mode, gif only, null until the tuner picks one
+    private final CropRegion mCrop;
+
+    // Constructors
+    public MotionPictureOptions(int format, int fps, int width, int loopCount, String dither) {
+        this(format, fps, width, loopCount, dither, CropRegion.FULL);
+    }
+
+    public MotionPictureOptions(int format, int fps, int width, int loopCount, String dither, CropRegion crop) {
+        mFormat = format;
+        mFps = fps;
+        mWidth = width;
+        mLoopCount = loopCount;
+        mDither = dither;
+        mCrop = crop != null ? crop : CropRegion.FULL;
+    }
+
+    public MotionPictureOptions withDither(String dither) {
+        return new MotionPictureOptions(mFormat, mFps, mWidth, mLoopCount, dither, mCrop);
+    }
+
+    public MotionPictureOptions withCrop(CropRegion crop) {
+        return new MotionPictureOptions(mFormat, mFps, mWidth, mLoopCount, mDither, crop);
+    }
+
+    // fps, crop and scale filters of the frames handed to the gif and webp encoders, ffmpeg has already turned them upright
+    public String getFrameFilter() {
+        StringBuilder filter = new StringBuilder();
+        if(mFps > 0) {
+            filter.append("fps=").append(mFps);
+        }
+
+        if(!mCrop.isFull()) {
+            if(filter.length() > 0) {
+                filter.append(',');
+            }
+            filter.append(mCrop.getFilter());
+        }
+
+        if(mWidth > 0) {
+            if(filter.length() > 0) {
+                filter.append(',');
+            }
+            filter.append("scale=").append(mWidth).append(":-1:flags=lanczos");
+        }
+
+        return filter.length() > 0 ? filter.toString() : "null";
+    }
+
+    // crop and downscale of mp4 frames stored unturned with the rotation of the source, null if there is nothing to do
+    public String getVideoFilter(int rotation) {
+        StringBuilder filter = new StringBuilder();
+        if(!mCrop.isFull()) {
+            filter.append(mCrop.rotate(rotation).getFilter());
+        }
+
+        if(mWidth > 0) {
+            if(filter.length() > 0) {
+                filter.append(',');
+            }
+
+            // width is the displayed one, the stored frame of a quarter turned source is its height
+            boolean isQuarterTurned = rotation % 180 != 0;
+            filter.append(isQuarterTurned ? "scale=-2:min(" + mWidth + "\\,ih)" : "scale=min(" + mWidth + "\\,iw):-2");
+        }
+
+        return filter.length() > 0 ? filter.toString() : null;
+    }
+
+    // frames have to be decoded, copying streams would keep every source pixel
+    public boolean isReframed() {
+        return !mCrop.isFull() || mWidth > 0;
+    }
+
+    public String getExtension() {
+        switch(mFormat) {
+            case FORMAT_GIF:
+                return ".gif";
+            case FORMAT_WEBP:
+                return ".webp";
+            default:
+                return ".mp4";
+        }
+    }
+
+    public boolean isAnimated() {
+        return mFormat != FORMAT_MP4;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getFps() {
+        return mFps;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getLoopCount() {
+        return mLoopCount;
+    }
+
+    public String getDither() {
+        return mDither;
+    }
+
+    public CropRegion getCrop() {
+        return mCrop;
+    }
+}
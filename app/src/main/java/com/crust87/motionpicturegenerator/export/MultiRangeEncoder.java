@@ -0,0 +1,218 @@
+package com.crust87.motionpicturegenerator.export;
+
+import com.crust87.motionpicturegenerator.mp4.SampleIndex;
+
+import java.io.IOException;
+
+/**
+ * Re-encodes several ranges of a video to outputs of their own in one ffmpeg pass.
+ * <p>
+ * Exporting the ranges one after another opens, seeks and decodes the source once per range, and
+ * the overlapping parts of the ranges are decoded again each time. Here the source is decoded once
+ * from the first start to the last end, the frames are split and trimmed to every range in one
+ * filter graph and every range is mapped to an output. Ranges far apart would decode the gap in
+ * between for nothing, so they are exported in passes of their own.
+ * <p>
+ * Audio is decoded once and split and trimmed the same way, so it is re-encoded rather than copied.
+ * Without a {@link SampleIndex} telling whether there is an audio track, every output trims the
+ * audio of its own, an optional stream can not be split in the graph.
+ */
+public class MultiRangeEncoder {
+
+    private static final long MAX_GAP_US = 10 * 1000 * 1000;		// decoding a longer gap costs more than another seek
+
+    // Components
+    private FFmpegExecutor mExecutor;
+    private EncoderProfile mEncoderProfile;
+    private FFmpegProgressParser mProgressParser;
+    private SampleIndex mSampleIndex;
+
+    // Event Listener
+    private FFmpegExecutor.OnReadProcessLineListener mOnReadProcessLineListener;
+
+    // Attributes
+    private String mVideoFilter;
+    private int mRotation;
+
+    // Constructors
+    public MultiRangeEncoder(FFmpegExecutor executor) {
+        mExecutor = executor;
+        mEncoderProfile = EncoderProfile.DEFAULT;
+        mRotation = -1;
+    }
+
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        mEncoderProfile = encoderProfile;
+    }
+
+    public void setOnReadProcessLineListener(FFmpegExecutor.OnReadProcessLineListener onReadProcessLineListener) {
+        mOnReadProcessLineListener = onReadProcessLineListener;
+    }
+
+    public void setProgressParser(FFmpegProgressParser progressParser) {
+        mProgressParser = progressParser;
+    }
+
+    // tells whether the source has audio to split in the filter graph
+    public void setSampleIndex(SampleIndex sampleIndex) {
+        mSampleIndex = sampleIndex;
+    }
+
+    // same meaning as the filter of SmartCutter, applied to every range
+    public void setVideoFilter(String videoFilter, int rotation) {
+        mVideoFilter = videoFilter;
+        mRotation = rotation;
+    }
+
+    /**
+     * Encodes every range to its output.
+     *
+     * @param rangesUs    start and end of every range, sorted by start
+     * @param outputPaths output of every range
+     * @param cores       cores shared by the encoders of one pass
+     */
+    public void encode(String inputPath, long[] rangesUs, String[] outputPaths, int cores) throws IOException {
+        int rangeCount = outputPaths.length;
+
+        // a pass reports the time of its longest output, the job's progress runs over all passes
+        long durationUs = 0;
+        for(int first = 0, last; first < rangeCount; first = last + 1) {
+            last = getLastOfPass(rangesUs, first, rangeCount);
+            durationUs += getLongestUs(rangesUs, first, last);
+        }
+        if(mProgressParser != null) {
+            mProgressParser.setDurationUs(durationUs);
+        }
+
+        long offsetUs = 0;
+        for(int first = 0, last; first < rangeCount; first = last + 1) {
+            last = getLastOfPass(rangesUs, first, rangeCount);
+            long longestUs = getLongestUs(rangesUs, first, last);
+            if(mProgressParser != null) {
+                mProgressParser.setSpan(offsetUs, longestUs);
+            }
+
+            encodePass(inputPath, rangesUs, outputPaths, first, last, cores);
+            offsetUs += longestUs;
+        }
+    }
+
+    // last range that starts close enough to the ones before it to share their decode
+    private static int getLastOfPass(long[] rangesUs, int first, int rangeCount) {
+        long endUs = rangesUs[first * 2 + 1];
+        int last = first;
+        while(last + 1 < rangeCount && rangesUs[(last + 1) * 2] - endUs <= MAX_GAP_US) {
+            last++;
+            endUs = Math.max(endUs, rangesUs[last * 2 + 1]);
+        }
+
+        return last;
+    }
+
+    private static long getLongestUs(long[] rangesUs, int first, int last) {
+        long longestUs = 0;
+        for(int i = first; i <= last; i++) {
+            longestUs = Math.max(longestUs, rangesUs[i * 2 + 1] - rangesUs[i * 2]);
+        }
+
+        return longestUs;
+    }
+
+    private void encodePass(String inputPath, long[] rangesUs, String[] outputPaths, int first, int last, int cores) throws IOException {
+        int count = last - first + 1;
+        long seekUs = rangesUs[first * 2];
+        long endUs = 0;
+        for(int i = first; i <= last; i++) {
+            endUs = Math.max(endUs, rangesUs[i * 2 + 1]);
+        }
+        boolean isRotationKept = mVideoFilter != null && mRotation >= 0;
+        boolean isAudioKnown = mSampleIndex != null;
+        boolean hasAudio = isAudioKnown && mSampleIndex.getAudioCodec() != SampleIndex.AUDIO_NONE;
+        EncoderProfile profile = mEncoderProfile.withThreads(Math.max(1, cores / count));
+
+        mExecutor.init();
+        mExecutor.setOnReadProcessLineListener(mOnReadProcessLineListener);
+        mExecutor.putCommand("-y");
+        profile.putFilterThreadOptions(mExecutor)
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(seekUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(endUs - seekUs));
+        if(isRotationKept) {
+            mExecutor.putCommand("-noautorotate");
+        }
+        mExecutor.putCommand("-i")
+                .putCommand(inputPath)
+                .putCommand("-filter_complex")
+                .putCommand(getFilterGraph(rangesUs, first, last, seekUs, hasAudio));
+
+        // times inside the pass start at the seek
+        for(int i = first; i <= last; i++) {
+            mExecutor.putCommand("-map")
+                    .putCommand("[v" + (i - first) + "]");
+            if(hasAudio) {
+                mExecutor.putCommand("-map")
+                        .putCommand("[a" + (i - first) + "]");
+            } else if(!isAudioKnown) {
+                mExecutor.putCommand("-map")
+                        .putCommand("0:a?")
+                        .putCommand("-af")
+                        .putCommand(getTrim("atrim", rangesUs, i, seekUs) + ",asetpts=PTS-STARTPTS");
+            }
+            profile.putVideoOptions(mExecutor);
+            if(hasAudio || !isAudioKnown) {
+                mExecutor.putCommand("-c:a")
+                        .putCommand("aac")
+                        .putCommand("-strict")
+                        .putCommand("-2");
+            } else {
+                mExecutor.putCommand("-an");
+            }
+            if(isRotationKept) {
+                mExecutor.putCommand("-metadata:s:v:0")
+                        .putCommand("rotate=" + mRotation);
+            }
+            mExecutor.putCommand(outputPaths[i]);
+        }
+
+        mExecutor.executeCommand();
+    }
+
+    // [0:v]split=2[s0][s1];[s0]trim=start=0:end=2,setpts=PTS-STARTPTS,<filter>[v0];...
+    // [0:a]asplit=2[t0][t1];[t0]atrim=start=0:end=2,asetpts=PTS-STARTPTS[a0];...
+    private String getFilterGraph(long[] rangesUs, int first, int last, long seekUs, boolean hasAudio) {
+        int count = last - first + 1;
+        StringBuilder graph = new StringBuilder("[0:v]split=").append(count);
+        for(int i = 0; i < count; i++) {
+            graph.append("[s").append(i).append(']');
+        }
+
+        for(int i = 0; i < count; i++) {
+            graph.append(";[s").append(i).append(']').append(getTrim("trim", rangesUs, first + i, seekUs))
+                    .append(",setpts=PTS-STARTPTS");
+            if(mVideoFilter != null) {
+                graph.append(',').append(mVideoFilter);
+            }
+            graph.append("[v").append(i).append(']');
+        }
+
+        if(hasAudio) {
+            graph.append(";[0:a]asplit=").append(count);
+            for(int i = 0; i < count; i++) {
+                graph.append("[t").append(i).append(']');
+            }
+
+            for(int i = 0; i < count; i++) {
+                graph.append(";[t").append(i).append(']').append(getTrim("atrim", rangesUs, first + i, seekUs))
+                        .append(",asetpts=PTS-STARTPTS[a").append(i).append(']');
+            }
+        }
+
+        return graph.toString();
+    }
+
+    private static String getTrim(String filter, long[] rangesUs, int range, long seekUs) {
+        return filter + "=start=" + FFmpegTime.toSeconds(rangesUs[range * 2] - seekUs)
+                + ":end=" + FFmpegTime.toSeconds(rangesUs[range * 2 + 1] - seekUs);
+    }
+}
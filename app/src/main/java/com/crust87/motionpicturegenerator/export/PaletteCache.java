@@ -0,0 +1,88 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Directory of gif palettes made by palettegen.
+ * <p>
+ * A palette only depends on the frames it was computed from, so it is keyed by the fingerprint of
+ * the source, the range and the frame filter (fps, crop and width). Exports that only change
+ * dithering or looping reuse it and skip the analysis pass. Least recently used palettes are
+ * deleted past {@link #MAX_ENTRIES}.
+ */
+public class PaletteCache {
+
+    private static final int MAX_ENTRIES = 32;
+    private static final String PREFIX = "palette_";
+    private static final String SUFFIX = ".png";
+
+    // Attributes
+    private final File mDirectory;
+
+    // Constructors
+    public PaletteCache(File directory) {
+        mDirectory = directory;
+    }
+
+    // cached palette of the frames, the file does not exist yet on a miss
+    public synchronized File get(String sourceKey, long startUs, long endUs, MotionPictureOptions options) {
+        String key = sourceKey + '|' + startUs + '|' + endUs + '|' + options.getFrameFilter();
+
+        File palette = new File(mDirectory, PREFIX + hash(key) + SUFFIX);
+        if(palette.exists()) {
+            palette.setLastModified(System.currentTimeMillis());
+        }
+
+        return palette;
+    }
+
+    // where palettegen writes before the palette is renamed into place, unique for concurrent jobs of the same frames
+    public File createTempFile(File palette) throws IOException {
+        return File.createTempFile(palette.getName(), ".tmp" + SUFFIX, mDirectory);
+    }
+
+    public synchronized void trim() {
+        File[] palettes = mDirectory.listFiles();
+        if(palettes == null || palettes.length <= MAX_ENTRIES) {
+            return;
+        }
+
+        Arrays.sort(palettes, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? 1 : l > r ? -1 : 0;
+            }
+        });
+
+        for(int i = MAX_ENTRIES; i < palettes.length; i++) {
+            palettes[i].delete();
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for(byte b: digest) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+
+            return builder.toString();
+        } catch(NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
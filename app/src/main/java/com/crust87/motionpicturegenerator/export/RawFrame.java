@@ -0,0 +1,89 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One packed frame of a {@link RawFramePipe}, backed by a pooled direct buffer.
+ * <p>
+ * The frame belongs to the consumer until {@link #recycle()}, which may be called from any thread.
+ * After that the buffer is refilled with a later frame.
+ */
+public class RawFrame {
+
+    // Components
+    private final RawFramePipe mPipe;
+    private final ByteBuffer mBuffer;
+    private final int mSlot;
+    private final Runnable mRecycler;
+
+    // Attributes
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final int mBytesPerPixel;
+
+    // Working Variables
+    private long mPtsUs;
+    private int mIndex;
+
+    /* package */ RawFrame(RawFramePipe pipe, int slot, int width, int height, int bytesPerPixel) {
+        mPipe = pipe;
+        mSlot = slot;
+        mWidth = width;
+        mHeight = height;
+        mBytesPerPixel = bytesPerPixel;
+        mStride = width * bytesPerPixel;
+        mBuffer = ByteBuffer.allocateDirect(mStride * height);
+        mRecycler = new Runnable() {
+            @Override
+            public void run() {
+                recycle();
+            }
+        };
+    }
+
+    /* package */ void set(int index, long ptsUs) {
+        mIndex = index;
+        mPtsUs = ptsUs;
+    }
+
+    public void recycle() {
+        mPipe.recycle(mSlot);
+    }
+
+    // recycles the frame when run, to hand to consumers that only know Runnable
+    public Runnable getRecycler() {
+        return mRecycler;
+    }
+
+    // whole frame, position 0 and limit at the end of the last row
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // bytes from the start of one row to the next
+    public int getStride() {
+        return mStride;
+    }
+
+    public int getBytesPerPixel() {
+        return mBytesPerPixel;
+    }
+
+    // time of the frame from the start of the range
+    public long getPtsUs() {
+        return mPtsUs;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+}
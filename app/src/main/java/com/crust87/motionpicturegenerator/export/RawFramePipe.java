@@ -0,0 +1,317 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decodes a range of a video with ffmpeg into packed raw frames read from its standard output.
+ * <p>
+ * Frames are read through a channel straight into a fixed pool of direct buffers. Free buffers
+ * are tracked in one atomic bit mask, so frames can be recycled from any thread without locks and
+ * reading allocates nothing per frame. When every buffer is held by the consumer, reading waits for
+ * the next {@link RawFrame#recycle()}. Frames are read by one thread and may be recycled by any.
+ * <p>
+ * {@link FFmpegExecutor} only reads the standard error of ffmpeg, so the pipe starts the
+ * {@link FFmpegBinary} directly. The frame size and rate are taken from the output stream ffmpeg
+ * reports on stderr, and every stderr line is passed to the listener so progress parsing keeps
+ * working.
+ */
+public class RawFramePipe {
+
+    public static final String PIX_FMT_RGBA = "rgba";
+    public static final String PIX_FMT_BGRA = "bgra";
+    public static final String PIX_FMT_RGB24 = "rgb24";
+    public static final String PIX_FMT_GRAY = "gray";
+
+    public static final int MAX_POOL_SIZE = 32;
+
+    private static final String OUTPUT_MARK = "Output #0";
+    private static final String VIDEO_MARK = "Video: rawvideo";
+
+    // Components
+    private final FFmpegBinary mBinary;
+    private Process mProcess;
+    private ReadableByteChannel mChannel;
+    private Thread mErrorThread;
+    private RawFrame[] mFrames;
+
+    // Event Listener
+    private FFmpegExecutor.OnReadProcessLineListener mOnReadProcessLineListener;
+
+    // Attributes
+    private final int mPoolSize;
+    private volatile int mWidth;
+    private volatile int mHeight;
+    private volatile float mFrameRate;
+    private String mPixelFormat;
+
+    // Working Variables
+    private final CountDownLatch mFormatLatch;
+    private final AtomicInteger mFreeSlots;		// bit per pooled frame, set while it is free
+    private volatile Thread mWaiter;
+    private volatile boolean isClosed;
+    private int mFrameIndex;
+
+    // Constructors
+    public RawFramePipe(FFmpegBinary binary, int poolSize) {
+        if(poolSize < 1 || poolSize > MAX_POOL_SIZE) {
+            throw new IllegalArgumentException("pool size must be 1 to " + MAX_POOL_SIZE);
+        }
+
+        mBinary = binary;
+        mPoolSize = poolSize;
+        mFormatLatch = new CountDownLatch(1);
+        mFreeSlots = new AtomicInteger();
+    }
+
+    public void setOnReadProcessLineListener(FFmpegExecutor.OnReadProcessLineListener onReadProcessLineListener) {
+        mOnReadProcessLineListener = onReadProcessLineListener;
+    }
+
+    // frameFilter is applied before the pixel format conversion, "null" keeps the frames as they are
+    public void start(String inputPath, long startUs, long durationUs, String frameFilter, String pixelFormat,
+                      int threads) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-nostdin");
+        if(threads > 0) {
+            arguments.add("-filter_threads");
+            arguments.add(String.valueOf(threads));
+        }
+        arguments.add("-ss");
+        arguments.add(FFmpegTime.toSeconds(startUs));
+        arguments.add("-t");
+        arguments.add(FFmpegTime.toSeconds(durationUs));
+        arguments.add("-i");
+        arguments.add(inputPath);
+        arguments.add("-vf");
+        arguments.add(frameFilter);
+        arguments.add("-an");
+        arguments.add("-f");
+        arguments.add("rawvideo");
+        arguments.add("-pix_fmt");
+        arguments.add(pixelFormat);
+        arguments.add("pipe:1");
+
+        mPixelFormat = pixelFormat;
+        mProcess = mBinary.start(arguments);
+
+        // a file channel reads into the direct buffers without an intermediate array
+        InputStream inputStream = mProcess.getInputStream();
+        mChannel = inputStream instanceof FileInputStream ? ((FileInputStream) inputStream).getChannel()
+                : Channels.newChannel(inputStream);
+
+        mErrorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readErrorStream(mProcess.getErrorStream());
+            }
+        }, "RawFramePipe stderr");
+        mErrorThread.start();
+
+        try {
+            mFormatLatch.await();
+        } catch(InterruptedException e) {
+            close();
+            throw new IOException("interrupted while starting ffmpeg");
+        }
+
+        if(mWidth <= 0 || mHeight <= 0) {
+            close();
+            throw new IOException("ffmpeg reported no output frames for " + inputPath);
+        }
+
+        int bytesPerPixel = getBytesPerPixel(pixelFormat);
+        mFrames = new RawFrame[mPoolSize];
+        for(int i = 0; i < mPoolSize; i++) {
+            mFrames[i] = new RawFrame(this, i, mWidth, mHeight, bytesPerPixel);
+        }
+        mFreeSlots.set(mPoolSize == 32 ? -1 : (1 << mPoolSize) - 1);
+    }
+
+    // next frame, waits for a free buffer first, null after the last frame or once closed
+    public RawFrame readFrame() throws IOException {
+        int slot = obtainSlot();
+        if(slot < 0) {
+            return null;
+        }
+
+        RawFrame frame = mFrames[slot];
+        ByteBuffer buffer = frame.getBuffer();
+        buffer.clear();
+        while(buffer.hasRemaining()) {
+            if(mChannel.read(buffer) < 0) {
+                recycle(slot);
+                return null;
+            }
+        }
+        buffer.flip();
+
+        long ptsUs = mFrameRate > 0 ? (long) (mFrameIndex * 1000000d / mFrameRate) : 0;
+        frame.set(mFrameIndex++, ptsUs);
+
+        return frame;
+    }
+
+    // waits for ffmpeg to exit, returns its exit code
+    public int waitFor() throws IOException {
+        try {
+            int exitCode = mProcess.waitFor();
+            mErrorThread.join();
+            return exitCode;
+        } catch(InterruptedException e) {
+            close();
+            throw new IOException("interrupted while waiting for ffmpeg");
+        }
+    }
+
+    public void close() {
+        isClosed = true;
+        LockSupport.unpark(mWaiter);
+
+        if(mProcess != null) {
+            mProcess.destroy();
+        }
+    }
+
+    /* package */ void recycle(int slot) {
+        int bit = 1 << slot;
+        int free;
+        do {
+            free = mFreeSlots.get();
+        } while(!mFreeSlots.compareAndSet(free, free | bit));
+
+        LockSupport.unpark(mWaiter);
+    }
+
+    private int obtainSlot() {
+        while(!isClosed) {
+            int free = mFreeSlots.get();
+            if(free == 0) {
+                mWaiter = Thread.currentThread();
+                // recheck after publishing the waiter, a recycle in between would not unpark us
+                if(mFreeSlots.get() == 0 && !isClosed) {
+                    LockSupport.park(this);
+                }
+                mWaiter = null;
+                continue;
+            }
+
+            int bit = free & -free;
+            if(mFreeSlots.compareAndSet(free, free & ~bit)) {
+                return Integer.numberOfTrailingZeros(bit);
+            }
+        }
+
+        return -1;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // 0 if ffmpeg did not report it
+    public float getFrameRate() {
+        return mFrameRate;
+    }
+
+    public String getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    public static int getBytesPerPixel(String pixelFormat) {
+        if(PIX_FMT_GRAY.equals(pixelFormat)) {
+            return 1;
+        } else if(PIX_FMT_RGB24.equals(pixelFormat)) {
+            return 3;
+        } else if(PIX_FMT_RGBA.equals(pixelFormat) || PIX_FMT_BGRA.equals(pixelFormat)) {
+            return 4;
+        }
+
+        throw new IllegalArgumentException("unsupported pixel format " + pixelFormat);
+    }
+
+    private void readErrorStream(InputStream errorStream) {
+        boolean isOutput = false;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(mOnReadProcessLineListener != null) {
+                    mOnReadProcessLineListener.onReadProcessLine(line);
+                }
+
+                if(line.startsWith(OUTPUT_MARK)) {
+                    isOutput = true;
+                } else if(isOutput && mFormatLatch.getCount() > 0 && line.contains(VIDEO_MARK)) {
+                    parseFormat(line);
+                    mFormatLatch.countDown();
+                }
+            }
+        } catch(IOException e) {
+            // the process was destroyed
+        } finally {
+            mFormatLatch.countDown();
+        }
+    }
+
+    // reads "480x270" and "15 fps" of a stream line, skipping the hex pixel format tag
+    private void parseFormat(String line) {
+        int start = line.indexOf(VIDEO_MARK) + VIDEO_MARK.length();
+        for(int i = start; i < line.length(); i++) {
+            if(line.charAt(i) != 'x' || i == 0 || !isDigit(line.charAt(i - 1))) {
+                continue;
+            }
+
+            int begin = i;
+            while(begin > 0 && isDigit(line.charAt(begin - 1))) {
+                begin--;
+            }
+            int end = i + 1;
+            while(end < line.length() && isDigit(line.charAt(end))) {
+                end++;
+            }
+
+            boolean delimited = line.charAt(begin - 1) == ' ' && end > i + 1
+                    && (end == line.length() || line.charAt(end) == ',' || line.charAt(end) == ' ');
+            if(delimited) {
+                mWidth = Integer.parseInt(line.substring(begin, i));
+                mHeight = Integer.parseInt(line.substring(i + 1, end));
+                break;
+            }
+        }
+
+        int fps = line.indexOf(" fps");
+        if(fps > 0) {
+            int begin = fps;
+            while(begin > 0 && (isDigit(line.charAt(begin - 1)) || line.charAt(begin - 1) == '.')) {
+                begin--;
+            }
+            if(begin < fps) {
+                try {
+                    mFrameRate = Float.parseFloat(line.substring(begin, fps));
+                } catch(NumberFormatException e) {
+                    mFrameRate = 0;
+                }
+            }
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
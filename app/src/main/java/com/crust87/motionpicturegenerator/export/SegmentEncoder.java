@@ -0,0 +1,313 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Re-encodes a range as keyframe aligned segments in concurrent ffmpeg processes.
+ * <p>
+ * One libx264 process, baseline profile above all, leaves most cores of a big SoC idle. The range
+ * is split at the source keyframes closest to equal parts, and every segment after the first is
+ * sought just past its keyframe without accurate seeking, so the demuxer lands on that keyframe
+ * and no segment decodes frames of its neighbour. Every segment is encoded as MPEG-TS by a process
+ * of its own with its share of the cores. The pieces are video only and joined by the concat demuxer like the pieces of a
+ * smart cut, which adds the audio of the whole range once. Pieces are named by the boundaries they
+ * cover, so one left in the work directory is reused only by a split with the same boundaries,
+ * however many cores the resumed job gets.
+ * <p>
+ * Progress of all processes is summed into the one progress parser of the job.
+ */
+public class SegmentEncoder {
+
+    private static final String TAG = "SegmentEncoder";
+
+    private static final String PIECE_PREFIX = "segment_";
+
+    private static final int MAX_SEGMENTS = 8;
+    private static final int MIN_THREADS_PER_SEGMENT = 2;		// frame threads of x264 still help below that
+    private static final long MIN_SEGMENT_US = 2 * 1000 * 1000;	// shorter segments spend more on startup than on encoding
+
+    // Components
+    private final FFmpegBinary mBinary;
+    private EncoderProfile mEncoderProfile;
+    private FFmpegProgressParser mProgressParser;
+
+    // Event Listener
+    private FFmpegExecutor.OnReadProcessLineListener mOnReadProcessLineListener;
+
+    // Attributes
+    private final File mWorkDirectory;
+    private String mVideoFilter;
+    private boolean isRotationKept;
+
+    // Working Variables, guarded by mDoneUs
+    private long[] mDoneUs;				// encoded time of every segment
+
+    // Constructors
+    public SegmentEncoder(FFmpegBinary binary, File workDirectory) {
+        mBinary = binary;
+        mWorkDirectory = workDirectory;
+        mEncoderProfile = EncoderProfile.DEFAULT;
+    }
+
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        mEncoderProfile = encoderProfile;
+    }
+
+    public void setOnReadProcessLineListener(FFmpegExecutor.OnReadProcessLineListener onReadProcessLineListener) {
+        mOnReadProcessLineListener = onReadProcessLineListener;
+    }
+
+    public void setProgressParser(FFmpegProgressParser progressParser) {
+        mProgressParser = progressParser;
+    }
+
+    // same meaning as the filter of SmartCutter, the rotation tag is left to the concat
+    public void setVideoFilter(String videoFilter, boolean rotationKept) {
+        mVideoFilter = videoFilter;
+        isRotationKept = rotationKept;
+    }
+
+    // as many segments as the cores keep busy with two threads each, none shorter than two seconds
+    public static int getSegmentCount(int cores, long durationUs) {
+        int count = Math.min(cores / MIN_THREADS_PER_SEGMENT, (int) Math.min(MAX_SEGMENTS, durationUs / MIN_SEGMENT_US));
+        return Math.max(1, Math.min(MAX_SEGMENTS, count));
+    }
+
+    /**
+     * Boundaries of the segments, startUs, the keyframes they are split at and endUs.
+     *
+     * @param keyframesUs  sorted keyframe timestamps of the source video track
+     * @param count        number of valid entries in keyframesUs
+     * @param segmentCount wanted number of segments, sparse keyframes may give fewer
+     */
+    public static long[] split(long[] keyframesUs, int count, long startUs, long endUs, int segmentCount) {
+        long[] boundariesUs = new long[segmentCount + 1];
+        int size = 0;
+        boundariesUs[size++] = startUs;
+
+        for(int i = 1; i < segmentCount; i++) {
+            long targetUs = startUs + (endUs - startUs) * i / segmentCount;
+            int index = SmartCutPlan.lowerBound(keyframesUs, count, targetUs);
+            if(index > 0 && (index == count || targetUs - keyframesUs[index - 1] < keyframesUs[index] - targetUs)) {
+                index--;
+            }
+            if(index >= count) {
+                break;
+            }
+
+            long keyframeUs = keyframesUs[index];
+            if(keyframeUs - boundariesUs[size - 1] > SmartCutPlan.NUDGE_US && endUs - keyframeUs > SmartCutPlan.NUDGE_US) {
+                boundariesUs[size++] = keyframeUs;
+            }
+        }
+
+        boundariesUs[size++] = endUs;
+
+        return Arrays.copyOf(boundariesUs, size);
+    }
+
+    /**
+     * Encodes every segment into the work directory and waits for all of them.
+     *
+     * @param threads encoder threads of every process
+     * @return the pieces in order, to be joined and deleted by the caller
+     */
+    public List<File> encode(final String inputPath, long[] boundariesUs, int threads) throws IOException {
+        final int segmentCount = boundariesUs.length - 1;
+        final EncoderProfile profile = mEncoderProfile.withThreads(threads);
+        mDoneUs = new long[segmentCount];
+
+        deleteStalePieces(boundariesUs);
+
+        List<File> pieces = new ArrayList<>();
+        final Process[] processes = new Process[segmentCount];
+        Thread[] readers = new Thread[segmentCount];
+        final IOException[] errors = new IOException[1];
+        try {
+            for(int i = 0; i < segmentCount; i++) {
+                long startUs = boundariesUs[i];
+                long endUs = boundariesUs[i + 1];
+                final long durationUs = endUs - startUs;
+
+                final File piece = new File(mWorkDirectory, getPieceName(startUs, endUs, ".ts"));
+                pieces.add(piece);
+                if(piece.exists() && piece.length() > 0) {
+                    Log.d(TAG, "resume with existing segment " + i);
+                    reportProgress(i, durationUs, durationUs, null);
+                    continue;
+                }
+
+                final File partial = new File(mWorkDirectory, getPieceName(startUs, endUs, ".part"));
+                final Process process = mBinary.start(getArguments(profile, inputPath, startUs, durationUs, i > 0, partial));
+                synchronized(errors) {
+                    processes[i] = process;
+                    if(errors[0] != null) {
+                        // another segment failed while this one was started
+                        process.destroy();
+                        break;
+                    }
+                }
+
+                final int segment = i;
+                readers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            readErrorStream(segment, durationUs, process.getErrorStream());
+                            if(process.waitFor() != 0 || partial.length() == 0 || !partial.renameTo(piece)) {
+                                throw new IOException("fail to encode segment " + segment + " of " + inputPath);
+                            }
+                        } catch(IOException e) {
+                            fail(errors, e, processes);
+                        } catch(InterruptedException e) {
+                            fail(errors, new IOException("interrupted while encoding segment " + segment), processes);
+                        } finally {
+                            partial.delete();
+                        }
+                    }
+                }, "SegmentEncoder #" + i);
+                readers[i].start();
+            }
+
+            for(Thread reader: readers) {
+                if(reader != null) {
+                    reader.join();
+                }
+            }
+        } catch(InterruptedException e) {
+            fail(errors, new IOException("interrupted while encoding segments"), processes);
+        } catch(IOException e) {
+            fail(errors, e, processes);
+        }
+
+        synchronized(errors) {
+            if(errors[0] != null) {
+                for(File piece: pieces) {
+                    piece.delete();
+                }
+                throw errors[0];
+            }
+        }
+
+        return pieces;
+    }
+
+    private static String getPieceName(long startUs, long endUs, String suffix) {
+        return PIECE_PREFIX + startUs + "_" + endUs + suffix;
+    }
+
+    // pieces of an earlier split of the range, the boundaries move with the cores of the job
+    private void deleteStalePieces(long[] boundariesUs) {
+        File[] files = mWorkDirectory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        int segmentCount = boundariesUs.length - 1;
+        for(int i = 0; i < segmentCount; i++) {
+            names.add(getPieceName(boundariesUs[i], boundariesUs[i + 1], ".ts"));
+        }
+
+        for(File file: files) {
+            String name = file.getName();
+            if(name.startsWith(PIECE_PREFIX) && !names.contains(name)) {
+                Log.d(TAG, "delete piece of another split " + name);
+                file.delete();
+            }
+        }
+    }
+
+    // a segment starting at a keyframe seeks just past it, a demuxer rounding the keyframe time up
+    // must not land on the keyframe before, and keeps every frame from the one it lands on
+    private List<String> getArguments(EncoderProfile profile, String inputPath, long startUs, long durationUs,
+                                      boolean keyframeStart, File piece) {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-nostdin");
+        arguments.add("-y");
+        profile.addFilterThreadOptions(arguments);
+        if(keyframeStart) {
+            arguments.add("-noaccurate_seek");
+        }
+        arguments.add("-ss");
+        arguments.add(FFmpegTime.toSeconds(keyframeStart ? startUs + SmartCutPlan.NUDGE_US : startUs));
+        arguments.add("-t");
+        arguments.add(FFmpegTime.toSeconds(durationUs));
+        if(isRotationKept) {
+            arguments.add("-noautorotate");
+        }
+        arguments.add("-i");
+        arguments.add(inputPath);
+        if(mVideoFilter != null) {
+            arguments.add("-vf");
+            arguments.add(mVideoFilter);
+        }
+        profile.addVideoOptions(arguments);
+        arguments.add("-an");
+        arguments.add("-f");
+        arguments.add("mpegts");
+        arguments.add(piece.getAbsolutePath());
+
+        return arguments;
+    }
+
+    private void readErrorStream(int segment, long durationUs, InputStream errorStream) throws IOException {
+        FFmpegProgressParser parser = new FFmpegProgressParser(durationUs);
+        FFmpegProgress progress = new FFmpegProgress();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(parser.parse(line, progress) && progress.timeUs >= 0) {
+                    reportProgress(segment, durationUs, Math.min(progress.timeUs, durationUs), line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // the job's parser sees the line as if it continued the time already done by the other segments
+    private void reportProgress(int segment, long durationUs, long doneUs, String line) {
+        synchronized(mDoneUs) {
+            mDoneUs[segment] = doneUs;
+            if(line == null || mProgressParser == null || mOnReadProcessLineListener == null) {
+                return;
+            }
+
+            long othersUs = 0;
+            for(int i = 0; i < mDoneUs.length; i++) {
+                if(i != segment) {
+                    othersUs += mDoneUs[i];
+                }
+            }
+
+            mProgressParser.setSpan(othersUs, durationUs);
+            mOnReadProcessLineListener.onReadProcessLine(line);
+        }
+    }
+
+    // keeps the first error and stops every other segment, they can not be used anymore
+    private static void fail(IOException[] errors, IOException e, Process[] processes) {
+        synchronized(errors) {
+            if(errors[0] == null) {
+                errors[0] = e;
+            }
+
+            for(Process process: processes) {
+                if(process != null) {
+                    process.destroy();
+                }
+            }
+        }
+    }
+}
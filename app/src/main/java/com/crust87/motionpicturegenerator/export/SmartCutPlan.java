@@ -0,0 +1,138 @@
+package com.crust87.motionpicturegenerator.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a cut range into re-encoded boundary pieces and a stream-copied middle.
+ * <p>
+ * Only the frames between the requested start and the first keyframe inside the range, and
+ * between the last keyframe inside the range and the requested end, have to be re-encoded. The
+ * GOPs in between are copied untouched.
+ */
+public class SmartCutPlan {
+
+    // keyframe timestamps reported by demuxers are rounded, allow this much slack around them
+    public static final long NUDGE_US = 500;
+
+    // Attributes
+    private final long mStartUs;
+    private final long mEndUs;
+    private final List<Segment> mSegments;
+
+    private SmartCutPlan(long startUs, long endUs, List<Segment> segments) {
+        mStartUs = startUs;
+        mEndUs = endUs;
+        mSegments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * @param keyframesUs sorted keyframe timestamps of the source video track
+     * @param count       number of valid entries in keyframesUs
+     * @param startUs     requested start of the cut
+     * @param endUs       requested end of the cut
+     */
+    public static SmartCutPlan create(long[] keyframesUs, int count, long startUs, long endUs) {
+        List<Segment> segments = new ArrayList<>();
+
+        int first = lowerBound(keyframesUs, count, startUs - NUDGE_US);
+        int last = lowerBound(keyframesUs, count, endUs + NUDGE_US + 1) - 1;
+
+        if(first >= count || last < 0 || keyframesUs[first] >= keyframesUs[last]) {
+            // no complete GOP inside the range, nothing can be copied
+            segments.add(Segment.encode(startUs, endUs - startUs));
+            return new SmartCutPlan(startUs, endUs, segments);
+        }
+
+        long firstKeyUs = keyframesUs[first];
+        long lastKeyUs = keyframesUs[last];
+
+        // head: requested start to first keyframe, the keyframe itself belongs to the copied part
+        if(firstKeyUs - startUs > NUDGE_US) {
+            segments.add(Segment.encode(startUs, firstKeyUs - startUs - NUDGE_US));
+        }
+
+        // middle: whole GOPs, input seeking in copy mode snaps back to the keyframe
+        segments.add(Segment.copy(firstKeyUs + NUDGE_US, lastKeyUs - firstKeyUs - NUDGE_US));
+
+        // tail: last keyframe to requested end
+        if(endUs - lastKeyUs > NUDGE_US) {
+            long seekUs = Math.max(0, lastKeyUs - NUDGE_US);
+            segments.add(Segment.encode(seekUs, endUs - seekUs));
+        }
+
+        return new SmartCutPlan(startUs, endUs, segments);
+    }
+
+    // index of first element >= value
+    static int lowerBound(long[] values, int count, long value) {
+        int low = 0;
+        int high = count;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    public boolean isSmart() {
+        for(Segment segment: mSegments) {
+            if(segment.copy) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public long getStartUs() {
+        return mStartUs;
+    }
+
+    public long getEndUs() {
+        return mEndUs;
+    }
+
+    public List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    // re-encoded duration, the part of the plan that actually costs encoder time
+    public long getEncodedDurationUs() {
+        long durationUs = 0;
+        for(Segment segment: mSegments) {
+            if(!segment.copy) {
+                durationUs += segment.durationUs;
+            }
+        }
+
+        return durationUs;
+    }
+
+    // A piece of the output, seek and duration are ready to be passed to ffmpeg as input options
+    public static class Segment {
+        public final long seekUs;
+        public final long durationUs;
+        public final boolean copy;
+
+        private Segment(long seekUs, long durationUs, boolean copy) {
+            this.seekUs = seekUs;
+            this.durationUs = durationUs;
+            this.copy = copy;
+        }
+
+        static Segment encode(long seekUs, long durationUs) {
+            return new Segment(seekUs, durationUs, false);
+        }
+
+        static Segment copy(long seekUs, long durationUs) {
+            return new Segment(seekUs, durationUs, true);
+        }
+    }
+}
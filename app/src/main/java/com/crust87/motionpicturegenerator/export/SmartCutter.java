@@ -0,0 +1,392 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.util.Log;
+
+import com.crust87.motionpicturegenerator.mp4.SampleIndex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exports a range of a video re-encoding only the boundary GOPs.
+ * <p>
+ * Every piece of the {@link SmartCutPlan} is written as MPEG-TS, which carries the parameter sets
+ * in band, so re-encoded and copied pieces can be joined by the concat demuxer without another
+ * encode. Boundary pieces are encoded with the profile, level and bitrate of the source so the
+ * stream stays decodable as one. Pieces are video only, the audio of the whole range is muxed
+ * once by the concat, so there is no gap at piece joins. Pieces already present in the work
+ * directory are reused, so a cut interrupted by process death resumes at the first missing piece.
+ * <p>
+ * With parallel encoding set, a full re-encode is split at keyframes and handed to a
+ * {@link SegmentEncoder} when the cores and the length of the range allow more than one segment.
+ */
+public class SmartCutter {
+
+    private static final String TAG = "SmartCutter";
+
+    // Components
+    private FFmpegExecutor mExecutor;
+    private KeyframeProbe mKeyframeProbe;
+    private EncoderProfile mEncoderProfile;
+    private SampleIndex mSampleIndex;
+    private FFmpegProgressParser mProgressParser;
+    private FFmpegBinary mBinary;				// null encodes in one process
+
+    // Event Listener
+    private FFmpegExecutor.OnReadProcessLineListener mOnReadProcessLineListener;
+
+    // Attributes
+    private File mWorkDirectory;
+    private String mVideoFilter;
+    private int mRotation;
+    private int mCores;
+
+    // Constructors
+    public SmartCutter(FFmpegExecutor executor, File workDirectory) {
+        mExecutor = executor;
+        mWorkDirectory = workDirectory;
+        mKeyframeProbe = new KeyframeProbe();
+        mEncoderProfile = EncoderProfile.DEFAULT;
+    }
+
+    public void setEncoderProfile(EncoderProfile encoderProfile) {
+        mEncoderProfile = encoderProfile;
+    }
+
+    public void setOnReadProcessLineListener(FFmpegExecutor.OnReadProcessLineListener onReadProcessLineListener) {
+        mOnReadProcessLineListener = onReadProcessLineListener;
+    }
+
+    // told which part of the output every command writes, so progress adds up over all pieces
+    public void setProgressParser(FFmpegProgressParser progressParser) {
+        mProgressParser = progressParser;
+    }
+
+    // keyframes of the source read from its sample tables, skips the ffmpeg probe pass when set
+    public void setSampleIndex(SampleIndex sampleIndex) {
+        mSampleIndex = sampleIndex;
+    }
+
+    // filter applied before the encoder on re-encodes, rotation of the source is kept as a tag and
+    // the frames are filtered unturned, a negative rotation lets ffmpeg turn them upright first
+    public void setVideoFilter(String videoFilter, int rotation) {
+        mVideoFilter = videoFilter;
+        mRotation = rotation;
+    }
+
+    // re-encodes in concurrent processes of the binary sharing the cores, see SegmentEncoder
+    public void setParallelEncoding(FFmpegBinary binary, int cores) {
+        mBinary = binary;
+        mCores = cores;
+    }
+
+    public SmartCutPlan plan(String inputPath, long startUs, long endUs) throws IOException {
+        if(mSampleIndex != null) {
+            return SmartCutPlan.create(mSampleIndex.getKeyframesUs(), mSampleIndex.getKeyframeCount(), startUs, endUs);
+        }
+
+        mKeyframeProbe.probe(mExecutor, inputPath, startUs, endUs);
+        mExecutor.setOnReadProcessLineListener(mOnReadProcessLineListener);
+
+        return SmartCutPlan.create(mKeyframeProbe.getKeyframesUs(), mKeyframeProbe.getCount(), startUs, endUs);
+    }
+
+    public void cut(String inputPath, long startUs, long endUs, String outputPath) throws IOException {
+        cut(inputPath, plan(inputPath, startUs, endUs), outputPath);
+    }
+
+    public void cut(String inputPath, SmartCutPlan plan, String outputPath) throws IOException {
+        mExecutor.setOnReadProcessLineListener(mOnReadProcessLineListener);
+
+        if(!plan.isSmart() || !isCopyable()) {
+            Log.d(TAG, plan.isSmart() ? "source stream can not be matched, re-encode everything" : "no whole GOP in range, re-encode everything");
+            setProgressSpan(0, plan.getEndUs() - plan.getStartUs());
+            encodeRange(inputPath, plan.getStartUs(), plan.getEndUs() - plan.getStartUs(), outputPath);
+            return;
+        }
+
+        EncoderProfile boundaryProfile = getBoundaryProfile();
+
+        List<File> pieces = new ArrayList<>();
+        File listFile = new File(mWorkDirectory, "smartcut.txt");
+        try {
+            List<SmartCutPlan.Segment> segments = plan.getSegments();
+            long offsetUs = 0;
+            for(int i = 0; i < segments.size(); i++) {
+                SmartCutPlan.Segment segment = segments.get(i);
+                setProgressSpan(offsetUs, segment.durationUs);
+                offsetUs += segment.durationUs;
+
+                File piece = new File(mWorkDirectory, "smartcut_" + i + ".ts");
+                pieces.add(piece);
+
+                // finished pieces are only ever renamed into place, so one left by an interrupted run is complete
+                if(piece.exists() && piece.length() > 0) {
+                    Log.d(TAG, "resume with existing piece " + i);
+                    continue;
+                }
+
+                File partial = new File(mWorkDirectory, "smartcut_" + i + ".part");
+                if(segment.copy) {
+                    copyPiece(inputPath, segment, partial);
+                } else {
+                    encodePiece(inputPath, segment, boundaryProfile, partial);
+                }
+
+                if(!partial.exists() || partial.length() == 0 || !partial.renameTo(piece)) {
+                    partial.delete();
+                    throw new IOException("fail to write piece " + i);
+                }
+            }
+
+            writeConcatList(listFile, pieces);
+            setProgressSpan(0, offsetUs);
+            int rotation = mSampleIndex != null ? mSampleIndex.getRotation() : 0;
+            concat(listFile, inputPath, plan.getStartUs(), plan.getEndUs() - plan.getStartUs(), rotation, outputPath);
+        } finally {
+            for(File piece: pieces) {
+                piece.delete();
+            }
+            listFile.delete();
+        }
+    }
+
+    // copied GOPs are H.264 put into MPEG-TS, and boundary pieces can only match 8 bit 4:2:0 profiles
+    private boolean isCopyable() {
+        if(mSampleIndex == null) {
+            return true;
+        }
+
+        int profileIdc = mSampleIndex.getProfileIdc();
+        return mSampleIndex.isAvc() && (profileIdc == 0 || getProfileName(profileIdc) != null);
+    }
+
+    // tuned preset and threads, profile, level and bitrate of the source when the index knows them
+    private EncoderProfile getBoundaryProfile() {
+        if(mSampleIndex == null || mSampleIndex.getProfileIdc() == 0) {
+            return mEncoderProfile;
+        }
+
+        long bitrate = mSampleIndex.getBitrate();
+        return new EncoderProfile(mEncoderProfile.getCodec(), getProfileName(mSampleIndex.getProfileIdc()),
+                getLevelName(mSampleIndex.getLevelIdc()), mEncoderProfile.getPreset(),
+                bitrate > 0 ? -1 : mEncoderProfile.getCrf(), bitrate > 0 ? bitrate / 1000 + "k" : mEncoderProfile.getBitrate(),
+                mEncoderProfile.getThreads());
+    }
+
+    // x264 name of an H.264 profile_idc, null for the ones it can not encode to
+    /* package */ static String getProfileName(int profileIdc) {
+        switch(profileIdc) {
+            case 66:
+                return "baseline";
+            case 77:
+                return "main";
+            case 100:
+                return "high";
+            default:
+                return null;
+        }
+    }
+
+    // level_idc is ten times the level, 31 is 3.1, null if unknown
+    /* package */ static String getLevelName(int levelIdc) {
+        return levelIdc >= 10 ? levelIdc / 10 + "." + levelIdc % 10 : null;
+    }
+
+    // plain re-encode of the whole range
+    public void encode(String inputPath, long startUs, long endUs, String outputPath) throws IOException {
+        mExecutor.setOnReadProcessLineListener(mOnReadProcessLineListener);
+
+        int segmentCount = mBinary != null ? SegmentEncoder.getSegmentCount(mCores, endUs - startUs) : 1;
+        if(segmentCount > 1) {
+            long[] boundariesUs = split(inputPath, startUs, endUs, segmentCount);
+            if(boundariesUs.length > 2) {
+                encodeSegments(inputPath, boundariesUs, outputPath);
+                return;
+            }
+        }
+
+        setProgressSpan(0, endUs - startUs);
+        encodeRange(inputPath, startUs, endUs - startUs, outputPath);
+    }
+
+    private long[] split(String inputPath, long startUs, long endUs, int segmentCount) throws IOException {
+        if(mSampleIndex != null) {
+            return SegmentEncoder.split(mSampleIndex.getKeyframesUs(), mSampleIndex.getKeyframeCount(), startUs, endUs, segmentCount);
+        }
+
+        mKeyframeProbe.probe(mExecutor, inputPath, startUs, endUs);
+        mExecutor.setOnReadProcessLineListener(mOnReadProcessLineListener);
+
+        return SegmentEncoder.split(mKeyframeProbe.getKeyframesUs(), mKeyframeProbe.getCount(), startUs, endUs, segmentCount);
+    }
+
+    private void encodeSegments(String inputPath, long[] boundariesUs, String outputPath) throws IOException {
+        int segmentCount = boundariesUs.length - 1;
+        Log.d(TAG, "encode " + segmentCount + " segments in parallel");
+
+        SegmentEncoder segmentEncoder = new SegmentEncoder(mBinary, mWorkDirectory);
+        segmentEncoder.setEncoderProfile(mEncoderProfile);
+        segmentEncoder.setVideoFilter(mVideoFilter, mVideoFilter != null && mRotation >= 0);
+        segmentEncoder.setOnReadProcessLineListener(mOnReadProcessLineListener);
+        segmentEncoder.setProgressParser(mProgressParser);
+
+        List<File> pieces = new ArrayList<>();
+        File listFile = new File(mWorkDirectory, "segments.txt");
+        try {
+            pieces = segmentEncoder.encode(inputPath, boundariesUs, Math.max(1, mCores / segmentCount));
+
+            writeConcatList(listFile, pieces);
+            setProgressSpan(0, boundariesUs[segmentCount] - boundariesUs[0]);
+            // segments were encoded unturned, mpegts has no rotation tag
+            int rotation = mVideoFilter != null && mRotation >= 0 ? mRotation : 0;
+            concat(listFile, inputPath, boundariesUs[0], boundariesUs[segmentCount] - boundariesUs[0], rotation, outputPath);
+        } finally {
+            for(File piece: pieces) {
+                piece.delete();
+            }
+            listFile.delete();
+        }
+    }
+
+    private void setProgressSpan(long offsetUs, long durationUs) {
+        if(mProgressParser != null) {
+            mProgressParser.setSpan(offsetUs, durationUs);
+        }
+    }
+
+    private void encodeRange(String inputPath, long seekUs, long durationUs, String outputPath) throws IOException {
+        boolean isRotationKept = mVideoFilter != null && mRotation >= 0;
+
+        mExecutor.init();
+        mExecutor.putCommand("-y");
+        mEncoderProfile.putFilterThreadOptions(mExecutor)
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(seekUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(durationUs));
+        if(isRotationKept) {
+            mExecutor.putCommand("-noautorotate");
+        }
+        mExecutor.putCommand("-i")
+                .putCommand(inputPath);
+
+        if(mVideoFilter != null) {
+            mExecutor.putCommand("-vf")
+                    .putCommand(mVideoFilter);
+        }
+        if(isRotationKept) {
+            mExecutor.putCommand("-metadata:s:v:0")
+                    .putCommand("rotate=" + mRotation);
+        }
+
+        mEncoderProfile.putVideoOptions(mExecutor)
+                .putCommand("-c:a")
+                .putCommand("copy")
+                .putCommand(outputPath)
+                .executeCommand();
+    }
+
+    // frames are left unturned like the copied ones, the concat tags the rotation
+    private void encodePiece(String inputPath, SmartCutPlan.Segment segment, EncoderProfile profile, File piece) throws IOException {
+        mExecutor.init();
+        mExecutor.putCommand("-y");
+        profile.putFilterThreadOptions(mExecutor)
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(segment.seekUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(segment.durationUs))
+                .putCommand("-noautorotate")
+                .putCommand("-i")
+                .putCommand(inputPath);
+        profile.putVideoOptions(mExecutor)
+                .putCommand("-pix_fmt")
+                .putCommand("yuv420p")
+                .putCommand("-an")
+                .putCommand("-f")
+                .putCommand("mpegts")
+                .putCommand(piece.getAbsolutePath())
+                .executeCommand();
+    }
+
+    private void copyPiece(String inputPath, SmartCutPlan.Segment segment, File piece) throws IOException {
+        mExecutor.init();
+        mExecutor.putCommand("-y")
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(segment.seekUs))
+                .putCommand("-i")
+                .putCommand(inputPath)
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(segment.durationUs))
+                .putCommand("-an")
+                .putCommand("-c")
+                .putCommand("copy")
+                .putCommand("-bsf:v")
+                .putCommand("h264_mp4toannexb")
+                .putCommand("-f")
+                .putCommand("mpegts")
+                .putCommand(piece.getAbsolutePath())
+                .executeCommand();
+    }
+
+    // joins the video only pieces and takes the audio of the range from the source in one go,
+    // copied when it is AAC already, the pieces are unturned and get the rotation as a tag
+    private void concat(File listFile, String inputPath, long startUs, long durationUs, int rotation, String outputPath) throws IOException {
+        mExecutor.init();
+        mExecutor.putCommand("-y")
+                .putCommand("-f")
+                .putCommand("concat")
+                .putCommand("-safe")
+                .putCommand("0")
+                .putCommand("-i")
+                .putCommand(listFile.getAbsolutePath())
+                .putCommand("-ss")
+                .putCommand(FFmpegTime.toSeconds(startUs))
+                .putCommand("-t")
+                .putCommand(FFmpegTime.toSeconds(durationUs))
+                .putCommand("-i")
+                .putCommand(inputPath)
+                .putCommand("-map")
+                .putCommand("0:v:0")
+                .putCommand("-map")
+                .putCommand("1:a:0?")
+                .putCommand("-c:v")
+                .putCommand("copy");
+
+        if(mSampleIndex != null && mSampleIndex.getAudioCodec() == SampleIndex.AUDIO_AAC) {
+            mExecutor.putCommand("-c:a")
+                    .putCommand("copy");
+        } else {
+            mExecutor.putCommand("-c:a")
+                    .putCommand("aac")
+                    .putCommand("-strict")
+                    .putCommand("-2");
+        }
+
+        if(rotation > 0) {
+            mExecutor.putCommand("-metadata:s:v:0")
+                    .putCommand("rotate=" + rotation);
+        }
+
+        mExecutor.putCommand(outputPath)
+                .executeCommand();
+    }
+
+    static void writeConcatList(File listFile, List<File> pieces) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(listFile), "UTF-8");
+        try {
+            for(File piece: pieces) {
+                writer.write("file '");
+                writer.write(piece.getAbsolutePath().replace("'", "'\\''"));
+                writer.write("'\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
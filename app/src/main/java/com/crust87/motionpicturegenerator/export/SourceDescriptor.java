@@ -0,0 +1,187 @@
+package com.crust87.motionpicturegenerator.export;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * A source video opened for ffmpeg and the parsers, given as a path or a content uri.
+ * <p>
+ * Documents and cloud providers have no path behind their uris, and copying the video out first
+ * costs as much as encoding it. A content uri is opened as a {@link ParcelFileDescriptor} instead,
+ * and read through /proc/&lt;pid&gt;/fd/&lt;fd&gt; of this process. ffmpeg runs as a child process
+ * that does not inherit the descriptor, so it reopens it through the pid rather than /proc/self.
+ * The path stays valid until the descriptor is closed.
+ * <p>
+ * A descriptor path names whatever this process opened under that number, so caches key the
+ * source by {@link #getKey()}, a fingerprint of its content, and never by its path.
+ */
+public class SourceDescriptor implements Closeable {
+
+    private static final String TAG = "SourceDescriptor";
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLE_COUNT = 4;			// evenly spread, the first at the start and the last at the end
+
+    // Components
+    private final ParcelFileDescriptor mDescriptor;		// null for plain paths
+
+    // Attributes
+    private final String mSource;
+    private final String mPath;
+
+    // Working Variables, guarded by this
+    private String mFingerprint;
+    private IOException mFingerprintError;
+
+    // Constructors
+    private SourceDescriptor(String source, String path, ParcelFileDescriptor descriptor) {
+        mSource = source;
+        mPath = path;
+        mDescriptor = descriptor;
+    }
+
+    // opens the provider for content uris, keep it off the main thread
+    public static SourceDescriptor open(ContentResolver contentResolver, String source) throws IOException {
+        Uri uri = Uri.parse(source);
+        String scheme = uri.getScheme();
+        if(ContentResolver.SCHEME_FILE.equals(scheme)) {
+            return new SourceDescriptor(source, uri.getPath(), null);
+        } else if(!ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            return new SourceDescriptor(source, source, null);
+        }
+
+        // a restored job may have lost its grant with the process, or the provider may be gone
+        ParcelFileDescriptor descriptor;
+        try {
+            descriptor = contentResolver.openFileDescriptor(uri, "r");
+        } catch(SecurityException e) {
+            throw new IOException("no permission to read " + source, e);
+        } catch(RuntimeException e) {
+            throw new IOException("fail to open " + source, e);
+        }
+        if(descriptor == null) {
+            throw new IOException("no file behind " + source);
+        }
+
+        return new SourceDescriptor(source, "/proc/" + Process.myPid() + "/fd/" + descriptor.getFd(), descriptor);
+    }
+
+    // the readable file behind a media store uri, or the uri itself, queries the provider so keep it off the main thread
+    public static String resolve(ContentResolver contentResolver, Uri uri) {
+        if(!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            return uri.toString();
+        }
+
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(uri, new String[] {MediaStore.Video.Media.DATA}, null, null, null);
+            if(cursor != null && cursor.moveToFirst()) {
+                int columnIndex = cursor.getColumnIndex(MediaStore.Video.Media.DATA);
+                String path = columnIndex >= 0 ? cursor.getString(columnIndex) : null;
+                if(path != null && new File(path).canRead()) {
+                    return path;
+                }
+            }
+        } catch(RuntimeException e) {
+            // documents providers may refuse the column
+            Log.d(TAG, "no path behind " + uri, e);
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return uri.toString();
+    }
+
+    public static boolean isContentUri(String source) {
+        return source.startsWith(ContentResolver.SCHEME_CONTENT + ":");
+    }
+
+    // what was opened, a path or uri that can be journaled and opened again
+    public String getSource() {
+        return mSource;
+    }
+
+    // a path ffmpeg and the parsers can open
+    public String getPath() {
+        return mPath;
+    }
+
+    // fingerprint of the content, reads a few blocks the first time so keep it off the main thread
+    public synchronized String getFingerprint() throws IOException {
+        if(mFingerprint == null && mFingerprintError == null) {
+            try {
+                mFingerprint = fingerprint(mPath);
+            } catch(IOException e) {
+                mFingerprintError = e;
+            }
+        }
+
+        if(mFingerprint == null) {
+            throw mFingerprintError;
+        }
+
+        return mFingerprint;
+    }
+
+    // what caches key the source by, the fingerprint or the source itself when a pipe can not seek
+    public String getKey() {
+        try {
+            return getFingerprint();
+        } catch(IOException e) {
+            Log.d(TAG, "no fingerprint for " + mSource, e);
+            return mSource;
+        }
+    }
+
+    // size and sampled blocks, reading the whole source would cost as much as a short export
+    public static String fingerprint(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            long length = file.length();
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[SAMPLE_SIZE];
+            long last = Math.max(0, length - SAMPLE_SIZE);
+            for(int i = 0; i < SAMPLE_COUNT; i++) {
+                file.seek(last * i / (SAMPLE_COUNT - 1));
+                int read = file.read(buffer);
+                if(read > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+
+            byte[] hash = digest.digest();
+            StringBuilder builder = new StringBuilder(hash.length * 2 + 20).append(length).append('-');
+            for(byte b: hash) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+
+            return builder.toString();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(mDescriptor != null) {
+            mDescriptor.close();
+        }
+    }
+}
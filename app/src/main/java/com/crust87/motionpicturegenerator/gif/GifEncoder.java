@@ -0,0 +1,379 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Animated GIF89a encoder that quantizes and compresses frames in parallel.
+ * <p>
+ * Every frame gets its own octree palette, dithering and LZW stream, so frames are independent
+ * tasks on the given executor. Finished frames are written strictly in the order they were added,
+ * with at most a few frames per thread in flight to bound memory. Frame buffers are handed out by
+ * {@link #obtainFrame()} and recycled once quantized, or rgba buffers owned by the caller are read
+ * directly on the worker and released through a callback.
+ */
+public class GifEncoder {
+
+    public static final int DITHER_NONE = 0;
+    public static final int DITHER_BAYER = 1;
+    public static final int DITHER_FLOYD_STEINBERG = 2;
+    public static final int DITHER_SIERRA_LITE = 3;
+
+    private static final int MAX_COLORS = 256;
+    private static final int FRAMES_PER_THREAD = 2;
+
+    private static final int[] BAYER = {
+            0, 8, 2, 10,
+            12, 4, 14, 6,
+            3, 11, 1, 9,
+            15, 7, 13, 5
+    };
+
+    // per thread quantizer, compressor and scratch rows, reused for every frame the thread encodes
+    private static final ThreadLocal<FrameWorker> sFrameWorker = new ThreadLocal<FrameWorker>() {
+        @Override
+        protected FrameWorker initialValue() {
+            return new FrameWorker();
+        }
+    };
+
+    // Components
+    private final OutputStream mOutputStream;
+    private final ExecutorService mExecutorService;
+
+    // Attributes
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxInFlight;
+    private int mLoopCount;				// times the animation plays, 0 loops forever
+    private int mDither;
+
+    // Working Variables
+    private final Queue<Future<byte[]>> mInFlight;
+    private final ConcurrentLinkedQueue<int[]> mFramePool;
+    private boolean isHeaderWritten;
+    private int mFrameCount;
+
+    // Constructors
+    public GifEncoder(OutputStream outputStream, int width, int height, ExecutorService executorService, int parallelism) {
+        mOutputStream = outputStream;
+        mWidth = width;
+        mHeight = height;
+        mExecutorService = executorService;
+        mMaxInFlight = Math.max(1, parallelism) * FRAMES_PER_THREAD;
+        mInFlight = new ArrayDeque<>();
+        mFramePool = new ConcurrentLinkedQueue<>();
+        mDither = DITHER_SIERRA_LITE;
+    }
+
+    public void setLoopCount(int loopCount) {
+        mLoopCount = loopCount;
+    }
+
+    public void setDither(int dither) {
+        mDither = dither;
+    }
+
+    // argb buffer of width * height pixels, pass it to addFrame when filled
+    public int[] obtainFrame() {
+        int[] frame = mFramePool.poll();
+        return frame != null ? frame : new int[mWidth * mHeight];
+    }
+
+    // takes ownership of the frame, it goes back to the pool once quantized
+    public void addFrame(final int[] argb, final int delayCs) throws IOException {
+        if(!isHeaderWritten) {
+            writeHeader();
+        }
+
+        while(mInFlight.size() >= mMaxInFlight) {
+            writeNext();
+        }
+
+        mInFlight.add(mExecutorService.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                byte[] frame = encodeFrame(argb, delayCs);
+                mFramePool.offer(argb);
+                return frame;
+            }
+        }));
+        mFrameCount++;
+    }
+
+    // packed rgba rows, onReleased runs on the worker as soon as the pixels have been copied
+    public void addFrame(final ByteBuffer rgba, final int stride, final int delayCs, final Runnable onReleased) throws IOException {
+        if(!isHeaderWritten) {
+            writeHeader();
+        }
+
+        while(mInFlight.size() >= mMaxInFlight) {
+            writeNext();
+        }
+
+        mInFlight.add(mExecutorService.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                int[] argb = sFrameWorker.get().getArgb(mWidth * mHeight);
+                try {
+                    for(int y = 0; y < mHeight; y++) {
+                        int offset = y * stride;
+                        int row = y * mWidth;
+                        for(int x = 0; x < mWidth; x++, offset += 4) {
+                            argb[row + x] = (rgba.get(offset + 3) & 0xff) << 24 | (rgba.get(offset) & 0xff) << 16
+                                    | (rgba.get(offset + 1) & 0xff) << 8 | (rgba.get(offset + 2) & 0xff);
+                        }
+                    }
+                } finally {
+                    onReleased.run();
+                }
+
+                return encodeFrame(argb, delayCs);
+            }
+        }));
+        mFrameCount++;
+    }
+
+    // writes the remaining frames and the trailer, the stream is left open
+    public void finish() throws IOException {
+        if(!isHeaderWritten) {
+            writeHeader();
+        }
+
+        while(!mInFlight.isEmpty()) {
+            writeNext();
+        }
+
+        mOutputStream.write(0x3b);
+        mOutputStream.flush();
+    }
+
+    // stops waiting for frames still in flight
+    public void cancel() {
+        for(Future<byte[]> future: mInFlight) {
+            future.cancel(true);
+        }
+        mInFlight.clear();
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    private void writeNext() throws IOException {
+        Future<byte[]> future = mInFlight.poll();
+        try {
+            mOutputStream.write(future.get());
+        } catch(InterruptedException e) {
+            cancel();
+            throw new InterruptedIOException("interrupted while encoding gif");
+        } catch(ExecutionException e) {
+            cancel();
+            throw new IOException("fail to encode gif frame", e.getCause());
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        mOutputStream.write(new byte[] {'G', 'I', 'F', '8', '9', 'a'});
+
+        // logical screen descriptor without a global color table
+        writeShort(mOutputStream, mWidth);
+        writeShort(mOutputStream, mHeight);
+        mOutputStream.write(0);
+        mOutputStream.write(0);
+        mOutputStream.write(0);
+
+        // netscape extension, counts repeats after the first play
+        if(mLoopCount != 1) {
+            mOutputStream.write(0x21);
+            mOutputStream.write(0xff);
+            mOutputStream.write(11);
+            mOutputStream.write(new byte[] {'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0'});
+            mOutputStream.write(3);
+            mOutputStream.write(1);
+            writeShort(mOutputStream, mLoopCount == 0 ? 0 : mLoopCount - 1);
+            mOutputStream.write(0);
+        }
+
+        isHeaderWritten = true;
+    }
+
+    private byte[] encodeFrame(int[] argb, int delayCs) {
+        int pixelCount = mWidth * mHeight;
+        FrameWorker worker = sFrameWorker.get();
+        byte[] indices = worker.getIndices(pixelCount);
+
+        OctreeQuantizer quantizer = worker.mQuantizer;
+        quantizer.reset();
+        for(int i = 0; i < pixelCount; i++) {
+            quantizer.addColor(argb[i]);
+        }
+        int colorCount = quantizer.buildPalette();
+
+        mapPixels(worker, argb, indices);
+
+        int depth = 1;
+        while((1 << depth) < colorCount) {
+            depth++;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(pixelCount / 2 + (3 << depth) + 32);
+
+        // graphic control extension, no transparency, no disposal
+        outputStream.write(0x21);
+        outputStream.write(0xf9);
+        outputStream.write(4);
+        outputStream.write(0);
+        writeShort(outputStream, delayCs);
+        outputStream.write(0);
+        outputStream.write(0);
+
+        // image descriptor with a local color table
+        outputStream.write(0x2c);
+        writeShort(outputStream, 0);
+        writeShort(outputStream, 0);
+        writeShort(outputStream, mWidth);
+        writeShort(outputStream, mHeight);
+        outputStream.write(0x80 | (depth - 1));
+
+        int[] palette = quantizer.getPalette();
+        for(int i = 0; i < 1 << depth; i++) {
+            int color = i < colorCount ? palette[i] : 0;
+            outputStream.write((color >> 16) & 0xff);
+            outputStream.write((color >> 8) & 0xff);
+            outputStream.write(color & 0xff);
+        }
+
+        worker.mLzwEncoder.encode(indices, pixelCount, depth, outputStream);
+
+        return outputStream.toByteArray();
+    }
+
+    private void mapPixels(FrameWorker worker, int[] argb, byte[] indices) {
+        OctreeQuantizer quantizer = worker.mQuantizer;
+        int[] palette = quantizer.getPalette();
+        boolean diffuse = mDither == DITHER_FLOYD_STEINBERG || mDither == DITHER_SIERRA_LITE;
+
+        // error rows of the current and the next line, one pixel of padding on both sides
+        int[] current = worker.getErrorRow(0, mWidth);
+        int[] next = worker.getErrorRow(1, mWidth);
+        if(diffuse) {
+            Arrays.fill(next, 0);
+        }
+
+        for(int y = 0; y < mHeight; y++) {
+            if(diffuse) {
+                int[] swap = current;
+                current = next;
+                next = swap;
+                Arrays.fill(next, 0);
+            }
+
+            int row = y * mWidth;
+            for(int x = 0; x < mWidth; x++) {
+                int color = argb[row + x];
+                int r = (color >> 16) & 0xff;
+                int g = (color >> 8) & 0xff;
+                int b = color & 0xff;
+
+                if(mDither == DITHER_BAYER) {
+                    int offset = (BAYER[(y & 3) << 2 | (x & 3)] * 2) - 15;
+                    r = clamp(r + offset);
+                    g = clamp(g + offset);
+                    b = clamp(b + offset);
+                } else if(diffuse) {
+                    int e = (x + 1) * 3;
+                    r = clamp(r + (current[e] >> 4));
+                    g = clamp(g + (current[e + 1] >> 4));
+                    b = clamp(b + (current[e + 2] >> 4));
+                }
+
+                int index = quantizer.map(r, g, b);
+                indices[row + x] = (byte) index;
+
+                if(diffuse) {
+                    int mapped = palette[index];
+                    diffuse(current, next, x, r - ((mapped >> 16) & 0xff), 0);
+                    diffuse(current, next, x, g - ((mapped >> 8) & 0xff), 1);
+                    diffuse(current, next, x, b - (mapped & 0xff), 2);
+                }
+            }
+        }
+    }
+
+    // errors are kept in 1/16 units
+    private void diffuse(int[] current, int[] next, int x, int error, int channel) {
+        int left = x * 3 + channel;
+        int center = left + 3;
+        int right = center + 3;
+
+        if(mDither == DITHER_FLOYD_STEINBERG) {
+            current[right] += error * 7;
+            next[left] += error * 3;
+            next[center] += error * 5;
+            next[right] += error;
+        } else {
+            current[right] += error * 8;
+            next[left] += error * 4;
+            next[center] += error * 4;
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+
+    private static void writeShort(OutputStream outputStream, int value) throws IOException {
+        outputStream.write(value & 0xff);
+        outputStream.write((value >> 8) & 0xff);
+    }
+
+    private static void writeShort(ByteArrayOutputStream outputStream, int value) {
+        outputStream.write(value & 0xff);
+        outputStream.write((value >> 8) & 0xff);
+    }
+
+    private static class FrameWorker {
+        private final OctreeQuantizer mQuantizer = new OctreeQuantizer(MAX_COLORS);
+        private final LzwEncoder mLzwEncoder = new LzwEncoder();
+        private final int[][] mErrorRows = new int[2][];
+        private byte[] mIndices;
+        private int[] mArgb;
+
+        private int[] getArgb(int count) {
+            if(mArgb == null || mArgb.length < count) {
+                mArgb = new int[count];
+            }
+
+            return mArgb;
+        }
+
+        private byte[] getIndices(int count) {
+            if(mIndices == null || mIndices.length < count) {
+                mIndices = new byte[count];
+            }
+
+            return mIndices;
+        }
+
+        private int[] getErrorRow(int row, int width) {
+            int length = (width + 2) * 3;
+            if(mErrorRows[row] == null || mErrorRows[row].length != length) {
+                mErrorRows[row] = new int[length];
+            }
+
+            return mErrorRows[row];
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * GIF flavoured LZW, variable code size up to 12 bits, written as 255 byte sub-blocks.
+ * <p>
+ * One instance encodes one frame at a time and keeps its tables between frames.
+ */
+public class LzwEncoder {
+
+    private static final int MAX_BITS = 12;
+    private static final int MAX_CODE = 1 << MAX_BITS;
+    private static final int HASH_SIZE = 8192;			// power of two, at most half full
+
+    // Working Variables
+    private final int[] mHashKeys;
+    private final int[] mHashCodes;
+    private final byte[] mBlock;
+    private ByteArrayOutputStream mOutputStream;
+    private int mBlockSize;
+    private int mBitBuffer;
+    private int mBitCount;
+    private int mCodeSize;
+
+    // Constructors
+    public LzwEncoder() {
+        mHashKeys = new int[HASH_SIZE];
+        mHashCodes = new int[HASH_SIZE];
+        mBlock = new byte[255];
+    }
+
+    // colorDepth is the bit count of the color table, writes the minimum code size and the sub-blocks
+    public void encode(byte[] indices, int count, int colorDepth, ByteArrayOutputStream outputStream) {
+        int initialCodeSize = Math.max(2, colorDepth);
+        int clearCode = 1 << initialCodeSize;
+        int endCode = clearCode + 1;
+
+        mOutputStream = outputStream;
+        mBlockSize = 0;
+        mBitBuffer = 0;
+        mBitCount = 0;
+        outputStream.write(initialCodeSize);
+
+        mCodeSize = initialCodeSize + 1;
+        int nextCode = clearCode + 2;
+        Arrays.fill(mHashKeys, -1);
+        writeCode(clearCode);
+
+        if(count > 0) {
+            int prefix = indices[0] & 0xff;
+            for(int i = 1; i < count; i++) {
+                int pixel = indices[i] & 0xff;
+                int key = prefix << 8 | pixel;
+
+                int slot = hash(key);
+                while(mHashKeys[slot] >= 0 && mHashKeys[slot] != key) {
+                    slot = (slot + 1) & (HASH_SIZE - 1);
+                }
+
+                if(mHashKeys[slot] == key) {
+                    prefix = mHashCodes[slot];
+                    continue;
+                }
+
+                writeCode(prefix);
+                if(nextCode < MAX_CODE) {
+                    mHashKeys[slot] = key;
+                    mHashCodes[slot] = nextCode++;
+                    // the decoder adds the entry one code later, so grow after it was written
+                    if(nextCode > (1 << mCodeSize) && mCodeSize < MAX_BITS) {
+                        mCodeSize++;
+                    }
+                } else {
+                    writeCode(clearCode);
+                    Arrays.fill(mHashKeys, -1);
+                    mCodeSize = initialCodeSize + 1;
+                    nextCode = clearCode + 2;
+                }
+                prefix = pixel;
+            }
+            writeCode(prefix);
+            if(nextCode >= (1 << mCodeSize) && mCodeSize < MAX_BITS) {
+                mCodeSize++;
+            }
+        }
+
+        writeCode(endCode);
+        if(mBitCount > 0) {
+            writeByte(mBitBuffer & 0xff);
+        }
+        flushBlock();
+        outputStream.write(0);
+
+        mOutputStream = null;
+    }
+
+    private void writeCode(int code) {
+        mBitBuffer |= code << mBitCount;
+        mBitCount += mCodeSize;
+        while(mBitCount >= 8) {
+            writeByte(mBitBuffer & 0xff);
+            mBitBuffer >>>= 8;
+            mBitCount -= 8;
+        }
+    }
+
+    private void writeByte(int value) {
+        mBlock[mBlockSize++] = (byte) value;
+        if(mBlockSize == mBlock.length) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() {
+        if(mBlockSize > 0) {
+            mOutputStream.write(mBlockSize);
+            mOutputStream.write(mBlock, 0, mBlockSize);
+            mBlockSize = 0;
+        }
+    }
+
+    private static int hash(int key) {
+        return (key * 0x9E3779B1 >>> 19) & (HASH_SIZE - 1);
+    }
+}
@@ -0,0 +1,267 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import java.util.Arrays;
+
+/**
+ * Octree color quantizer over primitive arrays.
+ * <p>
+ * Nodes live in parallel arrays and are recycled through a free list, so a quantizer reused for
+ * every frame stops allocating once it has grown to the largest tree it needed. Colors the tree
+ * did not see, such as dithered ones, fall back to the nearest palette entry, cached per 15 bit
+ * color.
+ */
+public class OctreeQuantizer {
+
+    private static final int MAX_DEPTH = 6;			// leaves keep the top 6 bits of every channel
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Attributes
+    private final int mMaxColors;
+
+    // Working Variables
+    private int[] mChildren;
+    private long[] mRed;
+    private long[] mGreen;
+    private long[] mBlue;
+    private int[] mCount;
+    private boolean[] mLeaf;
+    private int[] mNext;						// next node of the reducible list of a level, or of the free list
+    private int[] mPaletteIndex;
+    private final int[] mReducible;
+    private int mSize;
+    private int mFree;
+    private int mRoot;
+    private int mLeafCount;
+
+    private final int[] mPalette;
+    private int mColorCount;
+    private final int[] mNearestCache;			// palette index + 1 of a 15 bit color, 0 if not looked up yet
+
+    // Constructors
+    public OctreeQuantizer(int maxColors) {
+        mMaxColors = maxColors;
+        mReducible = new int[MAX_DEPTH];
+        mPalette = new int[maxColors];
+        mNearestCache = new int[1 << 15];
+        allocate(INITIAL_CAPACITY);
+        reset();
+    }
+
+    public void reset() {
+        Arrays.fill(mReducible, -1);
+        mSize = 0;
+        mFree = -1;
+        mLeafCount = 0;
+        mColorCount = 0;
+        mRoot = newNode(0);
+    }
+
+    // rgb in the low 24 bits, alpha is ignored
+    public void addColor(int rgb) {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+
+        int node = mRoot;
+        for(int level = 0; ; level++) {
+            if(mLeaf[node]) {
+                mRed[node] += r;
+                mGreen[node] += g;
+                mBlue[node] += b;
+                mCount[node]++;
+                break;
+            }
+
+            int slot = node * 8 + childIndex(r, g, b, level);
+            int child = mChildren[slot];
+            if(child < 0) {
+                child = newNode(level + 1);
+                mChildren[slot] = child;
+            }
+            node = child;
+        }
+
+        while(mLeafCount > mMaxColors) {
+            reduce();
+        }
+    }
+
+    // call once all colors are added, returns the number of palette entries
+    public int buildPalette() {
+        mColorCount = 0;
+        assignPalette(mRoot);
+        Arrays.fill(mNearestCache, 0);
+
+        return mColorCount;
+    }
+
+    public int map(int r, int g, int b) {
+        int node = mRoot;
+        for(int level = 0; ; level++) {
+            if(mLeaf[node]) {
+                return mPaletteIndex[node];
+            }
+
+            node = mChildren[node * 8 + childIndex(r, g, b, level)];
+            if(node < 0) {
+                return nearest(r, g, b);
+            }
+        }
+    }
+
+    public int[] getPalette() {
+        return mPalette;
+    }
+
+    public int getColorCount() {
+        return mColorCount;
+    }
+
+    private int nearest(int r, int g, int b) {
+        int key = (r >> 3) << 10 | (g >> 3) << 5 | (b >> 3);
+        int cached = mNearestCache[key];
+        if(cached > 0) {
+            return cached - 1;
+        }
+
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for(int i = 0; i < mColorCount; i++) {
+            int color = mPalette[i];
+            int dr = ((color >> 16) & 0xff) - r;
+            int dg = ((color >> 8) & 0xff) - g;
+            int db = (color & 0xff) - b;
+            int distance = dr * dr + dg * dg + db * db;
+            if(distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        mNearestCache[key] = best + 1;
+
+        return best;
+    }
+
+    // merges the children of the deepest reducible node into it
+    private void reduce() {
+        int level = MAX_DEPTH - 1;
+        while(level > 0 && mReducible[level] < 0) {
+            level--;
+        }
+
+        int node = mReducible[level];
+        if(node < 0) {
+            return;
+        }
+        mReducible[level] = mNext[node];
+
+        for(int i = 0; i < 8; i++) {
+            int slot = node * 8 + i;
+            int child = mChildren[slot];
+            if(child < 0) {
+                continue;
+            }
+
+            mRed[node] += mRed[child];
+            mGreen[node] += mGreen[child];
+            mBlue[node] += mBlue[child];
+            mCount[node] += mCount[child];
+            mChildren[slot] = -1;
+            mNext[child] = mFree;
+            mFree = child;
+            mLeafCount--;
+        }
+
+        mLeaf[node] = true;
+        mLeafCount++;
+    }
+
+    private void assignPalette(int node) {
+        if(mLeaf[node]) {
+            int count = Math.max(1, mCount[node]);
+            int r = (int) (mRed[node] / count);
+            int g = (int) (mGreen[node] / count);
+            int b = (int) (mBlue[node] / count);
+
+            mPaletteIndex[node] = mColorCount;
+            mPalette[mColorCount++] = r << 16 | g << 8 | b;
+            return;
+        }
+
+        for(int i = 0; i < 8; i++) {
+            int child = mChildren[node * 8 + i];
+            if(child >= 0) {
+                assignPalette(child);
+            }
+        }
+    }
+
+    private int newNode(int level) {
+        int node;
+        if(mFree >= 0) {
+            node = mFree;
+            mFree = mNext[node];
+        } else {
+            if(mSize == mCount.length) {
+                allocate(mSize * 2);
+            }
+            node = mSize++;
+        }
+
+        Arrays.fill(mChildren, node * 8, node * 8 + 8, -1);
+        mRed[node] = 0;
+        mGreen[node] = 0;
+        mBlue[node] = 0;
+        mCount[node] = 0;
+        mLeaf[node] = level == MAX_DEPTH;
+
+        if(mLeaf[node]) {
+            mLeafCount++;
+        } else {
+            mNext[node] = mReducible[level];
+            mReducible[level] = node;
+        }
+
+        return node;
+    }
+
+    private void allocate(int capacity) {
+        int size = mCount == null ? 0 : mSize;
+        mChildren = grow(mChildren, capacity * 8, size * 8);
+        mRed = grow(mRed, capacity, size);
+        mGreen = grow(mGreen, capacity, size);
+        mBlue = grow(mBlue, capacity, size);
+        mCount = grow(mCount, capacity, size);
+        mNext = grow(mNext, capacity, size);
+        mPaletteIndex = grow(mPaletteIndex, capacity, size);
+
+        boolean[] leaf = new boolean[capacity];
+        if(mLeaf != null) {
+            System.arraycopy(mLeaf, 0, leaf, 0, size);
+        }
+        mLeaf = leaf;
+    }
+
+    private static int childIndex(int r, int g, int b, int level) {
+        int shift = 7 - level;
+        return ((r >> shift) & 1) << 2 | ((g >> shift) & 1) << 1 | ((b >> shift) & 1);
+    }
+
+    private static int[] grow(int[] array, int capacity, int size) {
+        int[] grown = new int[capacity];
+        if(array != null) {
+            System.arraycopy(array, 0, grown, 0, size);
+        }
+
+        return grown;
+    }
+
+    private static long[] grow(long[] array, int capacity, int size) {
+        long[] grown = new long[capacity];
+        if(array != null) {
+            System.arraycopy(array, 0, grown, 0, size);
+        }
+
+        return grown;
+    }
+}
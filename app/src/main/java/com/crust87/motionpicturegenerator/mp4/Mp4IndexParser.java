@@ -0,0 +1,503 @@
+package com.crust87.motionpicturegenerator.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Minimal MP4 box parser that builds a {@link SampleIndex} for the first video track.
+ * <p>
+ * Top level boxes are walked with small positional reads, then only the moov box is memory-mapped
+ * and its sample tables (stts, ctts, stss, stsz, stco/co64) are read with absolute gets, so no
+ * box is copied and no object is allocated per sample. The sample descriptions of the video track
+ * and of the first audio track are read for their codecs only.
+ */
+public class Mp4IndexParser {
+
+    private static final int TYPE_MOOV = fourCc("moov");
+    private static final int TYPE_MVHD = fourCc("mvhd");
+    private static final int TYPE_TRAK = fourCc("trak");
+    private static final int TYPE_TKHD = fourCc("tkhd");
+    private static final int TYPE_EDTS = fourCc("edts");
+    private static final int TYPE_ELST = fourCc("elst");
+    private static final int TYPE_MDIA = fourCc("mdia");
+    private static final int TYPE_MDHD = fourCc("mdhd");
+    private static final int TYPE_HDLR = fourCc("hdlr");
+    private static final int TYPE_MINF = fourCc("minf");
+    private static final int TYPE_STBL = fourCc("stbl");
+    private static final int TYPE_STTS = fourCc("stts");
+    private static final int TYPE_CTTS = fourCc("ctts");
+    private static final int TYPE_STSS = fourCc("stss");
+    private static final int TYPE_STSZ = fourCc("stsz");
+    private static final int TYPE_STCO = fourCc("stco");
+    private static final int TYPE_CO64 = fourCc("co64");
+    private static final int TYPE_STSD = fourCc("stsd");
+    private static final int TYPE_AVC1 = fourCc("avc1");
+    private static final int TYPE_AVC3 = fourCc("avc3");
+    private static final int TYPE_AVCC = fourCc("avcC");
+    private static final int TYPE_MP4A = fourCc("mp4a");
+    private static final int TYPE_WAVE = fourCc("wave");
+    private static final int TYPE_ESDS = fourCc("esds");
+    private static final int HANDLER_VIDE = fourCc("vide");
+    private static final int HANDLER_SOUN = fourCc("soun");
+
+    // object types of the decoder config descriptor that are AAC, MPEG-4 and the MPEG-2 profiles
+    private static final int[] AAC_OBJECT_TYPES = {0x40, 0x66, 0x67, 0x68};
+
+    private static final int VISUAL_SAMPLE_ENTRY_SIZE = 78;		// fields before the child boxes
+    private static final int AUDIO_SAMPLE_ENTRY_SIZE = 28;
+
+    private Mp4IndexParser() {
+    }
+
+    public static SampleIndex parse(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(16);
+
+            long position = 0;
+            while(position + 8 <= fileSize) {
+                header.clear();
+                if(fileSize - position < 16) {
+                    header.limit((int) (fileSize - position));
+                }
+                while(header.hasRemaining()) {
+                    if(channel.read(header, position + header.position()) < 0) {
+                        throw new IOException("unexpected end of file");
+                    }
+                }
+
+                long size = header.getInt(0) & 0xffffffffL;
+                int type = header.getInt(4);
+                int headerSize = 8;
+                if(size == 1) {
+                    if(header.limit() < 16) {
+                        throw new IOException("truncated box header");
+                    }
+                    size = header.getLong(8);
+                    headerSize = 16;
+                } else if(size == 0) {
+                    size = fileSize - position;
+                }
+
+                if(size < headerSize || position + size > fileSize) {
+                    throw new IOException("invalid box size " + size);
+                }
+
+                if(type == TYPE_MOOV) {
+                    long payloadSize = size - headerSize;
+                    if(payloadSize > Integer.MAX_VALUE) {
+                        throw new IOException("moov box too large");
+                    }
+
+                    ByteBuffer moov = channel.map(FileChannel.MapMode.READ_ONLY, position + headerSize, payloadSize);
+                    try {
+                        return parseMoov(moov);
+                    } catch(IndexOutOfBoundsException e) {
+                        throw new IOException("malformed moov box", e);
+                    }
+                }
+
+                position += size;
+            }
+
+            throw new IOException("no moov box");
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static SampleIndex parseMoov(ByteBuffer buffer) throws IOException {
+        int movieTimescale = 0;
+        Track video = null;
+        Track audio = null;
+
+        int position = 0;
+        int end = buffer.limit();
+        while(position + 8 <= end) {
+            int size = boxSize(buffer, position, end);
+            int type = buffer.getInt(position + 4);
+
+            if(type == TYPE_MVHD) {
+                movieTimescale = readTimescale(buffer, position + headerSize(buffer, position));
+            } else if(type == TYPE_TRAK) {
+                Track track = new Track();
+                track.buffer = buffer;
+                parseContainer(buffer, position + headerSize(buffer, position), position + size, track);
+                if(video == null && track.isVideo()) {
+                    video = track;
+                } else if(audio == null && track.handler == HANDLER_SOUN) {
+                    audio = track;
+                }
+            }
+
+            position += size;
+        }
+
+        if(video == null) {
+            throw new IOException("no video track");
+        }
+
+        video.movieTimescale = movieTimescale;
+        return video.build(audio == null ? SampleIndex.AUDIO_NONE : audio.readAudioCodec());
+    }
+
+    // walk trak and its descendants, collect every box a sample index needs
+    private static void parseContainer(ByteBuffer buffer, int position, int end, Track track) throws IOException {
+        while(position + 8 <= end) {
+            int size = boxSize(buffer, position, end);
+            int type = buffer.getInt(position + 4);
+            int payload = position + headerSize(buffer, position);
+
+            if(type == TYPE_EDTS || type == TYPE_MDIA || type == TYPE_MINF || type == TYPE_STBL) {
+                parseContainer(buffer, payload, position + size, track);
+            } else if(type == TYPE_TKHD) {
+                track.tkhd = payload;
+            } else if(type == TYPE_HDLR) {
+                track.handler = buffer.getInt(payload + 8);
+            } else if(type == TYPE_MDHD) {
+                track.timescale = readTimescale(buffer, payload);
+            } else if(type == TYPE_ELST) {
+                track.elst = payload;
+            } else if(type == TYPE_STTS) {
+                track.stts = payload;
+            } else if(type == TYPE_CTTS) {
+                track.ctts = payload;
+            } else if(type == TYPE_STSS) {
+                track.stss = payload;
+            } else if(type == TYPE_STSZ) {
+                track.stsz = payload;
+            } else if(type == TYPE_STCO) {
+                track.stco = payload;
+            } else if(type == TYPE_CO64) {
+                track.co64 = payload;
+            } else if(type == TYPE_STSD) {
+                track.stsd = payload;
+            }
+
+            position += size;
+        }
+    }
+
+    private static int boxSize(ByteBuffer buffer, int position, int end) throws IOException {
+        long size = buffer.getInt(position) & 0xffffffffL;
+        if(size == 0) {
+            size = end - position;
+        } else if(size == 1) {
+            // 64 bit sizes inside moov are legal but never larger than the mapped moov itself
+            size = buffer.getLong(position + 8);
+            if(size > end - position) {
+                throw new IOException("invalid box size " + size);
+            }
+        }
+
+        if(size < 8 || size > end - position) {
+            throw new IOException("invalid box size " + size);
+        }
+
+        return (int) size;
+    }
+
+    private static int headerSize(ByteBuffer buffer, int position) {
+        return buffer.getInt(position) == 1 ? 16 : 8;
+    }
+
+    // position of the first box of the type, -1 if absent
+    private static int findBox(ByteBuffer buffer, int position, int end, int type) throws IOException {
+        while(position + 8 <= end) {
+            int size = boxSize(buffer, position, end);
+            if(buffer.getInt(position + 4) == type) {
+                return position;
+            }
+
+            position += size;
+        }
+
+        return -1;
+    }
+
+    // size of a descriptor of an esds box, 7 bits per byte while the top bit is set
+    private static int descriptorSize(ByteBuffer buffer, int position) {
+        int size = 0;
+        for(int i = 0; i < 4; i++) {
+            int b = buffer.get(position + i) & 0xff;
+            size = (size << 7) | (b & 0x7f);
+            if((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        return size;
+    }
+
+    // tag and size bytes of the descriptor at position
+    private static int descriptorHeaderSize(ByteBuffer buffer, int position) {
+        int length = 1;
+        while(length < 4 && (buffer.get(position + length) & 0x80) != 0) {
+            length++;
+        }
+
+        return 1 + length;
+    }
+    // mvhd and mdhd share the layout up to duration
+    private static int readTimescale(ByteBuffer buffer, int payload) {
+        int version = buffer.get(payload) & 0xff;
+        return buffer.getInt(payload + (version == 1 ? 20 : 12));
+    }
+
+    static int fourCc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    // payload offsets of the boxes of one track, -1 if absent
+    private static class Track {
+        ByteBuffer buffer;
+        int handler;
+        int timescale;
+        int tkhd = -1;
+        int movieTimescale;
+        int elst = -1;
+        int stts = -1;
+        int ctts = -1;
+        int stss = -1;
+        int stsz = -1;
+        int stco = -1;
+        int co64 = -1;
+        int stsd = -1;
+
+        boolean isVideo() {
+            return handler == HANDLER_VIDE && stts >= 0 && stsz >= 0 && timescale > 0;
+        }
+
+        SampleIndex build(int audioCodec) throws IOException {
+            int[] sampleSizes = readSampleSizes();
+            int sampleCount = sampleSizes.length;
+
+            // decode times from stts
+            long[] sampleTimes = new long[sampleCount];
+            int entryCount = buffer.getInt(stts + 4);
+            int sample = 0;
+            long time = 0;
+            for(int i = 0, entry = stts + 8; i < entryCount && sample < sampleCount; i++, entry += 8) {
+                int count = buffer.getInt(entry);
+                long delta = buffer.getInt(entry + 4) & 0xffffffffL;
+                for(int j = 0; j < count && sample < sampleCount; j++) {
+                    sampleTimes[sample++] = time;
+                    time += delta;
+                }
+            }
+            long durationTicks = time;
+
+            // presentation times from ctts, version 1 offsets are signed, version 0 are signed in practice
+            if(ctts >= 0) {
+                entryCount = buffer.getInt(ctts + 4);
+                sample = 0;
+                for(int i = 0, entry = ctts + 8; i < entryCount && sample < sampleCount; i++, entry += 8) {
+                    int count = buffer.getInt(entry);
+                    int offset = buffer.getInt(entry + 4);
+                    for(int j = 0; j < count && sample < sampleCount; j++) {
+                        sampleTimes[sample++] += offset;
+                    }
+                }
+            }
+
+            // apply the edit list the way demuxers do, empty edits delay and the first media edit trims
+            long shiftTicks = 0;
+            if(elst >= 0 && movieTimescale > 0) {
+                int version = buffer.get(elst) & 0xff;
+                entryCount = buffer.getInt(elst + 4);
+                int entrySize = version == 1 ? 20 : 12;
+                for(int i = 0, entry = elst + 8; i < entryCount; i++, entry += entrySize) {
+                    long segmentDuration = version == 1 ? buffer.getLong(entry) : buffer.getInt(entry) & 0xffffffffL;
+                    long mediaTime = version == 1 ? buffer.getLong(entry + 8) : buffer.getInt(entry + 4);
+                    if(mediaTime == -1) {
+                        shiftTicks += segmentDuration * timescale / movieTimescale;
+                    } else {
+                        shiftTicks -= mediaTime;
+                        break;
+                    }
+                }
+            }
+
+            for(int i = 0; i < sampleCount; i++) {
+                sampleTimes[i] = (sampleTimes[i] + shiftTicks) * 1000000 / timescale;
+            }
+
+            // sync samples, every sample is a keyframe when stss is missing
+            int[] syncSamples;
+            if(stss >= 0) {
+                entryCount = buffer.getInt(stss + 4);
+                syncSamples = new int[entryCount];
+                int valid = 0;
+                for(int i = 0, entry = stss + 8; i < entryCount; i++, entry += 4) {
+                    int number = buffer.getInt(entry) - 1;
+                    if(number >= 0 && number < sampleCount) {
+                        syncSamples[valid++] = number;
+                    }
+                }
+                if(valid != entryCount) {
+                    syncSamples = Arrays.copyOf(syncSamples, valid);
+                }
+            } else {
+                syncSamples = new int[sampleCount];
+                for(int i = 0; i < sampleCount; i++) {
+                    syncSamples[i] = i;
+                }
+            }
+
+            long[] keyframeTimes = new long[syncSamples.length];
+            for(int i = 0; i < syncSamples.length; i++) {
+                keyframeTimes[i] = sampleTimes[syncSamples[i]];
+            }
+            Arrays.sort(keyframeTimes);
+
+            int width = 0;
+            int height = 0;
+            int rotation = 0;
+            if(tkhd >= 0) {
+                // matrix and 16.16 size follow the version dependent times
+                int matrix = tkhd + ((buffer.get(tkhd) & 0xff) == 1 ? 52 : 40);
+                rotation = readRotation(buffer.getInt(matrix), buffer.getInt(matrix + 4));
+                width = buffer.getInt(matrix + 36) >>> 16;
+                height = buffer.getInt(matrix + 40) >>> 16;
+            }
+
+            // profile_idc and level_idc of the avcC record, the SPS they come from is not parsed
+            String codec = null;
+            int profileIdc = 0;
+            int levelIdc = 0;
+            int entry = readSampleEntry();
+            if(entry >= 0) {
+                int type = buffer.getInt(entry + 4);
+                codec = typeName(type);
+                if(type == TYPE_AVC1 || type == TYPE_AVC3) {
+                    int entryEnd = entry + boxSize(buffer, entry, buffer.limit());
+                    int avcC = findBox(buffer, entry + headerSize(buffer, entry) + VISUAL_SAMPLE_ENTRY_SIZE, entryEnd, TYPE_AVCC);
+                    if(avcC >= 0) {
+                        avcC += headerSize(buffer, avcC);
+                        profileIdc = buffer.get(avcC + 1) & 0xff;
+                        levelIdc = buffer.get(avcC + 3) & 0xff;
+                    }
+                }
+            }
+
+            return new SampleIndex(timescale, durationTicks * 1000000 / timescale, sampleTimes, sampleSizes,
+                    readChunkOffsets(), syncSamples, keyframeTimes, width, height, rotation,
+                    codec, profileIdc, levelIdc, audioCodec);
+        }
+
+        // position of the box of the first sample description, -1 if absent
+        private int readSampleEntry() {
+            if(stsd < 0 || buffer.getInt(stsd + 4) < 1) {
+                return -1;
+            }
+
+            return stsd + 8;
+        }
+
+        // only mp4a with an AAC object type counts as AAC, QuickTime files wrap esds in a wave box
+        int readAudioCodec() throws IOException {
+            int entry = readSampleEntry();
+            if(entry < 0 || buffer.getInt(entry + 4) != TYPE_MP4A) {
+                return entry < 0 ? SampleIndex.AUDIO_NONE : SampleIndex.AUDIO_OTHER;
+            }
+
+            int entryEnd = entry + boxSize(buffer, entry, buffer.limit());
+            int fields = entry + headerSize(buffer, entry);
+            int version = buffer.getShort(fields + 8) & 0xffff;		// sound description version
+            int children = fields + AUDIO_SAMPLE_ENTRY_SIZE + (version == 1 ? 16 : version == 2 ? 36 : 0);
+
+            int esds = findBox(buffer, children, entryEnd, TYPE_ESDS);
+            if(esds < 0) {
+                int wave = findBox(buffer, children, entryEnd, TYPE_WAVE);
+                if(wave >= 0) {
+                    esds = findBox(buffer, wave + headerSize(buffer, wave), wave + boxSize(buffer, wave, entryEnd), TYPE_ESDS);
+                }
+            }
+            if(esds < 0) {
+                return SampleIndex.AUDIO_OTHER;
+            }
+
+            // ES descriptor, then its decoder config descriptor starting with the object type
+            int descriptor = esds + headerSize(buffer, esds) + 4;
+            if(buffer.get(descriptor) != 0x03) {
+                return SampleIndex.AUDIO_OTHER;
+            }
+            descriptor += descriptorHeaderSize(buffer, descriptor);
+            int flags = buffer.get(descriptor + 2) & 0xff;
+            descriptor += 3;
+            if((flags & 0x80) != 0) {
+                descriptor += 2;
+            }
+            if((flags & 0x40) != 0) {
+                descriptor += 1 + (buffer.get(descriptor) & 0xff);
+            }
+            if((flags & 0x20) != 0) {
+                descriptor += 2;
+            }
+            if(buffer.get(descriptor) != 0x04 || descriptorSize(buffer, descriptor + 1) < 1) {
+                return SampleIndex.AUDIO_OTHER;
+            }
+
+            int objectType = buffer.get(descriptor + descriptorHeaderSize(buffer, descriptor)) & 0xff;
+            for(int aacObjectType: AAC_OBJECT_TYPES) {
+                if(objectType == aacObjectType) {
+                    return SampleIndex.AUDIO_AAC;
+                }
+            }
+
+            return SampleIndex.AUDIO_OTHER;
+        }
+
+        private static String typeName(int type) {
+            return new String(new char[] {(char) (type >>> 24), (char) ((type >>> 16) & 0xff),
+                    (char) ((type >>> 8) & 0xff), (char) (type & 0xff)});
+        }
+
+        // angle of the first matrix row, rounded to the quarter turns players honour
+        private static int readRotation(int a, int b) {
+            int degrees = (int) Math.round(Math.toDegrees(Math.atan2(b, a)) / 90) * 90;
+            return (degrees + 360) % 360;
+        }
+
+        private int[] readSampleSizes() {
+            int fixedSize = buffer.getInt(stsz + 4);
+            int sampleCount = buffer.getInt(stsz + 8);
+            int[] sampleSizes = new int[sampleCount];
+            if(fixedSize != 0) {
+                Arrays.fill(sampleSizes, fixedSize);
+            } else {
+                for(int i = 0, entry = stsz + 12; i < sampleCount; i++, entry += 4) {
+                    sampleSizes[i] = buffer.getInt(entry);
+                }
+            }
+
+            return sampleSizes;
+        }
+
+        private long[] readChunkOffsets() {
+            if(stco >= 0) {
+                int entryCount = buffer.getInt(stco + 4);
+                long[] chunkOffsets = new long[entryCount];
+                for(int i = 0, entry = stco + 8; i < entryCount; i++, entry += 4) {
+                    chunkOffsets[i] = buffer.getInt(entry) & 0xffffffffL;
+                }
+                return chunkOffsets;
+            } else if(co64 >= 0) {
+                int entryCount = buffer.getInt(co64 + 4);
+                long[] chunkOffsets = new long[entryCount];
+                for(int i = 0, entry = co64 + 8; i < entryCount; i++, entry += 8) {
+                    chunkOffsets[i] = buffer.getLong(entry);
+                }
+                return chunkOffsets;
+            }
+
+            return new long[0];
+        }
+    }
+}
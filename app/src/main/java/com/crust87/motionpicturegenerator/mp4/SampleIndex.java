@@ -0,0 +1,211 @@
+package com.crust87.motionpicturegenerator.mp4;
+
+/**
+ * Sample tables of the video track of an MP4 file, kept in primitive arrays.
+ * <p>
+ * Sample arrays are indexed in decode order. Keyframe timestamps are presentation times in
+ * microseconds, sorted ascending, so boundaries that are cheap to cut at can be found with a
+ * binary search.
+ */
+public class SampleIndex {
+
+    public static final int AUDIO_NONE = 0;
+    public static final int AUDIO_AAC = 1;
+    public static final int AUDIO_OTHER = 2;
+
+    // Attributes
+    private final int mTimescale;
+    private final long mDurationUs;
+    private final long[] mSampleTimesUs;
+    private final int[] mSampleSizes;
+    private final long[] mChunkOffsets;
+    private final int[] mSyncSamples;
+    private final long[] mKeyframeTimesUs;
+    private final long mTotalSampleBytes;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final String mCodec;				// sample entry type of the video track, null if unknown
+    private final int mProfileIdc;				// of the avcC record, 0 if not H.264
+    private final int mLevelIdc;
+    private final int mAudioCodec;
+
+    /* package */ SampleIndex(int timescale, long durationUs, long[] sampleTimesUs, int[] sampleSizes,
+                              long[] chunkOffsets, int[] syncSamples, long[] keyframeTimesUs,
+                              int width, int height, int rotation,
+                              String codec, int profileIdc, int levelIdc, int audioCodec) {
+        mTimescale = timescale;
+        mDurationUs = durationUs;
+        mSampleTimesUs = sampleTimesUs;
+        mSampleSizes = sampleSizes;
+        mChunkOffsets = chunkOffsets;
+        mSyncSamples = syncSamples;
+        mKeyframeTimesUs = keyframeTimesUs;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mCodec = codec;
+        mProfileIdc = profileIdc;
+        mLevelIdc = levelIdc;
+        mAudioCodec = audioCodec;
+
+        long totalSampleBytes = 0;
+        for(int size: sampleSizes) {
+            totalSampleBytes += size;
+        }
+        mTotalSampleBytes = totalSampleBytes;
+    }
+
+    // index of the last keyframe at or before timeUs, or -1
+    public int floorKeyframeIndex(long timeUs) {
+        int low = 0;
+        int high = mKeyframeTimesUs.length - 1;
+        int result = -1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(mKeyframeTimesUs[mid] <= timeUs) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return result;
+    }
+
+    // index of the first keyframe at or after timeUs, or getKeyframeCount()
+    public int ceilKeyframeIndex(long timeUs) {
+        int low = 0;
+        int high = mKeyframeTimesUs.length;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(mKeyframeTimesUs[mid] < timeUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    public long floorKeyframeUs(long timeUs) {
+        int index = floorKeyframeIndex(timeUs);
+        return index < 0 ? timeUs : mKeyframeTimesUs[index];
+    }
+
+    public long ceilKeyframeUs(long timeUs) {
+        int index = ceilKeyframeIndex(timeUs);
+        return index >= mKeyframeTimesUs.length ? timeUs : mKeyframeTimesUs[index];
+    }
+
+    // keyframe closest to timeUs, timeUs itself if there is no keyframe at all
+    public long nearestKeyframeUs(long timeUs) {
+        int ceil = ceilKeyframeIndex(timeUs);
+        int floor = ceil - 1;
+        if(ceil >= mKeyframeTimesUs.length) {
+            return floor < 0 ? timeUs : mKeyframeTimesUs[floor];
+        }
+        if(floor < 0) {
+            return mKeyframeTimesUs[ceil];
+        }
+
+        long ceilUs = mKeyframeTimesUs[ceil];
+        long floorUs = mKeyframeTimesUs[floor];
+        return ceilUs - timeUs < timeUs - floorUs ? ceilUs : floorUs;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    public int getSampleCount() {
+        return mSampleSizes.length;
+    }
+
+    public long getSampleTimeUs(int sample) {
+        return mSampleTimesUs[sample];
+    }
+
+    public int getSampleSize(int sample) {
+        return mSampleSizes[sample];
+    }
+
+    public int getChunkCount() {
+        return mChunkOffsets.length;
+    }
+
+    public long getChunkOffset(int chunk) {
+        return mChunkOffsets[chunk];
+    }
+
+    public int getKeyframeCount() {
+        return mKeyframeTimesUs.length;
+    }
+
+    public long getKeyframeUs(int index) {
+        return mKeyframeTimesUs[index];
+    }
+
+    // decode order index of the sample of the keyframe, in the order the sync sample table lists them
+    public int getSyncSample(int index) {
+        return mSyncSamples[index];
+    }
+
+    // backing array, shared not copied, callers must not modify it
+    public long[] getKeyframesUs() {
+        return mKeyframeTimesUs;
+    }
+
+    public long getTotalSampleBytes() {
+        return mTotalSampleBytes;
+    }
+
+    // average video bitrate in bits per second, 0 if unknown
+    public long getBitrate() {
+        return mDurationUs > 0 ? mTotalSampleBytes * 8 * 1000000 / mDurationUs : 0;
+    }
+
+    // stored frame size from the track header, before rotation, 0 if unknown
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    // clockwise turn of the stored frames when displayed, 0, 90, 180 or 270
+    public int getRotation() {
+        return mRotation;
+    }
+
+    // sample entry type, avc1 or avc3 for H.264, null if the track has no sample description
+    public String getCodec() {
+        return mCodec;
+    }
+
+    public boolean isAvc() {
+        return "avc1".equals(mCodec) || "avc3".equals(mCodec);
+    }
+
+    // profile_idc of the H.264 stream, 66 baseline, 77 main, 100 high, 0 if unknown
+    public int getProfileIdc() {
+        return mProfileIdc;
+    }
+
+    // level_idc of the H.264 stream, ten times the level, 0 if unknown
+    public int getLevelIdc() {
+        return mLevelIdc;
+    }
+
+    // codec of the first audio track, AUDIO_NONE without one
+    public int getAudioCodec() {
+        return mAudioCodec;
+    }
+}
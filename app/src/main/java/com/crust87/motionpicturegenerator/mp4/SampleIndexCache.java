@@ -0,0 +1,48 @@
+package com.crust87.motionpicturegenerator.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process wide cache of {@link SampleIndex}, keyed by a fingerprint of the content so an edited
+ * file is parsed again, and a descriptor path reused for another file does not hit.
+ */
+public class SampleIndexCache {
+
+    private static final int MAX_ENTRIES = 8;
+
+    private static final Map<String, SampleIndex> sCache = new LinkedHashMap<String, SampleIndex>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SampleIndex> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private SampleIndexCache() {
+    }
+
+    // key is the one of the source's SourceDescriptor
+    public static SampleIndex get(String path, String key) throws IOException {
+        synchronized (sCache) {
+            SampleIndex index = sCache.get(key);
+            if(index != null) {
+                return index;
+            }
+        }
+
+        SampleIndex index = Mp4IndexParser.parse(new File(path));
+        synchronized (sCache) {
+            sCache.put(key, index);
+        }
+
+        return index;
+    }
+
+    public static void clear() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.crust87.motionpicturegenerator.player;
+
+import com.google.android.exoplayer.upstream.Allocation;
+import com.google.android.exoplayer.upstream.Allocator;
+import com.google.android.exoplayer.upstream.DefaultAllocator;
+
+/**
+ * {@link DefaultAllocator} whose budget can be lowered after the sample source is built.
+ * <p>
+ * The extractor waits while the allocator holds more than the buffer size it was built with, the
+ * budget caps that size, so a source under memory pressure keeps buffering with less memory
+ * instead of being built again.
+ */
+public class BudgetAllocator implements Allocator {
+
+    // Components
+    private final DefaultAllocator mAllocator;
+
+    // Attributes
+    private volatile int mBudget = Integer.MAX_VALUE;		// bytes, the sample source's own size applies below it
+
+    // Constructors
+    public BudgetAllocator(int individualAllocationSize) {
+        mAllocator = new DefaultAllocator(individualAllocationSize);
+    }
+
+    // takes effect on the next segment the extractor loads
+    public void setBudget(int budget) {
+        mBudget = budget;
+    }
+
+    @Override
+    public Allocation allocate() {
+        return mAllocator.allocate();
+    }
+
+    @Override
+    public void release(Allocation allocation) {
+        mAllocator.release(allocation);
+    }
+
+    @Override
+    public void release(Allocation[] allocations) {
+        mAllocator.release(allocations);
+    }
+
+    @Override
+    public void trim(int targetSize) {
+        mAllocator.trim(targetSize);
+    }
+
+    @Override
+    public void blockWhileTotalBytesAllocatedExceeds(int limit) throws InterruptedException {
+        mAllocator.blockWhileTotalBytesAllocatedExceeds(Math.min(limit, mBudget));
+    }
+
+    @Override
+    public int getTotalBytesAllocated() {
+        return mAllocator.getTotalBytesAllocated();
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+        return mAllocator.getIndividualAllocationLength();
+    }
+}
@@ -1,13 +1,19 @@
 package com.crust87.motionpicturegenerator.player;
 
 import android.content.Context;
+import android.graphics.Matrix;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.media.MediaCodec;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.Surface;
 import android.view.TextureView;
 import android.widget.MediaController;
@@ -18,6 +24,7 @@ import com.google.android.exoplayer.ExoPlaybackException;
 import com.google.android.exoplayer.ExoPlayer;
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecTrackRenderer;
+import com.google.android.exoplayer.MediaCodecUtil;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.TimeRange;
@@ -38,12 +45,15 @@ import com.google.android.exoplayer.text.Cue;
 import com.google.android.exoplayer.text.TextRenderer;
 import com.google.android.exoplayer.upstream.BandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
+import com.google.android.exoplayer.util.MimeTypes;
 import com.google.android.exoplayer.util.PlayerControl;
 import com.google.android.exoplayer.util.Util;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -84,6 +94,10 @@ public class ExoVideoView extends TextureView implements
     private static final int RENDERER_BUILDING_STATE_BUILDING = 2;
     private static final int RENDERER_BUILDING_STATE_BUILT = 3;
 
+    private static final float MAX_ZOOM = 4f;
+    private static final long SCRUB_SEEK_TIMEOUT_MS = 500;		// a seek that shows no frame stops holding the next one back
+    private static final long SEEK_LATENCY_LIMIT_MS = 5000;		// longer means the player skipped the seek, not a latency
+
     // View Components
     private Context mContext;
     private Handler mHandler;
@@ -100,6 +114,8 @@ public class ExoVideoView extends TextureView implements
     // Media Player Components
     private PlayerControl mPlayerControl;
     private AudioCapabilitiesReceiver mAudioCapabilitiesReceiver;
+    private AudioCapabilities mAudioCapabilities;
+    private static boolean isDecoderLookupWarm;
 
     // Listener
     private CaptionListener mCaptionListener;
@@ -108,6 +124,7 @@ public class ExoVideoView extends TextureView implements
 
     // Attributes
     private Uri mContentUri;
+    private long mBitrate;				// bits per second of the video, 0 if unknown
     private boolean playerNeedsPrepare;
 
     private int rendererBuildingState;
@@ -119,6 +136,37 @@ public class ExoVideoView extends TextureView implements
 
     private boolean backgrounded;
 
+    // Loop range, played over and over by the LoopingSampleSource without seeking
+    private LoopingSampleSource mLoopingSampleSource;
+    private int mLoopStartMs = -1;
+    private int mLoopEndMs;
+
+    // Scrubbing, one keyframe seek in flight at a time, the latest position waits for it
+    private long[] mKeyframesUs;
+    private boolean isScrubbing;
+    private boolean isScrubSeekInFlight;
+    private int mPendingScrubMs = -1;
+    private long mScrubTargetMs = -1;
+    private long mScrubSeekStartedAt;
+    private int audioTrackToRestore;
+    private int mScrubSeekCount;
+    private long mScrubLatencyTotalMs;
+    private long mScrubLatencyMaxMs;
+
+    // Metrics, reported to the info listener
+    private long mPrepareStartedAt = -1;
+    private long mSeekStartedAt = -1;
+
+    // Viewport, the frame is zoomed and panned by the texture transform without touching the decoder
+    private ScaleGestureDetector mScaleGestureDetector;
+    private GestureDetector mGestureDetector;
+    private final Matrix mTransform = new Matrix();
+    private boolean isZoomEnabled = true;
+    private float mZoom = 1;
+    private float mPanX;					// offset of the frame center from the view center, in pixels
+    private float mPanY;
+    private int mUnappliedRotation;		// turn the decoder left to the view, below api 21
+
     // Constructors
     public ExoVideoView(Context context) {
         super(context);
@@ -157,12 +205,32 @@ public class ExoVideoView extends TextureView implements
 
         setSurfaceTextureListener(mSurfaceTextureListener);
 
+        mScaleGestureDetector = new ScaleGestureDetector(mContext, mScaleGestureListener);
+        mGestureDetector = new GestureDetector(mContext, mGestureListener);
+
         mAudioCapabilitiesReceiver = new AudioCapabilitiesReceiver(mContext, mAudioListener);
-        mAudioCapabilitiesReceiver.register();
+        mAudioCapabilities = mAudioCapabilitiesReceiver.register();
+
+        warmUpDecoderLookup();
     }
 
-    public void setContentUri(Uri contentUri) {
+    // the player and its playback thread are kept, only the renderers are built again for the new video,
+    // the bitrate sizes their buffers
+    public void setContentUri(Uri contentUri, long bitrate) {
         mContentUri = contentUri;
+        mBitrate = bitrate;
+        mUnappliedRotation = 0;
+        mLoopStartMs = -1;
+        resetZoom();
+
+        if(mMediaPlayer != null) {
+            mRendererBuilder.cancel();
+            mRendererBuilder = getRendererBuilder();
+            playerNeedsPrepare = true;
+
+            // a stopped player keeps its position
+            mMediaPlayer.seekTo(0);
+        }
 
         preparePlayer(true);
     }
@@ -188,6 +256,7 @@ public class ExoVideoView extends TextureView implements
             mVideoFormat = null;
             mVideoRenderer = null;
             rendererBuildingState = RENDERER_BUILDING_STATE_BUILDING;
+            mPrepareStartedAt = SystemClock.elapsedRealtime();
             maybeReportPlayerState();
             mRendererBuilder.buildRenderers(this);
             playerNeedsPrepare = false;
@@ -207,17 +276,241 @@ public class ExoVideoView extends TextureView implements
         }
     }
 
+    // plays from startMs and loops back to it after durationMs, gapless
+    public void setLoopRange(int startMs, int durationMs) {
+        mLoopStartMs = durationMs > 0 ? startMs : -1;
+        mLoopEndMs = startMs + durationMs;
+        if(mLoopingSampleSource != null) {
+            mLoopingSampleSource.setRange(mLoopStartMs * 1000L, mLoopEndMs * 1000L);
+        }
+
+        seekTo(startMs);
+    }
+
+    public void clearLoopRange() {
+        int position = getCurrentPosition();
+        mLoopStartMs = -1;
+        if(mLoopingSampleSource != null) {
+            mLoopingSampleSource.setRange(-1, -1);
+        }
+
+        seekTo(position);
+    }
+
+    // sync sample times of the video, scrubbing seeks to the nearest one, null seeks exactly
+    public void setKeyframes(long[] keyframesUs) {
+        mKeyframesUs = keyframesUs;
+    }
+
+    // pauses and mutes until stopScrubbing, scrubTo shows the keyframe closest to a position
+    public void startScrubbing() {
+        if(isScrubbing || mMediaPlayer == null) {
+            return;
+        }
+
+        isScrubbing = true;
+        mScrubSeekCount = 0;
+        mScrubLatencyTotalMs = 0;
+        mScrubLatencyMaxMs = 0;
+        mMediaPlayer.setPlayWhenReady(false);
+
+        // the loop would send positions past its end back to its start
+        mLoopStartMs = -1;
+        if(mLoopingSampleSource != null) {
+            mLoopingSampleSource.setRange(-1, -1);
+        }
+
+        // a paused player still waits for the audio renderer on every seek
+        audioTrackToRestore = getSelectedTrack(TYPE_AUDIO);
+        setSelectedTrack(TYPE_AUDIO, TRACK_DISABLED);
+    }
+
+    public void scrubTo(int positionMs) {
+        if(!isScrubbing) {
+            return;
+        }
+
+        mPendingScrubMs = positionMs;
+        if(!isScrubSeekInFlight) {
+            seekPendingScrub();
+        }
+    }
+
+    // seeks exactly to the position the scrub ended at, then restores the audio
+    public void stopScrubbing(int positionMs) {
+        if(!isScrubbing) {
+            return;
+        }
+
+        isScrubbing = false;
+        isScrubSeekInFlight = false;
+        mPendingScrubMs = -1;
+        mScrubTargetMs = -1;
+        mHandler.removeCallbacks(mScrubSeekTimeout);
+
+        markSeek();
+        mMediaPlayer.seekTo(positionMs);
+        setSelectedTrack(TYPE_AUDIO, audioTrackToRestore);
+
+        if(mScrubSeekCount > 0) {
+            Log.d(TAG, String.format(Locale.US, "scrub seeks %d, seek to frame %d ms on average, %d ms at most",
+                    mScrubSeekCount, mScrubLatencyTotalMs / mScrubSeekCount, mScrubLatencyMaxMs));
+        }
+    }
+
+    public boolean isScrubbing() {
+        return isScrubbing;
+    }
+
+    private void seekPendingScrub() {
+        if(mPendingScrubMs < 0) {
+            return;
+        }
+
+        long targetMs = getScrubTargetMs(mPendingScrubMs);
+        mPendingScrubMs = -1;
+        if(targetMs == mScrubTargetMs) {
+            // the keyframe is on screen already, the player would skip the seek and show no new frame
+            return;
+        }
+
+        mScrubTargetMs = targetMs;
+        isScrubSeekInFlight = true;
+        mScrubSeekStartedAt = SystemClock.elapsedRealtime();
+        mHandler.removeCallbacks(mScrubSeekTimeout);
+        mHandler.postDelayed(mScrubSeekTimeout, SCRUB_SEEK_TIMEOUT_MS);
+        markSeek();
+        mMediaPlayer.seekTo(targetMs);
+    }
+
+    // the sync sample closest to the position, it decodes without decoding any frame before it
+    private long getScrubTargetMs(int positionMs) {
+        if(mKeyframesUs == null || mKeyframesUs.length == 0) {
+            return positionMs;
+        }
+
+        long positionUs = positionMs * 1000L;
+        int index = Arrays.binarySearch(mKeyframesUs, positionUs);
+        if(index < 0) {
+            int ceil = -index - 1;
+            int floor = ceil - 1;
+            if(ceil >= mKeyframesUs.length || floor >= 0 && positionUs - mKeyframesUs[floor] <= mKeyframesUs[ceil] - positionUs) {
+                index = floor;
+            } else {
+                index = ceil;
+            }
+        }
+
+        return mKeyframesUs[index] / 1000;
+    }
+
+    // seeks until the next frame are timed from the first of them
+    private void markSeek() {
+        if(mSeekStartedAt < 0) {
+            mSeekStartedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private void onSeekFrame() {
+        if(mSeekStartedAt < 0) {
+            return;
+        }
+
+        long latencyMs = SystemClock.elapsedRealtime() - mSeekStartedAt;
+        mSeekStartedAt = -1;
+        if(infoListener != null && latencyMs <= SEEK_LATENCY_LIMIT_MS) {
+            infoListener.onSeekCompleted(latencyMs);
+        }
+    }
+
+    // the frame of the seek in flight reached the texture
+    private void onScrubFrame() {
+        if(!isScrubSeekInFlight) {
+            return;
+        }
+
+        long latencyMs = SystemClock.elapsedRealtime() - mScrubSeekStartedAt;
+        mScrubSeekCount++;
+        mScrubLatencyTotalMs += latencyMs;
+        mScrubLatencyMaxMs = Math.max(mScrubLatencyMaxMs, latencyMs);
+
+        isScrubSeekInFlight = false;
+        mHandler.removeCallbacks(mScrubSeekTimeout);
+        seekPendingScrub();
+    }
+
+    private Runnable mScrubSeekTimeout = new Runnable() {
+        @Override
+        public void run() {
+            isScrubSeekInFlight = false;
+            seekPendingScrub();
+        }
+    };
+
+    /* package */ void setLoopingSampleSource(LoopingSampleSource loopingSampleSource) {
+        mLoopingSampleSource = loopingSampleSource;
+        if(mLoopStartMs >= 0) {
+            mLoopingSampleSource.setRange(mLoopStartMs * 1000L, mLoopEndMs * 1000L);
+        }
+    }
+
     // Internal methods
     private RendererBuilder getRendererBuilder() {
         String userAgent = Util.getUserAgent(mContext, "MotionPictureGenerator");
-        return new ExtractorRendererBuilder(mContext, userAgent, mContentUri);
+        return new ExtractorRendererBuilder(mContext, userAgent, mContentUri, mBitrate);
+    }
+
+    /* package */ AudioCapabilities getAudioCapabilities() {
+        return mAudioCapabilities;
+    }
+
+    // only AC-3 and E-AC-3 go to the output undecoded, every other format plays the same on any output
+    private boolean isPassthroughAudio() {
+        int track = mMediaPlayer.getSelectedTrack(TYPE_AUDIO);
+        if(track < 0 || track >= mMediaPlayer.getTrackCount(TYPE_AUDIO)) {
+            return false;
+        }
+
+        String mimeType = mMediaPlayer.getTrackFormat(TYPE_AUDIO, track).mimeType;
+        return MimeTypes.AUDIO_AC3.equals(mimeType) || MimeTypes.AUDIO_E_AC3.equals(mimeType);
+    }
+
+    // the codec list is scanned once per process on first use, do it before the first video is opened
+    private static synchronized void warmUpDecoderLookup() {
+        if(isDecoderLookupWarm) {
+            return;
+        }
+        isDecoderLookupWarm = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MediaCodecUtil.getDecoderInfo(MimeTypes.VIDEO_H264, false);
+                    MediaCodecUtil.getDecoderInfo(MimeTypes.AUDIO_AAC, false);
+                } catch(MediaCodecUtil.DecoderQueryException e) {
+                    Log.w(TAG, "fail to look up decoders", e);
+                }
+            }
+        }, "DecoderLookup").start();
     }
 
     // AudioCapabilitiesReceiver.Listener methods
     private AudioCapabilitiesReceiver.Listener mAudioListener = new AudioCapabilitiesReceiver.Listener() {
         @Override
         public void onAudioCapabilitiesChanged(AudioCapabilities audioCapabilities) {
-            stopPlayback();
+            if(audioCapabilities.equals(mAudioCapabilities)) {
+                return;
+            }
+            mAudioCapabilities = audioCapabilities;
+
+            // decoded audio does not care about the output, keep the renderers and their codecs
+            if(mMediaPlayer == null || rendererBuildingState != RENDERER_BUILDING_STATE_BUILT || !isPassthroughAudio()) {
+                return;
+            }
+
+            // renderers are fixed once prepared, prepare again in place, the player keeps its position
+            playerNeedsPrepare = true;
             preparePlayer(mMediaPlayer.getPlayWhenReady());
             setBackgrounded(backgrounded);
         }
@@ -250,7 +543,13 @@ public class ExoVideoView extends TextureView implements
     @Override
     public int getCurrentPosition() {
         if(mPlayerControl != null) {
-            return mPlayerControl.getCurrentPosition();
+            int position = mPlayerControl.getCurrentPosition();
+            if(mLoopStartMs >= 0 && position >= mLoopEndMs) {
+                // the player clock keeps running through the loops, fold it back into the range
+                position = mLoopStartMs + (position - mLoopEndMs) % (mLoopEndMs - mLoopStartMs);
+            }
+
+            return position;
         } else {
             return 0;
         }
@@ -259,6 +558,7 @@ public class ExoVideoView extends TextureView implements
     @Override
     public void seekTo(int pos) {
         if(mPlayerControl != null) {
+            markSeek();
             mPlayerControl.seekTo(pos);
         }
     }
@@ -369,9 +669,123 @@ public class ExoVideoView extends TextureView implements
 
     @Override
     public void onVideoSizeChanged(int width, int height, int unappliedRotationDegrees, float pixelWidthHeightRatio) {
+        mUnappliedRotation = unappliedRotationDegrees;
+        updateTransform();
+
         mListener.onVideoSizeChanged(width, height, unappliedRotationDegrees, pixelWidthHeightRatio);
     }
 
+    // Viewport
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if(!isZoomEnabled) {
+            return super.onTouchEvent(event);
+        }
+
+        mScaleGestureDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+
+        return true;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateTransform();
+    }
+
+    public void setZoomEnabled(boolean zoomEnabled) {
+        isZoomEnabled = zoomEnabled;
+        if(!zoomEnabled) {
+            resetZoom();
+        }
+    }
+
+    public void resetZoom() {
+        mZoom = 1;
+        mPanX = 0;
+        mPanY = 0;
+        updateTransform();
+    }
+
+    // part of the upright frame currently visible, in fractions of its width and height
+    public void getVisibleRegion(RectF region) {
+        float left = 0.5f - 0.5f / mZoom - (getWidth() > 0 ? mPanX / (mZoom * getWidth()) : 0);
+        float top = 0.5f - 0.5f / mZoom - (getHeight() > 0 ? mPanY / (mZoom * getHeight()) : 0);
+        region.set(left, top, left + 1 / mZoom, top + 1 / mZoom);
+    }
+
+    private ScaleGestureDetector.OnScaleGestureListener mScaleGestureListener = new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            float zoom = Math.max(1, Math.min(MAX_ZOOM, mZoom * detector.getScaleFactor()));
+            float factor = zoom / mZoom;
+
+            // keep the frame point under the fingers where it is
+            float focusX = detector.getFocusX() - getWidth() / 2f;
+            float focusY = detector.getFocusY() - getHeight() / 2f;
+            mPanX = focusX - factor * (focusX - mPanX);
+            mPanY = focusY - factor * (focusY - mPanY);
+            mZoom = zoom;
+            updateTransform();
+
+            return true;
+        }
+    };
+
+    private GestureDetector.SimpleOnGestureListener mGestureListener = new GestureDetector.SimpleOnGestureListener() {
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            mPanX -= distanceX;
+            mPanY -= distanceY;
+            updateTransform();
+
+            return true;
+        }
+
+        @Override
+        public boolean onDoubleTap(MotionEvent e) {
+            resetZoom();
+
+            return true;
+        }
+    };
+
+    // texture transform of the rotation the decoder left over, the zoom and the pan
+    private void updateTransform() {
+        int width = getWidth();
+        int height = getHeight();
+        if(width == 0 || height == 0) {
+            return;
+        }
+
+        // the frame never leaves a gap at the view edges
+        float maxPanX = (mZoom - 1) * width / 2;
+        float maxPanY = (mZoom - 1) * height / 2;
+        mPanX = Math.max(-maxPanX, Math.min(maxPanX, mPanX));
+        mPanY = Math.max(-maxPanY, Math.min(maxPanY, mPanY));
+
+        float centerX = width / 2f;
+        float centerY = height / 2f;
+        mTransform.reset();
+        if(mUnappliedRotation % 180 != 0) {
+            // the texture is stretched over the view unturned, squeeze it to the turned aspect first
+            mTransform.postScale((float) height / width, (float) width / height, centerX, centerY);
+        }
+        if(mUnappliedRotation != 0) {
+            mTransform.postRotate(mUnappliedRotation, centerX, centerY);
+        }
+        mTransform.postScale(mZoom, mZoom, centerX, centerY);
+        mTransform.postTranslate(mPanX, mPanY);
+
+        setTransform(mTransform);
+    }
+
     private SurfaceTextureListener mSurfaceTextureListener = new SurfaceTextureListener() {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface, final int width, final int height) {
@@ -402,6 +816,8 @@ public class ExoVideoView extends TextureView implements
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+            onSeekFrame();
+            onScrubFrame();
         }
     };
 
@@ -501,6 +917,18 @@ public class ExoVideoView extends TextureView implements
         return backgrounded;
     }
 
+    // bytes the sample buffers hold, in use or pooled
+    public int getAllocatedBufferBytes() {
+        return mRendererBuilder != null ? mRendererBuilder.getTotalBytesAllocated() : 0;
+    }
+
+    // level of ComponentCallbacks2.onTrimMemory
+    public void trimMemory(int level) {
+        if(mRendererBuilder != null) {
+            mRendererBuilder.trimMemory(level);
+        }
+    }
+
 
     /**
      * Invoked with the results from a {@link RendererBuilder}.
@@ -547,6 +975,7 @@ public class ExoVideoView extends TextureView implements
     }
 
     public void seekTo(long positionMs) {
+        markSeek();
         mMediaPlayer.seekTo(positionMs);
     }
 
@@ -703,7 +1132,10 @@ public class ExoVideoView extends TextureView implements
 
     @Override
     public void onDrawnToSurface(Surface surface) {
-        // Do nothing.
+        if(mPrepareStartedAt >= 0 && infoListener != null) {
+            infoListener.onFirstFrameDrawn(SystemClock.elapsedRealtime() - mPrepareStartedAt);
+        }
+        mPrepareStartedAt = -1;
     }
 
     @Override
@@ -740,6 +1172,8 @@ public class ExoVideoView extends TextureView implements
     public interface RendererBuilder {
         void buildRenderers(ExoVideoView player);
         void cancel();
+        int getTotalBytesAllocated();
+        void trimMemory(int level);
     }
 
     /**
@@ -782,6 +1216,8 @@ public class ExoVideoView extends TextureView implements
         void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger, Format format, long mediaStartTimeMs, long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs);
         void onDecoderInitialized(String decoderName, long elapsedRealtimeMs, long initializationDurationMs);
         void onAvailableRangeChanged(TimeRange availableRange);
+        void onFirstFrameDrawn(long timeToFirstFrameMs);
+        void onSeekCompleted(long seekLatencyMs);
     }
 
     /**
@@ -15,19 +15,21 @@
  */
 package com.crust87.motionpicturegenerator.player;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.media.MediaCodec;
 import android.net.Uri;
+import android.os.Build;
 
 import com.google.android.exoplayer.MediaCodecAudioTrackRenderer;
 import com.google.android.exoplayer.MediaCodecVideoTrackRenderer;
 import com.google.android.exoplayer.TrackRenderer;
-import com.google.android.exoplayer.audio.AudioCapabilities;
 import com.google.android.exoplayer.extractor.ExtractorSampleSource;
 import com.google.android.exoplayer.text.TextTrackRenderer;
 import com.google.android.exoplayer.upstream.Allocator;
 import com.google.android.exoplayer.upstream.DataSource;
-import com.google.android.exoplayer.upstream.DefaultAllocator;
 import com.google.android.exoplayer.upstream.DefaultBandwidthMeter;
 import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 
@@ -35,33 +37,58 @@ import com.google.android.exoplayer.upstream.DefaultUriDataSource;
 public class ExtractorRendererBuilder implements ExoVideoView.RendererBuilder {
 
     private static final int BUFFER_SEGMENT_SIZE = 64 * 1024;
-    private static final int BUFFER_SEGMENT_COUNT = 256;
+    private static final int MIN_BUFFER_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_DURATION_S = 10;		// a local file refills far faster than playback drains it
 
     private final Context context;
     private final String userAgent;
     private final Uri uri;
+    private final long bitrate;		// bits per second from the sample index, 0 if unknown
 
-    public ExtractorRendererBuilder(Context context, String userAgent, Uri uri) {
+    private int bufferSize;
+    private BudgetAllocator allocator;
+    private BudgetAllocator standbyAllocator;
+
+    public ExtractorRendererBuilder(Context context, String userAgent, Uri uri, long bitrate) {
         this.context = context;
         this.userAgent = userAgent;
         this.uri = uri;
+        this.bitrate = bitrate;
     }
 
     @Override
     public void buildRenderers(ExoVideoView videoView) {
-        Allocator allocator = new DefaultAllocator(BUFFER_SEGMENT_SIZE);
-
-        // Build the video and audio renderers.
-        DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter(videoView.getMainHandler(),
-                null);
-        DataSource dataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
-        ExtractorSampleSource sampleSource = new ExtractorSampleSource(uri, dataSource, allocator,
-                BUFFER_SEGMENT_COUNT * BUFFER_SEGMENT_SIZE);
+        // Split the buffer between the reader playing and the one waiting at the start of the loop.
+        bufferSize = getBufferSize(context, bitrate);
+        allocator = new BudgetAllocator(BUFFER_SEGMENT_SIZE);
+        standbyAllocator = new BudgetAllocator(BUFFER_SEGMENT_SIZE);
+
+        // Build the video and audio renderers. Local files are memory mapped once for both readers and there is no bandwidth to meter.
+        DefaultBandwidthMeter bandwidthMeter = null;
+        DataSource dataSource;
+        DataSource standbyDataSource;
+        if (MappedFileDataSource.isLocal(uri)) {
+            MappedFileDataSource mappedDataSource = new MappedFileDataSource(context);
+            dataSource = mappedDataSource;
+            standbyDataSource = new MappedFileDataSource(context, mappedDataSource);
+        } else {
+            bandwidthMeter = new DefaultBandwidthMeter(videoView.getMainHandler(), null);
+            dataSource = new DefaultUriDataSource(context, bandwidthMeter, userAgent);
+            standbyDataSource = new DefaultUriDataSource(context, userAgent);
+        }
+        ExtractorSampleSource extractorSampleSource = new ExtractorSampleSource(uri, dataSource, allocator,
+                bufferSize / 2);
+        ExtractorSampleSource standbySampleSource = new ExtractorSampleSource(uri, standbyDataSource,
+                standbyAllocator, bufferSize / 2);
+        LoopingSampleSource sampleSource = new LoopingSampleSource(extractorSampleSource, standbySampleSource);
+        videoView.setLoopingSampleSource(sampleSource);
+
         MediaCodecVideoTrackRenderer videoRenderer = new MediaCodecVideoTrackRenderer(context,
                 sampleSource, MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT, 5000, videoView.getMainHandler(),
                 videoView, 50);
         MediaCodecAudioTrackRenderer audioRenderer = new MediaCodecAudioTrackRenderer(sampleSource,
-                null, true, videoView.getMainHandler(), videoView, AudioCapabilities.getCapabilities(context));
+                null, true, videoView.getMainHandler(), videoView, videoView.getAudioCapabilities());
         TrackRenderer textRenderer = new TextTrackRenderer(sampleSource, videoView,
                 videoView.getMainHandler().getLooper());
 
@@ -78,4 +105,57 @@ public class ExtractorRendererBuilder implements ExoVideoView.RendererBuilder {
         // Do nothing.
     }
 
+    @Override
+    public int getTotalBytesAllocated() {
+        int total = 0;
+        for (Allocator each : new Allocator[] {allocator, standbyAllocator}) {
+            if (each != null) {
+                total += each.getTotalBytesAllocated();
+            }
+        }
+        return total;
+    }
+
+    // the higher the level the less each reader may buffer, pooled segments past that are freed
+    @Override
+    public void trimMemory(int level) {
+        int budget = bufferSize / 2;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            budget /= 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            budget /= 2;
+        }
+
+        for (BudgetAllocator each : new BudgetAllocator[] {allocator, standbyAllocator}) {
+            if (each != null) {
+                each.setBudget(budget);
+                each.trim(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ? 0 : budget);
+            }
+        }
+    }
+
+    // ten seconds of the video, at most a sixteenth of the heap or a thirty-second on low RAM devices
+    /* package */ static int getBufferSize(Context context, long bitrate) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapShare = activityManager.getMemoryClass() * 1024L * 1024 / (isLowRamDevice(activityManager) ? 32 : 16);
+        long size = bitrate > 0 ? Math.min(bitrate / 8 * BUFFER_DURATION_S, heapShare) : heapShare;
+        size = Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, size));
+
+        // whole segments for both readers
+        long segments = (size + 2 * BUFFER_SEGMENT_SIZE - 1) / (2 * BUFFER_SEGMENT_SIZE);
+        return (int) (segments * 2 * BUFFER_SEGMENT_SIZE);
+    }
+
+    private static boolean isLowRamDevice(ActivityManager activityManager) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return isLowRamDeviceKitKat(activityManager);
+        }
+        return false;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static boolean isLowRamDeviceKitKat(ActivityManager activityManager) {
+        return activityManager.isLowRamDevice();
+    }
+
 }
@@ -0,0 +1,87 @@
+package com.crust87.motionpicturegenerator.player;
+
+import java.util.Locale;
+
+/**
+ * Counts non negative values in power of two buckets of fixed memory.
+ * <p>
+ * Bucket 0 holds 0, bucket i holds [2^(i-1), 2^i). Recording only increments counters, it never
+ * allocates, so it is safe on playback callbacks. Percentiles are read back as the upper bound of
+ * the bucket they fall in.
+ */
+public class Histogram {
+
+    private static final int BUCKET_COUNT = 40;
+
+    // Attributes
+    private final String mName;
+    private final String mUnit;
+
+    // Working Variables, guarded by this
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    // Constructors
+    public Histogram(String name, String unit) {
+        mName = name;
+        mUnit = unit;
+    }
+
+    public synchronized void record(long value) {
+        if(value < 0) {
+            return;
+        }
+
+        int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+        mBuckets[bucket]++;
+        mCount++;
+        mSum += value;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    // upper bound of the bucket the percentile falls in, clamped to the largest value seen
+    public synchronized long getPercentile(double percentile) {
+        if(mCount == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if(seen >= rank && seen > 0) {
+                return i == 0 ? 0 : Math.min(mMax, (1L << i) - 1);
+            }
+        }
+
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if(mCount == 0) {
+            return mName + ": no samples";
+        }
+
+        return String.format(Locale.US, "%s: n=%d min=%d mean=%d p50=%d p90=%d p99=%d max=%d %s",
+                mName, mCount, mMin, mSum / mCount, getPercentile(50), getPercentile(90), getPercentile(99), mMax, mUnit);
+    }
+}
@@ -0,0 +1,308 @@
+package com.crust87.motionpicturegenerator.player;
+
+import com.google.android.exoplayer.MediaFormat;
+import com.google.android.exoplayer.MediaFormatHolder;
+import com.google.android.exoplayer.SampleHolder;
+import com.google.android.exoplayer.SampleSource;
+import com.google.android.exoplayer.TrackRenderer;
+
+import java.io.IOException;
+
+/**
+ * Loops a range of a video without a seek at the loop point.
+ * <p>
+ * Two readers of the same video take turns. While one feeds the renderers up to the end of the
+ * range, the other already sits at the start of the range and buffers it. At the end of the range
+ * a track moves over to the waiting reader, and its timestamps are shifted by one loop length so
+ * the renderers see a single stream that never goes back in time: no discontinuity, no codec
+ * flush, no rebuffering. Once every track has left a reader it is sent back to the start to wait
+ * for the next loop.
+ * <p>
+ * A new range is taken on the next seek, or while buffering as soon as every track is fed by the
+ * same reader, the player skips a seek to the position it is already at. Without a range it passes
+ * the first reader through.
+ */
+public class LoopingSampleSource implements SampleSource, SampleSource.SampleSourceReader {
+
+    private static final long NO_RANGE = -1;
+
+    // Components
+    private final SampleSourceReader[] mReaders;
+
+    // Attributes
+    private volatile long[] mPendingRange;				// start and end, set on the main thread
+    private long[] mRange;
+    private long mStartUs = NO_RANGE;
+    private long mEndUs = NO_RANGE;
+
+    // Working Variables, playback thread only
+    private int mRegisteredCount;
+    private boolean[] isRendererEnabled;
+    private boolean[][] isReaderEnabled;					// [reader][track]
+    private int[] mActiveReaders;							// reader feeding every track
+    private long[] mOffsetsUs;								// added to the timestamps of every track
+    private MediaFormat[] mFormats;							// last format handed to every track
+
+    // Constructors
+    public LoopingSampleSource(SampleSource source, SampleSource standbySource) {
+        mReaders = new SampleSourceReader[] {source.register(), standbySource.register()};
+    }
+
+    // loops from startUs to endUs, a negative start stops looping
+    public void setRange(long startUs, long endUs) {
+        mPendingRange = startUs < 0 || endUs <= startUs ? null : new long[] {startUs, endUs};
+    }
+
+    private boolean isLooping() {
+        return mStartUs != NO_RANGE;
+    }
+
+    @Override
+    public SampleSourceReader register() {
+        mRegisteredCount++;
+
+        return this;
+    }
+
+    @Override
+    public void maybeThrowError() throws IOException {
+        mReaders[0].maybeThrowError();
+        mReaders[1].maybeThrowError();
+    }
+
+    @Override
+    public boolean prepare(long positionUs) {
+        // prepare both so the standby reader is ready before the first loop point
+        boolean isPrepared = mReaders[0].prepare(positionUs);
+        isPrepared &= mReaders[1].prepare(positionUs);
+        if(!isPrepared) {
+            return false;
+        }
+
+        if(mActiveReaders == null) {
+            int trackCount = mReaders[0].getTrackCount();
+            isRendererEnabled = new boolean[trackCount];
+            isReaderEnabled = new boolean[2][trackCount];
+            mActiveReaders = new int[trackCount];
+            mOffsetsUs = new long[trackCount];
+            mFormats = new MediaFormat[trackCount];
+            mRange = mPendingRange;
+            mStartUs = mRange != null ? mRange[0] : NO_RANGE;
+            mEndUs = mRange != null ? mRange[1] : NO_RANGE;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mReaders[0].getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getFormat(int track) {
+        return mReaders[0].getFormat(track);
+    }
+
+    @Override
+    public void enable(int track, long positionUs) {
+        // a track enabled during playback joins the loop the others are in
+        int reference = -1;
+        for(int i = 0; i < isRendererEnabled.length && reference < 0; i++) {
+            if(isRendererEnabled[i]) {
+                reference = i;
+            }
+        }
+        mActiveReaders[track] = reference < 0 ? 0 : mActiveReaders[reference];
+        mOffsetsUs[track] = reference < 0 ? 0 : mOffsetsUs[reference];
+        isRendererEnabled[track] = true;
+
+        int active = mActiveReaders[track];
+        enableReader(active, track, positionUs - mOffsetsUs[track]);
+        if(isLooping()) {
+            enableReader(1 - active, track, mStartUs);
+        }
+    }
+
+    @Override
+    public boolean continueBuffering(int track, long positionUs) {
+        if(mRange != mPendingRange && isOnOneReader()) {
+            takeRange(mActiveReaders[track]);
+        }
+
+        int active = mActiveReaders[track];
+        int standby = 1 - active;
+        if(isReaderEnabled[standby][track]) {
+            // keep the start of the range loading, a standby reader never reports a discontinuity
+            mReaders[standby].readDiscontinuity(track);
+            mReaders[standby].continueBuffering(track, mStartUs);
+        }
+
+        return mReaders[active].continueBuffering(track, positionUs - mOffsetsUs[track]);
+    }
+
+    @Override
+    public long readDiscontinuity(int track) {
+        long positionUs = mReaders[mActiveReaders[track]].readDiscontinuity(track);
+        if(positionUs == NO_DISCONTINUITY) {
+            return NO_DISCONTINUITY;
+        }
+
+        return positionUs + mOffsetsUs[track];
+    }
+
+    @Override
+    public int readData(int track, long positionUs, MediaFormatHolder formatHolder, SampleHolder sampleHolder) {
+        long offsetUs = mOffsetsUs[track];
+        int result = mReaders[mActiveReaders[track]].readData(track, positionUs - offsetUs, formatHolder, sampleHolder);
+
+        if(result == FORMAT_READ) {
+            if(formatHolder.format.equals(mFormats[track])) {
+                // the next reader starts with the same format, telling the renderer would reinitialize the codec
+                return NOTHING_READ;
+            }
+
+            mFormats[track] = formatHolder.format;
+        } else if(result == SAMPLE_READ) {
+            if(isLooping() && sampleHolder.timeUs >= mEndUs) {
+                sampleHolder.clearData();
+                nextLoop(track);
+                return NOTHING_READ;
+            }
+
+            sampleHolder.timeUs += offsetUs;
+        } else if(result == END_OF_STREAM && isLooping()) {
+            nextLoop(track);
+            return NOTHING_READ;
+        }
+
+        return result;
+    }
+
+    @Override
+    public void seekToUs(long positionUs) {
+        // a seek always plays from the first reader, the other one goes back to the start of the range
+        for(int track = 0; track < isRendererEnabled.length; track++) {
+            if(isRendererEnabled[track]) {
+                enableReader(0, track, positionUs);
+                mActiveReaders[track] = 0;
+                mOffsetsUs[track] = 0;
+            }
+        }
+
+        if(hasEnabledTrack(0)) {
+            mReaders[0].seekToUs(positionUs);
+        }
+        takeRange(0);
+    }
+
+    @Override
+    public long getBufferedPositionUs() {
+        for(int track = 0; track < isRendererEnabled.length; track++) {
+            if(isRendererEnabled[track]) {
+                long bufferedPositionUs = mReaders[mActiveReaders[track]].getBufferedPositionUs();
+                if(!isLooping() || bufferedPositionUs == TrackRenderer.END_OF_TRACK_US || bufferedPositionUs == TrackRenderer.UNKNOWN_TIME_US) {
+                    return bufferedPositionUs;
+                }
+
+                return Math.min(bufferedPositionUs, mEndUs) + mOffsetsUs[track];
+            }
+        }
+
+        return mReaders[0].getBufferedPositionUs();
+    }
+
+    @Override
+    public void disable(int track) {
+        isRendererEnabled[track] = false;
+        mFormats[track] = null;
+        disableReader(0, track);
+        disableReader(1, track);
+    }
+
+    @Override
+    public void release() {
+        if(--mRegisteredCount == 0) {
+            mReaders[0].release();
+            mReaders[1].release();
+        }
+    }
+
+    // the track has played to the end of the range on its reader, carry on with the other one
+    private void nextLoop(int track) {
+        int finished = mActiveReaders[track];
+        int next = 1 - finished;
+        enableReader(next, track, mStartUs);
+        mReaders[next].readDiscontinuity(track);
+        mActiveReaders[track] = next;
+        mOffsetsUs[track] += mEndUs - mStartUs;
+
+        disableReader(finished, track);
+        if(!hasEnabledTrack(finished)) {
+            // every track moved on, the finished reader waits at the start for the loop after
+            for(int i = 0; i < isRendererEnabled.length; i++) {
+                if(isRendererEnabled[i]) {
+                    enableReader(finished, i, mStartUs);
+                }
+            }
+        }
+    }
+
+    // every track must be fed by the active reader, the other one is moved to the start of the range
+    private void takeRange(int active) {
+        mRange = mPendingRange;
+        mStartUs = mRange != null ? mRange[0] : NO_RANGE;
+        mEndUs = mRange != null ? mRange[1] : NO_RANGE;
+
+        int standby = 1 - active;
+        for(int track = 0; track < isRendererEnabled.length; track++) {
+            if(isRendererEnabled[track] && isLooping()) {
+                enableReader(standby, track, mStartUs);
+            } else {
+                disableReader(standby, track);
+            }
+        }
+
+        if(hasEnabledTrack(standby)) {
+            mReaders[standby].seekToUs(mStartUs);
+        }
+    }
+
+    private boolean isOnOneReader() {
+        int active = -1;
+        for(int track = 0; track < isRendererEnabled.length; track++) {
+            if(isRendererEnabled[track]) {
+                if(active >= 0 && mActiveReaders[track] != active) {
+                    return false;
+                }
+                active = mActiveReaders[track];
+            }
+        }
+
+        return true;
+    }
+
+    private void enableReader(int reader, int track, long positionUs) {
+        if(!isReaderEnabled[reader][track]) {
+            isReaderEnabled[reader][track] = true;
+            mReaders[reader].enable(track, positionUs);
+        }
+    }
+
+    private void disableReader(int reader, int track) {
+        if(isReaderEnabled[reader][track]) {
+            isReaderEnabled[reader][track] = false;
+            mReaders[reader].disable(track);
+        }
+    }
+
+    private boolean hasEnabledTrack(int reader) {
+        for(boolean isEnabled: isReaderEnabled[reader]) {
+            if(isEnabled) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
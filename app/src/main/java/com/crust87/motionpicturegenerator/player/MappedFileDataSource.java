@@ -0,0 +1,243 @@
+package com.crust87.motionpicturegenerator.player;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.exoplayer.C;
+import com.google.android.exoplayer.upstream.DataSpec;
+import com.google.android.exoplayer.upstream.UriDataSource;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a local content or file uri through a memory mapping of the file behind it.
+ * <p>
+ * The mapping is kept across close and open of the same uri, so the extractor reopening the
+ * source for a seek costs nothing but a position change. Sources created from another one share
+ * its mapping, a file read by both loaders of a loop is mapped once. Files that cannot be mapped are read
+ * through their {@link FileChannel} in large blocks instead. Nothing is metered, there is no
+ * network to estimate.
+ */
+public class MappedFileDataSource implements UriDataSource {
+
+    private static final String TAG = "MappedFileDataSource";
+
+    private static final long MAX_MAPPED_SIZE = 512 * 1024 * 1024;		// address space is scarce on 32 bit devices
+    private static final int BLOCK_SIZE = 512 * 1024;
+
+    // Components
+    private final ContentResolver mContentResolver;
+    private final Mapping mSharedMapping;
+    private ByteBuffer mMapping;							// own view of the shared mapping
+    private AssetFileDescriptor mFileDescriptor;			// open only while reading through the channel
+    private FileChannel mChannel;
+    private ByteBuffer mBlock;
+
+    // Attributes
+    private Uri mUri;
+    private long mStartOffset;								// of the content inside the file
+    private long mSize;
+
+    // Working Variables
+    private boolean isOpen;
+    private boolean isBlockRead;							// mapping failed, the channel is opened on demand
+    private long mPosition;
+    private long mBytesRemaining;
+    private long mBlockPosition = -1;						// content position of the block, -1 if empty
+
+    // Constructors
+    public MappedFileDataSource(Context context) {
+        mContentResolver = context.getContentResolver();
+        mSharedMapping = new Mapping();
+    }
+
+    // reads the same file as source without mapping it again
+    public MappedFileDataSource(Context context, MappedFileDataSource source) {
+        mContentResolver = context.getContentResolver();
+        mSharedMapping = source.mSharedMapping;
+    }
+
+    // a uri without scheme is a path, it is opened as a file uri
+    public static boolean isLocal(Uri uri) {
+        String scheme = uri.getScheme();
+        return scheme == null || ContentResolver.SCHEME_FILE.equals(scheme) || ContentResolver.SCHEME_CONTENT.equals(scheme);
+    }
+
+    @Override
+    public long open(DataSpec dataSpec) throws IOException {
+        if(!dataSpec.uri.equals(mUri)) {
+            release();
+            mUri = dataSpec.uri;
+        }
+
+        if(mMapping == null && !isBlockRead) {
+            mMapping = mSharedMapping.get(mUri);
+            if(mMapping != null) {
+                mSize = mMapping.capacity();
+            } else {
+                openFile();
+            }
+        }
+
+        if(dataSpec.position > mSize) {
+            throw new EOFException("position " + dataSpec.position + " is past the end of " + mUri);
+        }
+
+        mPosition = dataSpec.position;
+        mBytesRemaining = dataSpec.length == C.LENGTH_UNBOUNDED ? mSize - mPosition : Math.min(dataSpec.length, mSize - mPosition);
+        isOpen = true;
+
+        return mBytesRemaining;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+        if(mBytesRemaining == 0) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        int length = (int) Math.min(readLength, mBytesRemaining);
+        if(mMapping != null) {
+            mMapping.position((int) mPosition);
+            mMapping.get(buffer, offset, length);
+        } else {
+            length = readBlock(buffer, offset, length);
+        }
+
+        mPosition += length;
+        mBytesRemaining -= length;
+
+        return length;
+    }
+
+    // the mapping stays for the next open of the same uri, the channel is closed
+    @Override
+    public void close() throws IOException {
+        isOpen = false;
+
+        if(mChannel != null) {
+            closeFile();
+        }
+    }
+
+    @Override
+    public String getUri() {
+        return isOpen && mUri != null ? mUri.toString() : null;
+    }
+
+    private void openFile() throws IOException {
+        Uri uri = mUri.getScheme() == null ? Uri.fromFile(new File(mUri.getPath())) : mUri;
+        AssetFileDescriptor fileDescriptor = mContentResolver.openAssetFileDescriptor(uri, "r");
+        if(fileDescriptor == null) {
+            throw new IOException("no file behind " + mUri);
+        }
+
+        FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+        try {
+            mStartOffset = fileDescriptor.getStartOffset();
+            mSize = fileDescriptor.getDeclaredLength() != AssetFileDescriptor.UNKNOWN_LENGTH
+                    ? fileDescriptor.getDeclaredLength() : channel.size() - mStartOffset;
+
+            if(!isBlockRead && mSize <= MAX_MAPPED_SIZE) {
+                try {
+                    // the mapping outlives the descriptor
+                    mMapping = mSharedMapping.map(mUri, channel, mStartOffset, mSize);
+                    channel.close();
+                    fileDescriptor.close();
+                    return;
+                } catch(IOException e) {
+                    Log.w(TAG, "fail to map " + mUri + ", read it in blocks", e);
+                }
+            }
+        } catch(IOException e) {
+            channel.close();
+            fileDescriptor.close();
+            throw e;
+        }
+
+        isBlockRead = true;
+        mFileDescriptor = fileDescriptor;
+        mChannel = channel;
+        if(mBlock == null) {
+            mBlock = ByteBuffer.allocateDirect(BLOCK_SIZE);
+        }
+    }
+
+    // serves the read from the block holding the position, the block is filled with one positional read
+    private int readBlock(byte[] buffer, int offset, int length) throws IOException {
+        if(mBlockPosition < 0 || mPosition < mBlockPosition || mPosition >= mBlockPosition + mBlock.limit()) {
+            if(mChannel == null) {
+                openFile();
+            }
+
+            mBlock.clear();
+            mBlock.limit((int) Math.min(BLOCK_SIZE, mSize - mPosition));
+            mBlockPosition = mPosition;
+            while(mBlock.hasRemaining()) {
+                if(mChannel.read(mBlock, mStartOffset + mPosition + mBlock.position()) < 0) {
+                    break;
+                }
+            }
+            mBlock.flip();
+
+            if(mBlock.limit() == 0) {
+                mBlockPosition = -1;
+                throw new EOFException("unexpected end of " + mUri);
+            }
+        }
+
+        mBlock.position((int) (mPosition - mBlockPosition));
+        length = Math.min(length, mBlock.remaining());
+        mBlock.get(buffer, offset, length);
+
+        return length;
+    }
+
+    private void closeFile() throws IOException {
+        try {
+            mChannel.close();
+        } finally {
+            mChannel = null;
+            mFileDescriptor.close();
+            mFileDescriptor = null;
+        }
+    }
+
+    private void release() throws IOException {
+        mMapping = null;
+        isBlockRead = false;
+        mBlockPosition = -1;
+        if(mChannel != null) {
+            closeFile();
+        }
+    }
+
+    // mapping of the last uri mapped by any of the sources sharing it, every source reads its own duplicate
+    private static class Mapping {
+
+        private Uri mUri;
+        private MappedByteBuffer mBuffer;
+
+        synchronized ByteBuffer get(Uri uri) {
+            return mBuffer != null && uri.equals(mUri) ? mBuffer.duplicate() : null;
+        }
+
+        synchronized ByteBuffer map(Uri uri, FileChannel channel, long offset, long size) throws IOException {
+            if(mBuffer == null || !uri.equals(mUri)) {
+                mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                mUri = uri;
+            }
+
+            return mBuffer.duplicate();
+        }
+    }
+}
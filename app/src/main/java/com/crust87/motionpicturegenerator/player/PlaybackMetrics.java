@@ -0,0 +1,134 @@
+package com.crust87.motionpicturegenerator.player;
+
+import android.os.Build;
+
+import com.google.android.exoplayer.TimeRange;
+import com.google.android.exoplayer.chunk.Format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Playback performance of an {@link ExoVideoView}, collected through its info listener.
+ * <p>
+ * Time to first frame, seek to frame latency, dropped frames per minute and decoder
+ * initialization are kept in {@link Histogram}s, so the callbacks never allocate and the memory
+ * stays fixed however long the app plays. A dump lists them together with the device, to compare
+ * devices and catch regressions between builds.
+ */
+public class PlaybackMetrics implements ExoVideoView.InfoListener {
+
+    private static final long MAX_DUMP_SIZE = 64 * 1024;		// a full dump file is moved aside
+
+    // Components
+    private final Histogram mTimeToFirstFrame = new Histogram("time to first frame", "ms");
+    private final Histogram mSeekLatency = new Histogram("seek to frame", "ms");
+    private final Histogram mDroppedFramesPerMinute = new Histogram("dropped frames", "per minute");
+    private final Histogram mDecoderInit = new Histogram("decoder initialization", "ms");
+
+    @Override
+    public void onFirstFrameDrawn(long timeToFirstFrameMs) {
+        mTimeToFirstFrame.record(timeToFirstFrameMs);
+    }
+
+    @Override
+    public void onSeekCompleted(long seekLatencyMs) {
+        mSeekLatency.record(seekLatencyMs);
+    }
+
+    // reported once the count passes the renderer threshold and when it stops, elapsed covers the count
+    @Override
+    public void onDroppedFrames(int count, long elapsed) {
+        if(elapsed > 0) {
+            mDroppedFramesPerMinute.record(count * 60000L / elapsed);
+        }
+    }
+
+    @Override
+    public void onDecoderInitialized(String decoderName, long elapsedRealtimeMs, long initializationDurationMs) {
+        mDecoderInit.record(initializationDurationMs);
+    }
+
+    // the extractor source of a local file reports no loads
+    @Override
+    public void onLoadCompleted(int sourceId, long bytesLoaded, int type, int trigger, Format format, long mediaStartTimeMs, long mediaEndTimeMs, long elapsedRealtimeMs, long loadDurationMs) {
+    }
+
+    @Override
+    public void onVideoFormatEnabled(Format format, int trigger, long mediaTimeMs) {
+    }
+
+    @Override
+    public void onAudioFormatEnabled(Format format, int trigger, long mediaTimeMs) {
+    }
+
+    @Override
+    public void onBandwidthSample(int elapsedMs, long bytes, long bitrateEstimate) {
+    }
+
+    @Override
+    public void onLoadStarted(int sourceId, long length, int type, int trigger, Format format, long mediaStartTimeMs, long mediaEndTimeMs) {
+    }
+
+    @Override
+    public void onAvailableRangeChanged(TimeRange availableRange) {
+    }
+
+    public Histogram getTimeToFirstFrame() {
+        return mTimeToFirstFrame;
+    }
+
+    public Histogram getSeekLatency() {
+        return mSeekLatency;
+    }
+
+    public Histogram getDroppedFramesPerMinute() {
+        return mDroppedFramesPerMinute;
+    }
+
+    public Histogram getDecoderInit() {
+        return mDecoderInit;
+    }
+
+    public void reset() {
+        mTimeToFirstFrame.reset();
+        mSeekLatency.reset();
+        mDroppedFramesPerMinute.reset();
+        mDecoderInit.reset();
+    }
+
+    @Override
+    public String toString() {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date()) + ' '
+                + Build.MANUFACTURER + ' ' + Build.MODEL + " api " + Build.VERSION.SDK_INT + '\n'
+                + mTimeToFirstFrame + '\n'
+                + mSeekLatency + '\n'
+                + mDroppedFramesPerMinute + '\n'
+                + mDecoderInit + '\n';
+    }
+
+    // appends a snapshot, writes a file so keep it off the main thread, a full file is renamed to <name>.old
+    // replacing the previous one, so at most two files are kept
+    public void dump(File file) throws IOException {
+        byte[] snapshot = toString().getBytes("UTF-8");
+        if(file.length() > MAX_DUMP_SIZE) {
+            File old = new File(file.getPath() + ".old");
+            old.delete();
+            if(!file.renameTo(old)) {
+                file.delete();
+            }
+        }
+
+        OutputStream outputStream = new FileOutputStream(file, true);
+        try {
+            outputStream.write(snapshot);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.crust87.motionpicturegenerator.thumbnail;
+
+import com.crust87.motionpicturegenerator.export.FFmpegBinary;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Extracts every thumbnail of a strip in one sequential ffmpeg pass.
+ * <p>
+ * Only keyframes are decoded, the fps filter picks the latest one for every interval, and the
+ * tile filter packs {@link #COLUMNS} thumbnails side by side into one JPEG sprite sheet. Seeking
+ * once per thumbnail decodes up to a whole GOP per thumbnail, this reads the file once.
+ */
+public class SpriteSheetExtractor {
+
+    public static final int COLUMNS = 8;
+
+    private static final String PREFIX = "sheet_";
+    private static final String SUFFIX = ".jpg";
+    private static final String JPEG_QUALITY = "5";		// ffmpeg mjpeg qscale, 2 is best
+
+    // Components
+    private final FFmpegBinary mBinary;
+    private volatile Process mProcess;
+
+    // Constructors
+    public SpriteSheetExtractor(FFmpegBinary binary) {
+        mBinary = binary;
+    }
+
+    // sheets of thumbnails width by height pixels, one per interval, written to the directory in order
+    public List<File> extract(String inputPath, int intervalMs, int width, int height, File directory) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("fail to create " + directory);
+        }
+        deleteSheets(directory);
+
+        String filter = String.format(Locale.US,
+                "fps=1000/%1$d,scale=%2$d:%3$d:force_original_aspect_ratio=increase,crop=%2$d:%3$d,tile=%4$dx1",
+                intervalMs, width, height, COLUMNS);
+
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-nostdin");
+        arguments.add("-y");
+        arguments.add("-skip_frame");
+        arguments.add("nokey");
+        arguments.add("-i");
+        arguments.add(inputPath);
+        arguments.add("-an");
+        arguments.add("-vf");
+        arguments.add(filter);
+        arguments.add("-q:v");
+        arguments.add(JPEG_QUALITY);
+        arguments.add("-f");
+        arguments.add("image2");
+        arguments.add(new File(directory, PREFIX + "%03d" + SUFFIX).getAbsolutePath());
+
+        Process process = mBinary.start(arguments);
+        mProcess = process;
+        try {
+            drain(process.getErrorStream());
+            if(process.waitFor() != 0) {
+                throw new IOException("ffmpeg failed to extract sprite sheets of " + inputPath);
+            }
+        } catch(InterruptedException e) {
+            throw new IOException("interrupted while extracting sprite sheets");
+        } finally {
+            process.destroy();
+            mProcess = null;
+        }
+
+        // image2 numbers the sheets from 1
+        List<File> sheets = new ArrayList<>();
+        for(int i = 1; ; i++) {
+            File sheet = new File(directory, String.format(Locale.US, PREFIX + "%03d" + SUFFIX, i));
+            if(!sheet.exists()) {
+                break;
+            }
+            sheets.add(sheet);
+        }
+
+        return sheets;
+    }
+
+    // stops a running extraction, extract then fails
+    public void cancel() {
+        Process process = mProcess;
+        if(process != null) {
+            process.destroy();
+        }
+    }
+
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[4096];
+        try {
+            while(inputStream.read(buffer) >= 0) {
+                // ffmpeg blocks once the pipe is full, nothing in it is needed
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void deleteSheets(File directory) {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        for(File file: files) {
+            if(file.getName().startsWith(PREFIX)) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.crust87.motionpicturegenerator.thumbnail;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Two tier cache of track thumbnails.
+ * <p>
+ * Sprite sheets of thumbnails are kept in a memory LRU bounded by their byte size. Every one is
+ * also kept on disk as a JPEG keyed by the fingerprint of the source, the time of its first
+ * thumbnail and the thumbnail size, so reopening a recent video fills the strip without decoding
+ * the video. Disk entries are deleted least recently used first once the directory passes its
+ * byte budget.
+ */
+public class ThumbnailCache {
+
+    private static final String TAG = "ThumbnailCache";
+
+    private static final String PREFIX = "thumb_";
+    private static final String SUFFIX = ".jpg";
+    private static final int JPEG_QUALITY = 80;
+
+    // Components
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    // Attributes
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+
+    // Working Variables
+    private long mDiskBytes = -1;			// guarded by this, counted on first write
+
+    // Constructors
+    public ThumbnailCache(File directory, int maxMemoryBytes, long maxDiskBytes) {
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        mMemoryCache = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    // sourceKey is the key of the source's SourceDescriptor, paths of descriptors are reused
+    private static String getKey(String sourceKey, long timeUs, int width, int height) {
+        return sourceKey + '|' + timeUs + '|' + width + 'x' + height;
+    }
+
+    // sprite sheet of the thumbnails sheet * columns to (sheet + 1) * columns of a strip
+    public static String getSheetKey(String sourceKey, int intervalMs, int sheet, int columns, int width, int height) {
+        return getKey(sourceKey, (long) sheet * columns * intervalMs * 1000, width, height) + '|' + intervalMs + '|' + columns;
+    }
+
+    // memory tier only, cheap enough for the main thread
+    public Bitmap getFromMemory(String key) {
+        return mMemoryCache.get(key);
+    }
+
+    // memory tier, then the disk tier, null on a miss, reads files so keep it off the main thread
+    public Bitmap get(String key) {
+        Bitmap bitmap = mMemoryCache.get(key);
+        if(bitmap != null) {
+            return bitmap;
+        }
+
+        File file = getFile(key);
+        if(!file.exists()) {
+            return null;
+        }
+
+        bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if(bitmap == null) {
+            file.delete();
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        mMemoryCache.put(key, bitmap);
+
+        return bitmap;
+    }
+
+    public void put(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
+
+        try {
+            writeFile(getFile(key), bitmap);
+        } catch(IOException e) {
+            Log.w(TAG, "fail to write thumbnail", e);
+        }
+    }
+
+    // moves an encoded image into the disk tier as it is, it is decoded on the next get
+    public void putFile(String key, File file) {
+        try {
+            moveFile(file, getFile(key));
+        } catch(IOException e) {
+            Log.w(TAG, "fail to keep " + file, e);
+            file.delete();
+        }
+    }
+
+    public void clearMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    private void writeFile(File file, Bitmap bitmap) throws IOException {
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("fail to create " + mDirectory);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream outputStream = new FileOutputStream(temp);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, outputStream);
+        } finally {
+            outputStream.close();
+        }
+
+        moveFile(temp, file);
+    }
+
+    private synchronized void moveFile(File source, File file) throws IOException {
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("fail to create " + mDirectory);
+        }
+
+        if(mDiskBytes < 0) {
+            mDiskBytes = 0;
+            for(File entry: listEntries()) {
+                mDiskBytes += entry.length();
+            }
+        }
+
+        long replaced = file.length();
+        if(!source.renameTo(file)) {
+            source.delete();
+            throw new IOException("fail to replace " + file);
+        }
+        mDiskBytes += file.length() - replaced;
+
+        if(mDiskBytes > mMaxDiskBytes) {
+            trimDisk();
+        }
+    }
+
+    // delete least recently used entries down to three quarters of the budget, so trims stay rare
+    private void trimDisk() {
+        File[] entries = listEntries();
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : lhsModified == rhsModified ? 0 : 1;
+            }
+        });
+
+        long target = mMaxDiskBytes * 3 / 4;
+        for(int i = 0; i < entries.length && mDiskBytes > target; i++) {
+            long length = entries[i].length();
+            if(entries[i].delete()) {
+                mDiskBytes -= length;
+            }
+        }
+    }
+
+    private File[] listEntries() {
+        File[] entries = mDirectory.listFiles();
+        if(entries == null) {
+            return new File[0];
+        }
+
+        int count = 0;
+        for(File entry: entries) {
+            if(entry.getName().startsWith(PREFIX) && entry.getName().endsWith(SUFFIX)) {
+                entries[count++] = entry;
+            }
+        }
+
+        return Arrays.copyOf(entries, count);
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, PREFIX + hash(key) + SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for(byte b: digest) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch(NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.crust87.motionpicturegenerator.thumbnail;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the thumbnails of a strip as sprite sheets on one background thread.
+ * <p>
+ * Sheets found in the {@link ThumbnailCache} are delivered first so a recent video shows its
+ * whole strip at once, then the missing ones are made by the {@link SpriteSheetExtractor} in one
+ * keyframe only pass and cached. Only when ffmpeg fails are the missing sheets put together from
+ * a seek per thumbnail. Every load cancels the one before, results of a cancelled load are dropped.
+ */
+public class ThumbnailLoader {
+
+    private static final String TAG = "ThumbnailLoader";
+
+    // Components
+    private final ThumbnailCache mCache;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+    private final SpriteSheetExtractor mSpriteSheetExtractor;
+    private final File mWorkDirectory;
+
+    // Event Listener
+    private OnThumbnailListener mOnThumbnailListener;
+
+    // Working Variables
+    private final AtomicInteger mGeneration;
+
+    // Constructors
+    public ThumbnailLoader(ThumbnailCache cache, SpriteSheetExtractor spriteSheetExtractor, File workDirectory) {
+        mCache = cache;
+        mSpriteSheetExtractor = spriteSheetExtractor;
+        mWorkDirectory = workDirectory;
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    // results are delivered on the main thread
+    public void setOnThumbnailListener(OnThumbnailListener onThumbnailListener) {
+        mOnThumbnailListener = onThumbnailListener;
+    }
+
+    public ThumbnailCache getCache() {
+        return mCache;
+    }
+
+    // count thumbnails one interval apart, delivered as sheets of SpriteSheetExtractor.COLUMNS thumbnails,
+    // path is decoded, sheets are cached by the key of the source
+    public void loadSpriteSheets(final String path, final String key, final int intervalMs, final int count, final int width, final int height) {
+        final int generation = mGeneration.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadSheets(generation, path, key, intervalMs, count, width, height);
+            }
+        });
+    }
+
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        mSpriteSheetExtractor.cancel();
+    }
+
+    public void release() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    private void loadSheets(int generation, String path, String key, int intervalMs, int count, int width, int height) {
+        int columns = SpriteSheetExtractor.COLUMNS;
+        int sheetCount = (count + columns - 1) / columns;
+        boolean[] isLoaded = new boolean[sheetCount];
+        boolean isComplete = true;
+        for(int i = 0; i < sheetCount; i++) {
+            if(generation != mGeneration.get()) {
+                return;
+            }
+
+            Bitmap sheet = mCache.get(ThumbnailCache.getSheetKey(key, intervalMs, i, columns, width, height));
+            if(sheet != null) {
+                deliverSheet(generation, i, sheet);
+                isLoaded[i] = true;
+            } else {
+                isComplete = false;
+            }
+        }
+
+        if(isComplete) {
+            return;
+        }
+
+        try {
+            List<File> files = mSpriteSheetExtractor.extract(path, intervalMs, width, height, mWorkDirectory);
+            for(int i = 0; i < files.size() && i < sheetCount; i++) {
+                String sheetKey = ThumbnailCache.getSheetKey(key, intervalMs, i, columns, width, height);
+                mCache.putFile(sheetKey, files.get(i));
+
+                Bitmap sheet = mCache.get(sheetKey);
+                if(sheet != null) {
+                    deliverSheet(generation, i, sheet);
+                }
+            }
+        } catch(IOException e) {
+            if(generation != mGeneration.get()) {
+                return;
+            }
+
+            Log.w(TAG, "fail to extract sprite sheets, seek per thumbnail", e);
+            seekSheets(generation, path, key, intervalMs, count, width, height, isLoaded);
+        }
+    }
+
+    // the missing sheets laid out like the ones of the extractor, from a seek per thumbnail
+    private void seekSheets(int generation, String path, String key, int intervalMs, int count, int width, int height, boolean[] isLoaded) {
+        int columns = SpriteSheetExtractor.COLUMNS;
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        MediaMetadataRetriever retriever = null;
+        try {
+            for(int i = 0; i < isLoaded.length; i++) {
+                if(generation != mGeneration.get()) {
+                    return;
+                }
+
+                if(isLoaded[i]) {
+                    continue;
+                }
+
+                if(retriever == null) {
+                    retriever = new MediaMetadataRetriever();
+                    retriever.setDataSource(path);
+                }
+
+                Bitmap sheet = Bitmap.createBitmap(width * columns, height, Bitmap.Config.RGB_565);
+                Canvas canvas = new Canvas(sheet);
+                boolean isComplete = true;
+                for(int column = 0; column < columns && i * columns + column < count; column++) {
+                    long timeUs = (long) (i * columns + column) * intervalMs * 1000;
+                    Bitmap frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+                    if(frame == null) {
+                        isComplete = false;
+                        continue;
+                    }
+
+                    Bitmap thumbnail = cropScale(frame, width, height);
+                    canvas.drawBitmap(thumbnail, column * width, 0, paint);
+                    thumbnail.recycle();
+                }
+
+                // a sheet with a hole is shown but not kept, the next open tries again
+                if(isComplete) {
+                    mCache.put(ThumbnailCache.getSheetKey(key, intervalMs, i, columns, width, height), sheet);
+                }
+                deliverSheet(generation, i, sheet);
+            }
+        } catch(RuntimeException e) {
+            Log.w(TAG, "fail to decode thumbnails of " + path, e);
+        } finally {
+            if(retriever != null) {
+                retriever.release();
+            }
+        }
+    }
+
+    private void deliverSheet(final int generation, final int index, final Bitmap sheet) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(generation == mGeneration.get() && mOnThumbnailListener != null) {
+                    mOnThumbnailListener.onSpriteSheetLoaded(index, sheet);
+                }
+            }
+        });
+    }
+
+    // center crop to the aspect ratio of the slot, then scale down to it
+    /* package */ static Bitmap cropScale(Bitmap frame, int width, int height) {
+        int frameWidth = frame.getWidth();
+        int frameHeight = frame.getHeight();
+        int cropWidth = frameWidth;
+        int cropHeight = frameHeight;
+        if((long) frameWidth * height > (long) frameHeight * width) {
+            cropWidth = Math.max(1, frameHeight * width / height);
+        } else {
+            cropHeight = Math.max(1, frameWidth * height / width);
+        }
+
+        Bitmap cropped = Bitmap.createBitmap(frame, (frameWidth - cropWidth) / 2, (frameHeight - cropHeight) / 2, cropWidth, cropHeight);
+        Bitmap thumbnail = Bitmap.createScaledBitmap(cropped, width, height, true);
+        if(cropped != frame && cropped != thumbnail) {
+            cropped.recycle();
+        }
+        if(frame != thumbnail) {
+            frame.recycle();
+        }
+
+        return thumbnail;
+    }
+
+    public interface OnThumbnailListener {
+        void onSpriteSheetLoaded(int index, Bitmap sheet);
+    }
+}
@@ -0,0 +1,123 @@
+package com.crust87.motionpicturegenerator.thumbnail;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * Thumbnails of a video laid out along the track, one per interval of the video.
+ * <p>
+ * The strip keeps the sprite sheets of the {@link ThumbnailLoader} and slices them while drawing,
+ * they are its only source of thumbnails. Sheets already in memory are shown as soon as the strip
+ * is laid out, the rest arrive from the loader. Only the thumbnails inside the visible part of the
+ * track are drawn.
+ */
+public class ThumbnailStrip implements ThumbnailLoader.OnThumbnailListener {
+
+    // Components
+    private final ThumbnailLoader mLoader;
+    private final Paint mPaint;
+    private final RectF mRect;
+    private final Rect mSourceRect;
+    private Bitmap[] mSheets;				// sprite sheets of SpriteSheetExtractor.COLUMNS thumbnails
+
+    // Event Listener
+    private OnUpdateThumbnailListener mOnUpdateThumbnailListener;
+
+    // Attributes
+    private String mPath;
+    private String mKey;
+    private int mIntervalMs;
+    private int mCount;						// thumbnails of the strip
+
+    // Constructors
+    public ThumbnailStrip(ThumbnailLoader loader) {
+        mLoader = loader;
+        mLoader.setOnThumbnailListener(this);
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mRect = new RectF();
+        mSourceRect = new Rect();
+        mSheets = new Bitmap[0];
+    }
+
+    public void setOnUpdateThumbnailListener(OnUpdateThumbnailListener onUpdateThumbnailListener) {
+        mOnUpdateThumbnailListener = onUpdateThumbnailListener;
+    }
+
+    // key is the one of the source's SourceDescriptor
+    public void setSource(String path, String key) {
+        mLoader.cancel();
+        mPath = path;
+        mKey = key;
+        mCount = 0;
+        mSheets = new Bitmap[0];
+    }
+
+    // one thumbnail of width by height pixels for every interval of the video
+    public void layout(int durationMs, int intervalMs, int width, int height) {
+        if(mPath == null || durationMs <= 0 || intervalMs <= 0 || width <= 0 || height <= 0) {
+            return;
+        }
+
+        int count = (durationMs + intervalMs - 1) / intervalMs;
+        mIntervalMs = intervalMs;
+        mCount = count;
+
+        int columns = SpriteSheetExtractor.COLUMNS;
+        Bitmap[] sheets = new Bitmap[(count + columns - 1) / columns];
+        boolean isComplete = true;
+        for(int i = 0; i < sheets.length; i++) {
+            sheets[i] = mLoader.getCache().getFromMemory(ThumbnailCache.getSheetKey(mKey, mIntervalMs, i, columns, width, height));
+            isComplete &= sheets[i] != null;
+        }
+
+        mSheets = sheets;
+        if(isComplete) {
+            mLoader.cancel();
+        } else {
+            mLoader.loadSpriteSheets(mPath, mKey, mIntervalMs, count, width, height);
+        }
+    }
+
+    @Override
+    public void onSpriteSheetLoaded(int index, Bitmap sheet) {
+        if(index < mSheets.length) {
+            mSheets[index] = sheet;
+
+            if(mOnUpdateThumbnailListener != null) {
+                mOnUpdateThumbnailListener.onUpdateThumbnail();
+            }
+        }
+    }
+
+    // left is the x of the start of the video, track positions are in pixels per millisecond
+    public void draw(Canvas canvas, float left, float pixelsPerMs, int width, int height) {
+        float thumbnailWidth = mIntervalMs * pixelsPerMs;
+        if(thumbnailWidth <= 0) {
+            return;
+        }
+
+        int first = Math.max(0, (int) (-left / thumbnailWidth));
+        for(int i = first; i < mCount; i++) {
+            float x = left + i * thumbnailWidth;
+            if(x >= width) {
+                break;
+            }
+
+            Bitmap sheet = mSheets[i / SpriteSheetExtractor.COLUMNS];
+            if(sheet != null) {
+                mRect.set(x, 0, x + thumbnailWidth, height);
+                int column = i % SpriteSheetExtractor.COLUMNS;
+                int columnWidth = sheet.getWidth() / SpriteSheetExtractor.COLUMNS;
+                mSourceRect.set(column * columnWidth, 0, (column + 1) * columnWidth, sheet.getHeight());
+                canvas.drawBitmap(sheet, mSourceRect, mRect, mPaint);
+            }
+        }
+    }
+
+    public interface OnUpdateThumbnailListener {
+        void onUpdateThumbnail();
+    }
+}
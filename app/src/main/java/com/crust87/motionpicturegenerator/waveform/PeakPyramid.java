@@ -0,0 +1,250 @@
+package com.crust87.motionpicturegenerator.waveform;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Min and max of an audio track at every power of two resolution.
+ * <p>
+ * Level 0 holds one min and max for every {@link #SAMPLES_PER_PEAK} samples of mono PCM, every
+ * level above merges two peaks of the level below, until one peak covers the whole track. A pixel
+ * of the waveform is read from the coarsest level whose peaks are not wider than the pixel, so it
+ * merges at most a few peaks whatever the zoom, and drawing costs the visible pixels only. All
+ * levels together take less than twice level 0, kept in short arrays.
+ * <p>
+ * Only level 0 is written to disk, the levels above are merged again on read.
+ */
+public class PeakPyramid {
+
+    public static final int SAMPLES_PER_PEAK = 64;
+
+    private static final int MAGIC = 0x5045414b;		// "PEAK"
+    private static final int VERSION = 1;
+
+    // Attributes
+    private final int mSampleRate;
+    private final short[][] mMins;				// per level, finest first
+    private final short[][] mMaxes;
+    private final int mMaxAmplitude;
+
+    // Constructors
+    private PeakPyramid(int sampleRate, short[] mins, short[] maxes, int count) {
+        mSampleRate = sampleRate;
+
+        int levelCount = 1;
+        for(int size = count; size > 1; size = (size + 1) / 2) {
+            levelCount++;
+        }
+
+        mMins = new short[levelCount][];
+        mMaxes = new short[levelCount][];
+        mMins[0] = Arrays.copyOf(mins, count);
+        mMaxes[0] = Arrays.copyOf(maxes, count);
+        for(int level = 1; level < levelCount; level++) {
+            short[] finerMins = mMins[level - 1];
+            short[] finerMaxes = mMaxes[level - 1];
+            int size = (finerMins.length + 1) / 2;
+            mMins[level] = new short[size];
+            mMaxes[level] = new short[size];
+            for(int i = 0; i < size; i++) {
+                int last = Math.min(i * 2 + 1, finerMins.length - 1);
+                mMins[level][i] = (short) Math.min(finerMins[i * 2], finerMins[last]);
+                mMaxes[level][i] = (short) Math.max(finerMaxes[i * 2], finerMaxes[last]);
+            }
+        }
+
+        short[] topMins = mMins[levelCount - 1];
+        short[] topMaxes = mMaxes[levelCount - 1];
+        mMaxAmplitude = topMins.length > 0 ? Math.max(-topMins[0], topMaxes[0]) : 0;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getLevelCount() {
+        return mMins.length;
+    }
+
+    // number of level 0 peaks
+    public int getPeakCount() {
+        return mMins[0].length;
+    }
+
+    public long getDurationMs() {
+        return (long) mMins[0].length * SAMPLES_PER_PEAK * 1000 / mSampleRate;
+    }
+
+    // loudest sample of the track, to scale the waveform to the lane
+    public int getMaxAmplitude() {
+        return mMaxAmplitude;
+    }
+
+    /**
+     * Min and max of every pixel column, the same coordinates as the thumbnails of the track.
+     * Columns outside the track are 0.
+     *
+     * @param left        x of the start of the track
+     * @param pixelsPerMs width of a millisecond of the track
+     * @param width       number of columns from x 0
+     * @param peaks       receives min and max of column x at 2x and 2x + 1, at least 2 * width long
+     */
+    public void getPeaks(float left, float pixelsPerMs, int width, short[] peaks) {
+        if(pixelsPerMs <= 0) {
+            Arrays.fill(peaks, 0, width * 2, (short) 0);
+            return;
+        }
+
+        double peaksPerPixel = getPeaksPerPixel(pixelsPerMs);
+        int level = getLevel(pixelsPerMs);
+        short[] mins = mMins[level];
+        short[] maxes = mMaxes[level];
+        double scale = peaksPerPixel / (1 << level);				// peaks of the level per column
+        double length = (double) mMins[0].length / (1 << level);		// the last peak of a level may be partial
+        for(int x = 0; x < width; x++) {
+            double start = (x - left) * scale;
+            int first = (int) Math.floor(start);
+            int end = Math.max(first + 1, (int) Math.ceil(start + scale));
+            first = Math.max(0, first);
+            end = start < length ? Math.min(mins.length, end) : first;
+
+            short min = 0;
+            short max = 0;
+            if(first < end) {
+                min = mins[first];
+                max = maxes[first];
+                for(int i = first + 1; i < end; i++) {
+                    min = mins[i] < min ? mins[i] : min;
+                    max = maxes[i] > max ? maxes[i] : max;
+                }
+            }
+
+            peaks[x * 2] = min;
+            peaks[x * 2 + 1] = max;
+        }
+    }
+
+    // the coarsest level with peaks no wider than a column
+    /* package */ int getLevel(float pixelsPerMs) {
+        double peaksPerPixel = getPeaksPerPixel(pixelsPerMs);
+        int level = 0;
+        while(level + 1 < mMins.length && (1 << (level + 1)) <= peaksPerPixel) {
+            level++;
+        }
+
+        return level;
+    }
+
+    // peaks of level 0 per column
+    private double getPeaksPerPixel(float pixelsPerMs) {
+        return mSampleRate / (1000d * pixelsPerMs * SAMPLES_PER_PEAK);
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        short[] mins = mMins[0];
+        short[] maxes = mMaxes[0];
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+        outputStream.writeInt(mSampleRate);
+        outputStream.writeInt(SAMPLES_PER_PEAK);
+        outputStream.writeInt(mins.length);
+        for(int i = 0; i < mins.length; i++) {
+            outputStream.writeShort(mins[i]);
+            outputStream.writeShort(maxes[i]);
+        }
+    }
+
+    public static PeakPyramid read(DataInputStream inputStream) throws IOException {
+        if(inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+            throw new IOException("not a peak file");
+        }
+
+        int sampleRate = inputStream.readInt();
+        int samplesPerPeak = inputStream.readInt();
+        int count = inputStream.readInt();
+        if(sampleRate <= 0 || samplesPerPeak != SAMPLES_PER_PEAK || count < 0) {
+            throw new IOException("peaks of another resolution");
+        }
+
+        short[] mins = new short[count];
+        short[] maxes = new short[count];
+        for(int i = 0; i < count; i++) {
+            mins[i] = inputStream.readShort();
+            maxes[i] = inputStream.readShort();
+        }
+
+        return new PeakPyramid(sampleRate, mins, maxes, count);
+    }
+
+    /**
+     * Streams mono PCM into level 0 without keeping the samples.
+     */
+    public static class Builder {
+
+        // Attributes
+        private final int mSampleRate;
+
+        // Working Variables
+        private short[] mMins;
+        private short[] mMaxes;
+        private int mCount;
+        private int mPending;				// samples of the open peak
+        private short mMin;
+        private short mMax;
+
+        // Constructors
+        public Builder(int sampleRate) {
+            if(sampleRate <= 0) {
+                throw new IllegalArgumentException("sample rate must be positive");
+            }
+
+            mSampleRate = sampleRate;
+            mMins = new short[1024];
+            mMaxes = new short[1024];
+        }
+
+        public void add(short[] samples, int offset, int length) {
+            for(int i = offset; i < offset + length; i++) {
+                add(samples[i]);
+            }
+        }
+
+        public void add(short sample) {
+            if(mPending == 0) {
+                mMin = sample;
+                mMax = sample;
+            } else if(sample < mMin) {
+                mMin = sample;
+            } else if(sample > mMax) {
+                mMax = sample;
+            }
+
+            if(++mPending == SAMPLES_PER_PEAK) {
+                closePeak();
+            }
+        }
+
+        // a partial last peak is kept
+        public PeakPyramid build() {
+            if(mPending > 0) {
+                closePeak();
+            }
+
+            return new PeakPyramid(mSampleRate, mMins, mMaxes, mCount);
+        }
+
+        private void closePeak() {
+            if(mCount == mMins.length) {
+                mMins = Arrays.copyOf(mMins, mCount * 2);
+                mMaxes = Arrays.copyOf(mMaxes, mCount * 2);
+            }
+
+            mMins[mCount] = mMin;
+            mMaxes[mCount] = mMax;
+            mCount++;
+            mPending = 0;
+        }
+    }
+}
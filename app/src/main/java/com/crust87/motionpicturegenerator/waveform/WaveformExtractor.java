@@ -0,0 +1,138 @@
+package com.crust87.motionpicturegenerator.waveform;
+
+import com.crust87.motionpicturegenerator.export.FFmpegBinary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decodes the audio track of a video once into a {@link PeakPyramid}.
+ * <p>
+ * ffmpeg mixes the track down to mono 16 bit PCM at {@link #SAMPLE_RATE}, a peak of a few
+ * milliseconds needs no more, and writes it to its standard output. The samples are streamed
+ * into the pyramid as they are read and never kept.
+ * <p>
+ * A video without audio gives an empty pyramid rather than an error, so it is cached like any
+ * other and ffmpeg is not run for it again.
+ */
+public class WaveformExtractor {
+
+    public static final int SAMPLE_RATE = 8000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final String NO_STREAM = "does not contain any stream";		// the video has no audio track
+
+    // Components
+    private final FFmpegBinary mBinary;
+    private volatile Process mProcess;
+
+    // Constructors
+    public WaveformExtractor(FFmpegBinary binary) {
+        mBinary = binary;
+    }
+
+    // an empty pyramid for videos without audio
+    public PeakPyramid extract(String inputPath) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        arguments.add("-nostdin");
+        arguments.add("-i");
+        arguments.add(inputPath);
+        arguments.add("-vn");
+        arguments.add("-ac");
+        arguments.add("1");
+        arguments.add("-ar");
+        arguments.add(String.valueOf(SAMPLE_RATE));
+        arguments.add("-f");
+        arguments.add("s16le");
+        arguments.add("pipe:1");
+
+        final Process process = mBinary.start(arguments);
+        mProcess = process;
+        final AtomicBoolean isWithoutAudio = new AtomicBoolean();
+        Thread errorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                isWithoutAudio.set(drain(process.getErrorStream()));
+            }
+        }, "WaveformExtractor stderr");
+        errorThread.start();
+
+        try {
+            PeakPyramid.Builder builder = new PeakPyramid.Builder(SAMPLE_RATE);
+            read(process.getInputStream(), builder);
+            int exitCode = process.waitFor();
+            errorThread.join();
+            if(exitCode != 0) {
+                if(isWithoutAudio.get()) {
+                    return new PeakPyramid.Builder(SAMPLE_RATE).build();
+                }
+                throw new IOException("ffmpeg failed to decode the audio of " + inputPath);
+            }
+
+            return builder.build();
+        } catch(InterruptedException e) {
+            throw new IOException("interrupted while decoding audio");
+        } finally {
+            process.destroy();
+            mProcess = null;
+        }
+    }
+
+    // stops a running extraction, extract then fails
+    public void cancel() {
+        Process process = mProcess;
+        if(process != null) {
+            process.destroy();
+        }
+    }
+
+    // little endian samples, a sample may be split across reads
+    /* package */ static void read(InputStream inputStream, PeakPyramid.Builder builder) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int kept = 0;
+        try {
+            int read;
+            while((read = inputStream.read(buffer, kept, buffer.length - kept)) >= 0) {
+                int length = kept + read;
+                int end = length & ~1;
+                for(int i = 0; i < end; i += 2) {
+                    builder.add((short) ((buffer[i] & 0xff) | (buffer[i + 1] << 8)));
+                }
+
+                kept = length - end;
+                if(kept > 0) {
+                    buffer[0] = buffer[end];
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // reads stderr to the end so ffmpeg never blocks on it, returns true if -vn left no stream to write
+    /* package */ static boolean drain(InputStream inputStream) {
+        boolean isWithoutStream = false;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                isWithoutStream |= line.contains(NO_STREAM);
+            }
+        } catch(IOException e) {
+            // the process is gone
+        } finally {
+            try {
+                inputStream.close();
+            } catch(IOException e) {
+                // nothing left to read
+            }
+        }
+
+        return isWithoutStream;
+    }
+}
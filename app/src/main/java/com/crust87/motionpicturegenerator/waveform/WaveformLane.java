@@ -0,0 +1,99 @@
+package com.crust87.motionpicturegenerator.waveform;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * Audio waveform drawn in a lane along the bottom of the track, over the lower edge of the thumbnails.
+ * <p>
+ * Every pixel column is a line from the min to the max of the audio it covers, read from the
+ * {@link PeakPyramid} of the video, so a draw costs the width of the lane at any zoom. The column
+ * buffers are kept between draws and only grow with the width.
+ */
+public class WaveformLane implements WaveformLoader.OnWaveformListener {
+
+    // Components
+    private final WaveformLoader mLoader;
+    private final Paint mPaint;
+    private final Paint mBackgroundPaint;
+    private PeakPyramid mPeaks;
+
+    // Event Listener
+    private OnUpdateWaveformListener mOnUpdateWaveformListener;
+
+    // Working Variables
+    private short[] mColumns;				// min and max of every column
+    private float[] mLines;					// x0, y0, x1, y1 of every column
+
+    // Constructors
+    public WaveformLane(WaveformLoader loader, int color, int backgroundColor) {
+        mLoader = loader;
+        mLoader.setOnWaveformListener(this);
+        mPaint = new Paint();
+        mPaint.setColor(color);
+        mPaint.setStrokeWidth(1);
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setColor(backgroundColor);
+        mColumns = new short[0];
+        mLines = new float[0];
+    }
+
+    public void setOnUpdateWaveformListener(OnUpdateWaveformListener onUpdateWaveformListener) {
+        mOnUpdateWaveformListener = onUpdateWaveformListener;
+    }
+
+    // key is the one of the source's SourceDescriptor
+    public void setSource(String path, String key) {
+        mPeaks = null;
+        mLoader.load(path, key);
+    }
+
+    @Override
+    public void onWaveformLoaded(PeakPyramid peaks) {
+        mPeaks = peaks;
+
+        if(mOnUpdateWaveformListener != null) {
+            mOnUpdateWaveformListener.onUpdateWaveform();
+        }
+    }
+
+    // left is the x of the start of the video, track positions are in pixels per millisecond
+    public void draw(Canvas canvas, float left, float pixelsPerMs, int width, int top, int height) {
+        PeakPyramid peaks = mPeaks;
+        if(peaks == null || width <= 0 || height <= 0 || peaks.getMaxAmplitude() == 0) {
+            return;
+        }
+
+        if(mColumns.length < width * 2) {
+            mColumns = new short[width * 2];
+            mLines = new float[width * 4];
+        }
+
+        peaks.getPeaks(left, pixelsPerMs, width, mColumns);
+
+        float center = top + height / 2f;
+        float scale = height / 2f / peaks.getMaxAmplitude();
+        int count = 0;
+        for(int x = 0; x < width; x++) {
+            short min = mColumns[x * 2];
+            short max = mColumns[x * 2 + 1];
+            if(min == 0 && max == 0) {
+                continue;
+            }
+
+            // a flat column still shows one pixel
+            mLines[count++] = x;
+            mLines[count++] = center - max * scale;
+            mLines[count++] = x;
+            mLines[count++] = Math.max(center - min * scale, center - max * scale + 1);
+        }
+
+        float right = Math.min(width, left + peaks.getDurationMs() * pixelsPerMs);
+        canvas.drawRect(Math.max(0, left), top, right, top + height, mBackgroundPaint);
+        canvas.drawLines(mLines, 0, count, mPaint);
+    }
+
+    public interface OnUpdateWaveformListener {
+        void onUpdateWaveform();
+    }
+}
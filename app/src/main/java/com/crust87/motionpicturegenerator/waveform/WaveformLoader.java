@@ -0,0 +1,221 @@
+package com.crust87.motionpicturegenerator.waveform;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the {@link PeakPyramid} of a video on one background thread.
+ * <p>
+ * Peaks are kept on disk keyed by the fingerprint of the source, so the audio of a video is
+ * decoded only the first time it is opened, and a video without audio keeps an empty file. Every load cancels the one
+ * before, the result of a cancelled load is dropped. The oldest peak files are deleted past
+ * {@link #MAX_FILES}, an hour of audio takes less than two megabytes.
+ */
+public class WaveformLoader {
+
+    private static final String TAG = "WaveformLoader";
+
+    private static final String PREFIX = "peaks_";
+    private static final String SUFFIX = ".bin";
+    private static final int MAX_FILES = 64;
+
+    // Components
+    private final WaveformExtractor mExtractor;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    // Event Listener
+    private OnWaveformListener mOnWaveformListener;
+
+    // Attributes
+    private final File mDirectory;
+
+    // Working Variables
+    private final AtomicInteger mGeneration;
+
+    // Constructors
+    public WaveformLoader(WaveformExtractor extractor, File directory) {
+        mExtractor = extractor;
+        mDirectory = directory;
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    // results are delivered on the main thread
+    public void setOnWaveformListener(OnWaveformListener onWaveformListener) {
+        mOnWaveformListener = onWaveformListener;
+    }
+
+    // path is decoded, the peaks are cached by the key of the source's SourceDescriptor
+    public void load(final String path, final String key) {
+        cancel();
+        final int generation = mGeneration.get();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadPeaks(generation, path, key);
+            }
+        });
+    }
+
+    public void cancel() {
+        mGeneration.incrementAndGet();
+        mExtractor.cancel();
+    }
+
+    public void release() {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+
+    private void loadPeaks(int generation, String path, String key) {
+        if(generation != mGeneration.get()) {
+            return;
+        }
+
+        File file = getFile(key);
+        if(file.exists()) {
+            try {
+                PeakPyramid peaks = readFile(file);
+                file.setLastModified(System.currentTimeMillis());
+                deliver(generation, peaks);
+                return;
+            } catch(IOException e) {
+                Log.w(TAG, "fail to read " + file, e);
+                file.delete();
+            }
+        }
+
+        PeakPyramid peaks;
+        try {
+            peaks = mExtractor.extract(path);
+        } catch(IOException e) {
+            if(generation == mGeneration.get()) {
+                Log.d(TAG, "no waveform for " + path, e);
+            }
+            return;
+        }
+
+        try {
+            writeFile(file, peaks);
+        } catch(IOException e) {
+            Log.w(TAG, "fail to write peaks", e);
+        }
+        deliver(generation, peaks);
+    }
+
+    private void deliver(final int generation, final PeakPyramid peaks) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(generation == mGeneration.get() && mOnWaveformListener != null) {
+                    mOnWaveformListener.onWaveformLoaded(peaks);
+                }
+            }
+        });
+    }
+
+    private static PeakPyramid readFile(File file) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return PeakPyramid.read(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void writeFile(File file, PeakPyramid peaks) throws IOException {
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("fail to create " + mDirectory);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            peaks.write(outputStream);
+        } finally {
+            outputStream.close();
+        }
+
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("fail to replace " + file);
+        }
+
+        trim();
+    }
+
+    // delete least recently used peak files past the limit
+    private void trim() {
+        File[] entries = mDirectory.listFiles();
+        if(entries == null || entries.length <= MAX_FILES) {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? 1 : lhsModified == rhsModified ? 0 : -1;
+            }
+        });
+
+        for(int i = MAX_FILES; i < entries.length; i++) {
+            entries[i].delete();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, PREFIX + hash(key) + SUFFIX);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for(byte b: digest) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch(NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    public interface OnWaveformListener {
+        void onWaveformLoaded(PeakPyramid peaks);
+    }
+}
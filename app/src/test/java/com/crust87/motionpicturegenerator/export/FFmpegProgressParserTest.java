@@ -0,0 +1,193 @@
+package com.crust87.motionpicturegenerator.export;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses stderr captures of the ffmpeg build shipped with the app. Status lines are separated by
+ * carriage returns, read the same way as the executor reads them.
+ */
+public class FFmpegProgressParserTest {
+
+    private static final float DELTA = 0.01f;
+
+    @Test
+    public void parsesCarriageReturnSeparatedStatusLines() throws IOException {
+        FFmpegProgressParser parser = new FFmpegProgressParser(5000000);
+        List<FFmpegProgress> progresses = parse(parser, "reencode.log");
+
+        assertEquals(10, progresses.size());
+
+        FFmpegProgress first = progresses.get(0);
+        assertEquals(14, first.frame);
+        assertEquals(0, first.sizeKb);
+        assertEquals(0, first.timeUs);
+        assertEquals(-1f, first.bitrateKbps, DELTA);
+        assertEquals(0f, first.percent, DELTA);
+
+        FFmpegProgress second = progresses.get(1);
+        assertEquals(31, second.frame);
+        assertEquals(30f, second.fps, DELTA);
+        assertEquals(58, second.sizeKb);
+        assertEquals(560000, second.timeUs);
+        assertEquals(846.9f, second.bitrateKbps, DELTA);
+        assertEquals(0.547f, second.speed, DELTA);
+        assertEquals(11.2f, second.percent, DELTA);
+
+        // the summary line prints Lsize=
+        FFmpegProgress last = progresses.get(progresses.size() - 1);
+        assertEquals(150, last.frame);
+        assertEquals(556, last.sizeKb);
+        assertEquals(4990000, last.timeUs);
+        assertEquals(99.8f, last.percent, DELTA);
+    }
+
+    @Test
+    public void ignoresBannerAndStreamLines() {
+        FFmpegProgressParser parser = new FFmpegProgressParser(5000000);
+        FFmpegProgress progress = new FFmpegProgress();
+
+        assertFalse(parser.parse("  Duration: 00:00:12.05, start: 0.000000, bitrate: 17135 kb/s", progress));
+        assertFalse(parser.parse("[Parsed_showinfo_0 @ 0xb5c8f2a0] n:   1 pts:  90000 pts_time:1       pos:2141093", progress));
+        assertFalse(parser.parse("video:475kB audio:78kB subtitle:0kB other streams:0kB global headers:0kB", progress));
+        assertFalse(parser.parse("", progress));
+    }
+
+    @Test
+    public void reportsUnknownTimesAsNegative() throws IOException {
+        FFmpegProgressParser parser = new FFmpegProgressParser(12000000);
+        List<FFmpegProgress> progresses = parse(parser, "keyframe_probe.log");
+
+        assertEquals(3, progresses.size());
+
+        FFmpegProgress first = progresses.get(0);
+        assertEquals(1, first.frame);
+        assertEquals(-1, first.sizeKb);
+        assertEquals(-1, first.timeUs);
+        assertEquals(-1f, first.bitrateKbps, DELTA);
+        assertEquals(-1f, first.speed, DELTA);
+        assertEquals(0f, first.percent, DELTA);
+
+        FFmpegProgress second = progresses.get(1);
+        assertEquals(-1, second.sizeKb);
+        assertEquals(1000000, second.timeUs);
+        assertEquals(8.33f, second.percent, DELTA);
+
+        FFmpegProgress last = progresses.get(2);
+        assertEquals(11000000, last.timeUs);
+        assertEquals(91.67f, last.percent, DELTA);
+    }
+
+    @Test
+    public void keepsPercentWhenTimeIsUnknown() {
+        FFmpegProgressParser parser = new FFmpegProgressParser(10000000);
+        FFmpegProgress progress = new FFmpegProgress();
+
+        assertTrue(parser.parse("frame=   60 fps= 30 q=28.0 size=     200kB time=00:00:05.00 bitrate= 327.7kbits/s speed=1x", progress));
+        assertEquals(50f, progress.percent, DELTA);
+
+        assertTrue(parser.parse("frame=   61 fps= 30 q=28.0 size=N/A time=N/A bitrate=N/A speed=N/A", progress));
+        assertEquals(-1, progress.timeUs);
+        assertEquals(50f, progress.percent, DELTA);
+    }
+
+    @Test
+    public void mapsEveryPassOntoItsSpan() throws IOException {
+        long headUs = 900000;
+        long middleUs = 6020000;
+        long tailUs = 970000;
+        FFmpegProgressParser parser = new FFmpegProgressParser(headUs + middleUs + tailUs);
+
+        parser.setSpan(0, headUs);
+        List<FFmpegProgress> head = parse(parser, "smartcut_head.log");
+        parser.setSpan(headUs, middleUs);
+        List<FFmpegProgress> middle = parse(parser, "smartcut_middle.log");
+        parser.setSpan(headUs + middleUs, tailUs);
+        List<FFmpegProgress> tail = parse(parser, "smartcut_tail.log");
+
+        assertEquals(2, head.size());
+        assertEquals(2, middle.size());
+        assertEquals(1, tail.size());
+
+        // every pass restarts its time at 0
+        assertEquals(330000, head.get(0).timeUs);
+        assertEquals(4000000, middle.get(0).timeUs);
+        assertEquals(970000, tail.get(0).timeUs);
+
+        assertEquals(11.41f, head.get(1).percent, DELTA);
+        assertEquals(62.10f, middle.get(0).percent, DELTA);
+        assertEquals(87.71f, middle.get(1).percent, DELTA);
+        assertEquals(100f, tail.get(0).percent, DELTA);
+    }
+
+    @Test
+    public void neverGoesBackwardsAcrossPasses() {
+        FFmpegProgressParser parser = new FFmpegProgressParser(10000000);
+        FFmpegProgress progress = new FFmpegProgress();
+
+        parser.setSpan(0, 5000000);
+        parser.parse("frame=  150 fps= 30 q=-1.0 Lsize=     556kB time=00:00:05.20 bitrate= 912.8kbits/s speed=1x", progress);
+        assertEquals(50f, progress.percent, DELTA);
+
+        // a pass reporting less than the one before does not lower the percent
+        parser.setSpan(0, 10000000);
+        parser.parse("frame=   30 fps= 30 q=28.0 size=      90kB time=00:00:01.00 bitrate= 737.3kbits/s speed=1x", progress);
+        assertEquals(1000000, progress.timeUs);
+        assertEquals(50f, progress.percent, DELTA);
+    }
+
+    @Test
+    public void ignoresTimeOfAnEmptySpan() {
+        FFmpegProgressParser parser = new FFmpegProgressParser(10000000);
+        FFmpegProgress progress = new FFmpegProgress();
+
+        parser.setSpan(0, 0);
+        assertTrue(parser.parse("frame=   30 fps= 30 q=28.0 size=      90kB time=00:00:03.00 bitrate= 245.8kbits/s speed=1x", progress));
+        assertEquals(3000000, progress.timeUs);
+        assertEquals(0f, progress.percent, DELTA);
+    }
+
+    @Test
+    public void parsesPlainSeconds() {
+        FFmpegProgressParser parser = new FFmpegProgressParser(10000000);
+        FFmpegProgress progress = new FFmpegProgress();
+
+        assertTrue(parser.parse("frame=   75 fps= 25 q=31.0 size=     312kB time=3.04 bitrate= 840.7kbits/s", progress));
+        assertEquals(3040000, progress.timeUs);
+        assertEquals(-1f, progress.speed, DELTA);
+        assertEquals(30.4f, progress.percent, DELTA);
+    }
+
+    private static List<FFmpegProgress> parse(FFmpegProgressParser parser, String log) throws IOException {
+        InputStream inputStream = FFmpegProgressParserTest.class.getResourceAsStream("/ffmpeg/" + log);
+        if(inputStream == null) {
+            throw new IOException("no capture " + log);
+        }
+
+        List<FFmpegProgress> progresses = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                FFmpegProgress progress = new FFmpegProgress();
+                if(parser.parse(line, progress)) {
+                    progresses.add(progress);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return progresses;
+    }
+}
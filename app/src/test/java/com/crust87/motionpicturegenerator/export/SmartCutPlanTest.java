@@ -0,0 +1,140 @@
+package com.crust87.motionpicturegenerator.export;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Plans over a source with a keyframe every second, the way a phone camera records.
+ */
+public class SmartCutPlanTest {
+
+    private static final long[] KEYFRAMES_US = {0, 1000000, 2000000, 3000000, 4000000, 5000000, 6000000};
+
+    @Test
+    public void encodesHeadAndTailAroundCopiedGops() {
+        SmartCutPlan plan = SmartCutPlan.create(KEYFRAMES_US, KEYFRAMES_US.length, 1500000, 4500000);
+        List<SmartCutPlan.Segment> segments = plan.getSegments();
+
+        assertTrue(plan.isSmart());
+        assertEquals(3, segments.size());
+
+        SmartCutPlan.Segment head = segments.get(0);
+        assertFalse(head.copy);
+        assertEquals(1500000, head.seekUs);
+        assertEquals(2000000 - 1500000 - SmartCutPlan.NUDGE_US, head.durationUs);
+
+        // seeking just past the keyframe snaps back to it in copy mode
+        SmartCutPlan.Segment middle = segments.get(1);
+        assertTrue(middle.copy);
+        assertEquals(2000000 + SmartCutPlan.NUDGE_US, middle.seekUs);
+        assertEquals(4000000 - 2000000 - SmartCutPlan.NUDGE_US, middle.durationUs);
+
+        SmartCutPlan.Segment tail = segments.get(2);
+        assertFalse(tail.copy);
+        assertEquals(4000000 - SmartCutPlan.NUDGE_US, tail.seekUs);
+        assertEquals(4500000 - tail.seekUs, tail.durationUs);
+
+        assertEquals(head.durationUs + tail.durationUs, plan.getEncodedDurationUs());
+    }
+
+    @Test
+    public void copiesOnlyWhenRangeIsOnKeyframes() {
+        SmartCutPlan plan = SmartCutPlan.create(KEYFRAMES_US, KEYFRAMES_US.length, 1000000, 3000000);
+        List<SmartCutPlan.Segment> segments = plan.getSegments();
+
+        assertEquals(1, segments.size());
+        assertTrue(segments.get(0).copy);
+        assertEquals(0, plan.getEncodedDurationUs());
+    }
+
+    @Test
+    public void treatsRoundedKeyframeTimesAsOnTheKeyframe() {
+        // demuxers report 1000000 as 999999 or 1000001
+        long startUs = 1000000 - SmartCutPlan.NUDGE_US / 2;
+        long endUs = 3000000 + SmartCutPlan.NUDGE_US / 2;
+        SmartCutPlan plan = SmartCutPlan.create(KEYFRAMES_US, KEYFRAMES_US.length, startUs, endUs);
+
+        assertEquals(1, plan.getSegments().size());
+        assertTrue(plan.getSegments().get(0).copy);
+        assertEquals(startUs, plan.getStartUs());
+        assertEquals(endUs, plan.getEndUs());
+    }
+
+    @Test
+    public void encodesEverythingWithoutWholeGop() {
+        SmartCutPlan plan = SmartCutPlan.create(KEYFRAMES_US, KEYFRAMES_US.length, 1200000, 1800000);
+        List<SmartCutPlan.Segment> segments = plan.getSegments();
+
+        assertFalse(plan.isSmart());
+        assertEquals(1, segments.size());
+        assertFalse(segments.get(0).copy);
+        assertEquals(1200000, segments.get(0).seekUs);
+        assertEquals(600000, segments.get(0).durationUs);
+        assertEquals(600000, plan.getEncodedDurationUs());
+    }
+
+    @Test
+    public void encodesEverythingWithOneKeyframeInRange() {
+        SmartCutPlan plan = SmartCutPlan.create(KEYFRAMES_US, KEYFRAMES_US.length, 1500000, 2500000);
+
+        assertFalse(plan.isSmart());
+        assertEquals(1, plan.getSegments().size());
+    }
+
+    @Test
+    public void encodesEverythingWithoutKeyframes() {
+        SmartCutPlan plan = SmartCutPlan.create(new long[0], 0, 1000000, 3000000);
+
+        assertFalse(plan.isSmart());
+        assertEquals(2000000, plan.getEncodedDurationUs());
+    }
+
+    @Test
+    public void ignoresEntriesPastCount() {
+        // only the first three keyframes are valid, the rest of the array is a reused buffer
+        SmartCutPlan plan = SmartCutPlan.create(KEYFRAMES_US, 3, 500000, 4500000);
+        List<SmartCutPlan.Segment> segments = plan.getSegments();
+
+        assertEquals(3, segments.size());
+        assertEquals(2000000 - 1000000 - SmartCutPlan.NUDGE_US, segments.get(1).durationUs);
+        assertEquals(2000000 - SmartCutPlan.NUDGE_US, segments.get(2).seekUs);
+        assertEquals(4500000 - segments.get(2).seekUs, segments.get(2).durationUs);
+    }
+
+    @Test
+    public void clampsTailSeekAtZero() {
+        long[] keyframesUs = {0, 200};
+        SmartCutPlan plan = SmartCutPlan.create(keyframesUs, keyframesUs.length, 0, 1000000);
+        SmartCutPlan.Segment tail = plan.getSegments().get(plan.getSegments().size() - 1);
+
+        assertFalse(tail.copy);
+        assertEquals(0, tail.seekUs);
+        assertEquals(1000000, tail.durationUs);
+    }
+
+    @Test
+    public void findsLowerBound() {
+        assertEquals(0, SmartCutPlan.lowerBound(KEYFRAMES_US, KEYFRAMES_US.length, -1));
+        assertEquals(2, SmartCutPlan.lowerBound(KEYFRAMES_US, KEYFRAMES_US.length, 2000000));
+        assertEquals(3, SmartCutPlan.lowerBound(KEYFRAMES_US, KEYFRAMES_US.length, 2000001));
+        assertEquals(KEYFRAMES_US.length, SmartCutPlan.lowerBound(KEYFRAMES_US, KEYFRAMES_US.length, 7000000));
+    }
+
+    @Test
+    public void namesSourceProfilesForBoundaryPieces() {
+        assertEquals("baseline", SmartCutter.getProfileName(66));
+        assertEquals("main", SmartCutter.getProfileName(77));
+        assertEquals("high", SmartCutter.getProfileName(100));
+        assertNull(SmartCutter.getProfileName(110));
+
+        assertEquals("3.1", SmartCutter.getLevelName(31));
+        assertEquals("4.0", SmartCutter.getLevelName(40));
+        assertNull(SmartCutter.getLevelName(0));
+    }
+}
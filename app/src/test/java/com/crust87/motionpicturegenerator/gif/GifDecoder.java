@@ -0,0 +1,223 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Straightforward GIF89a reader written from the specification, to check the encoders against.
+ */
+/* package */ class GifDecoder {
+
+    // Attributes
+    /* package */ int width;
+    /* package */ int height;
+    /* package */ int loopCount = -1;			// -1 without a netscape extension
+    /* package */ final List<Frame> frames = new ArrayList<>();
+
+    // Working Variables
+    private final byte[] mData;
+    private int mPosition;
+
+    /* package */ GifDecoder(byte[] data) {
+        mData = data;
+    }
+
+    /* package */ GifDecoder decode() throws IOException {
+        if(!"GIF89a".equals(new String(mData, 0, 6, "US-ASCII"))) {
+            throw new IOException("not a gif89a");
+        }
+        mPosition = 6;
+
+        width = readShort();
+        height = readShort();
+        int packed = readByte();
+        readByte();
+        readByte();
+        if((packed & 0x80) != 0) {
+            mPosition += 3 << ((packed & 7) + 1);
+        }
+
+        int delayCs = 0;
+        while(true) {
+            int block = readByte();
+            if(block == 0x3b) {
+                return this;
+            } else if(block == 0x21) {
+                int label = readByte();
+                byte[] data = readSubBlocks();
+                if(label == 0xf9) {
+                    delayCs = (data[1] & 0xff) | (data[2] & 0xff) << 8;
+                } else if(label == 0xff && new String(data, 0, 11, "US-ASCII").equals("NETSCAPE2.0")) {
+                    loopCount = (data[12] & 0xff) | (data[13] & 0xff) << 8;
+                }
+            } else if(block == 0x2c) {
+                frames.add(readImage(delayCs));
+            } else {
+                throw new IOException("unknown block " + block);
+            }
+        }
+    }
+
+    private Frame readImage(int delayCs) throws IOException {
+        Frame frame = new Frame();
+        frame.delayCs = delayCs;
+        readShort();
+        readShort();
+        frame.width = readShort();
+        frame.height = readShort();
+        int packed = readByte();
+        if((packed & 0x80) == 0) {
+            throw new IOException("no local color table");
+        }
+
+        frame.palette = new int[1 << ((packed & 7) + 1)];
+        for(int i = 0; i < frame.palette.length; i++) {
+            frame.palette[i] = readByte() << 16 | readByte() << 8 | readByte();
+        }
+
+        int minimumCodeSize = readByte();
+        frame.indices = decodeLzw(readSubBlocks(), minimumCodeSize);
+
+        return frame;
+    }
+
+    // reads sub-blocks up to the terminator, after the size prefix of the first one
+    private byte[] readSubBlocks() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int size;
+        while((size = readByte()) != 0) {
+            if(mPosition + size > mData.length) {
+                throw new IOException("truncated sub-block");
+            }
+            outputStream.write(mData, mPosition, size);
+            mPosition += size;
+        }
+
+        return outputStream.toByteArray();
+    }
+
+    private int readByte() throws IOException {
+        if(mPosition >= mData.length) {
+            throw new IOException("unexpected end of gif");
+        }
+
+        return mData[mPosition++] & 0xff;
+    }
+
+    private int readShort() throws IOException {
+        return readByte() | readByte() << 8;
+    }
+
+    /**
+     * Decodes the output of {@link LzwEncoder#encode}, from the minimum code size byte through the
+     * block terminator.
+     */
+    /* package */ static byte[] decodeLzw(byte[] stream) throws IOException {
+        GifDecoder decoder = new GifDecoder(stream);
+        int minimumCodeSize = decoder.readByte();
+
+        return decodeLzw(decoder.readSubBlocks(), minimumCodeSize);
+    }
+
+    private static byte[] decodeLzw(byte[] data, int minimumCodeSize) throws IOException {
+        int clearCode = 1 << minimumCodeSize;
+        int endCode = clearCode + 1;
+        int[] prefixes = new int[4096];
+        byte[] suffixes = new byte[4096];
+        int[] lengths = new int[4096];
+        for(int i = 0; i < clearCode; i++) {
+            suffixes[i] = (byte) i;
+            lengths[i] = 1;
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int codeSize = minimumCodeSize + 1;
+        int available = clearCode + 2;
+        int previous = -1;
+        int bitBuffer = 0;
+        int bitCount = 0;
+        int position = 0;
+        while(true) {
+            while(bitCount < codeSize) {
+                if(position >= data.length) {
+                    throw new IOException("missing end code");
+                }
+                bitBuffer |= (data[position++] & 0xff) << bitCount;
+                bitCount += 8;
+            }
+            int code = bitBuffer & ((1 << codeSize) - 1);
+            bitBuffer >>>= codeSize;
+            bitCount -= codeSize;
+
+            if(code == clearCode) {
+                codeSize = minimumCodeSize + 1;
+                available = clearCode + 2;
+                previous = -1;
+                continue;
+            } else if(code == endCode) {
+                return outputStream.toByteArray();
+            }
+
+            if(previous < 0) {
+                if(code >= clearCode) {
+                    throw new IOException("first code " + code + " is not a color");
+                }
+                outputStream.write(code);
+                previous = code;
+                continue;
+            }
+
+            byte first;
+            if(code < available) {
+                first = write(outputStream, code, prefixes, suffixes, lengths);
+            } else if(code == available) {
+                first = firstOf(previous, prefixes, lengths);
+                write(outputStream, previous, prefixes, suffixes, lengths);
+                outputStream.write(first);
+            } else {
+                throw new IOException("code " + code + " past the table of " + available);
+            }
+
+            if(available < 4096) {
+                prefixes[available] = previous;
+                suffixes[available] = first;
+                lengths[available] = lengths[previous] + 1;
+                available++;
+                if(available == 1 << codeSize && codeSize < 12) {
+                    codeSize++;
+                }
+            }
+            previous = code;
+        }
+    }
+
+    // writes the string of code, returns its first byte
+    private static byte write(ByteArrayOutputStream outputStream, int code, int[] prefixes, byte[] suffixes, int[] lengths) {
+        byte[] string = new byte[lengths[code]];
+        for(int i = string.length - 1; i >= 0; i--) {
+            string[i] = suffixes[code];
+            code = prefixes[code];
+        }
+        outputStream.write(string, 0, string.length);
+
+        return string[0];
+    }
+
+    private static byte firstOf(int code, int[] prefixes, int[] lengths) {
+        for(int i = lengths[code]; i > 1; i--) {
+            code = prefixes[code];
+        }
+
+        return (byte) code;
+    }
+
+    /* package */ static class Frame {
+        /* package */ int width;
+        /* package */ int height;
+        /* package */ int delayCs;
+        /* package */ int[] palette;
+        /* package */ byte[] indices;
+    }
+}
@@ -0,0 +1,195 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GifEncoderTest {
+
+    private ExecutorService mExecutorService;
+
+    @Before
+    public void setUp() {
+        mExecutorService = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void writesHeaderAndLoopForever() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(outputStream, 300, 2, mExecutorService, 3);
+        encoder.addFrame(fill(encoder.obtainFrame(), 0xff0000), 4);
+        encoder.finish();
+        byte[] gif = outputStream.toByteArray();
+
+        byte[] header = {
+                'G', 'I', 'F', '8', '9', 'a',
+                0x2c, 0x01, 0x02, 0x00,				// 300 x 2
+                0x00, 0x00, 0x00,					// no global color table
+                0x21, (byte) 0xff, 0x0b,
+                'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0',
+                0x03, 0x01, 0x00, 0x00, 0x00		// loop forever
+        };
+        assertArrayEquals(header, copyOf(gif, header.length));
+        assertEquals(0x3b, gif[gif.length - 1]);
+    }
+
+    @Test
+    public void writesRepeatsAfterTheFirstPlay() throws IOException {
+        assertEquals(2, encode(3).loopCount);
+        assertEquals(-1, encode(1).loopCount);
+    }
+
+    @Test
+    public void keepsFramesInOrderWithTheirDelays() throws IOException {
+        int[] colors = {0xff0000, 0x00ff00, 0x0000ff, 0xffffff, 0x000000, 0x808080, 0xffff00, 0x00ffff};
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(outputStream, 16, 8, mExecutorService, 3);
+        encoder.setDither(GifEncoder.DITHER_NONE);
+        for(int i = 0; i < colors.length; i++) {
+            encoder.addFrame(fill(encoder.obtainFrame(), colors[i]), i + 1);
+        }
+        encoder.finish();
+
+        GifDecoder gif = new GifDecoder(outputStream.toByteArray()).decode();
+        assertEquals(16, gif.width);
+        assertEquals(8, gif.height);
+        assertEquals(colors.length, encoder.getFrameCount());
+        assertEquals(colors.length, gif.frames.size());
+        for(int i = 0; i < colors.length; i++) {
+            GifDecoder.Frame frame = gif.frames.get(i);
+            assertEquals(i + 1, frame.delayCs);
+            assertEquals(16 * 8, frame.indices.length);
+            for(byte index: frame.indices) {
+                assertEquals(colors[i], frame.palette[index & 0xff]);
+            }
+        }
+    }
+
+    @Test
+    public void decodesToTheSourcePixelsWithoutDither() throws IOException {
+        // 64 colors on the 6 bit grid of the octree survive exactly
+        int width = 40;
+        int height = 30;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(outputStream, width, height, mExecutorService, 3);
+        encoder.setDither(GifEncoder.DITHER_NONE);
+        int[] argb = encoder.obtainFrame();
+        Random random = new Random(9);
+        for(int i = 0; i < argb.length; i++) {
+            argb[i] = 0xff000000 | (random.nextInt(4) * 0x40) << 16 | (random.nextInt(4) * 0x40) << 8 | random.nextInt(4) * 0x40;
+        }
+        int[] expected = argb.clone();
+        encoder.addFrame(argb, 10);
+        encoder.finish();
+
+        GifDecoder.Frame frame = new GifDecoder(outputStream.toByteArray()).decode().frames.get(0);
+        assertEquals(width, frame.width);
+        assertEquals(height, frame.height);
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i] & 0xffffff, frame.palette[frame.indices[i] & 0xff]);
+        }
+    }
+
+    @Test
+    public void limitsEveryPaletteTo256Colors() throws IOException {
+        int[] dithers = {GifEncoder.DITHER_NONE, GifEncoder.DITHER_BAYER, GifEncoder.DITHER_FLOYD_STEINBERG, GifEncoder.DITHER_SIERRA_LITE};
+        for(int dither: dithers) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            GifEncoder encoder = new GifEncoder(outputStream, 64, 64, mExecutorService, 3);
+            encoder.setDither(dither);
+            Random random = new Random(dither);
+            for(int f = 0; f < 3; f++) {
+                int[] argb = encoder.obtainFrame();
+                for(int i = 0; i < argb.length; i++) {
+                    argb[i] = random.nextInt();
+                }
+                encoder.addFrame(argb, 5);
+            }
+            encoder.finish();
+
+            GifDecoder gif = new GifDecoder(outputStream.toByteArray()).decode();
+            assertEquals(3, gif.frames.size());
+            for(GifDecoder.Frame frame: gif.frames) {
+                assertTrue(frame.palette.length <= 256);
+                assertEquals(64 * 64, frame.indices.length);
+            }
+        }
+    }
+
+    @Test
+    public void readsRgbaRowsAndReleasesThem() throws IOException {
+        int width = 3;
+        int height = 2;
+        int stride = 16;
+        ByteBuffer rgba = ByteBuffer.allocate(stride * height);
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                rgba.put(y * stride + x * 4, (byte) 0xc0);
+                rgba.put(y * stride + x * 4 + 1, (byte) 0x40);
+                rgba.put(y * stride + x * 4 + 2, (byte) 0x80);
+                rgba.put(y * stride + x * 4 + 3, (byte) 0xff);
+            }
+        }
+
+        final AtomicInteger released = new AtomicInteger();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(outputStream, width, height, mExecutorService, 3);
+        encoder.setDither(GifEncoder.DITHER_NONE);
+        encoder.addFrame(rgba, stride, 7, new Runnable() {
+            @Override
+            public void run() {
+                released.incrementAndGet();
+            }
+        });
+        encoder.finish();
+
+        assertEquals(1, released.get());
+        GifDecoder.Frame frame = new GifDecoder(outputStream.toByteArray()).decode().frames.get(0);
+        assertEquals(7, frame.delayCs);
+        for(byte index: frame.indices) {
+            assertEquals(0xc04080, frame.palette[index & 0xff]);
+        }
+    }
+
+    private GifDecoder encode(int loopCount) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        GifEncoder encoder = new GifEncoder(outputStream, 4, 4, mExecutorService, 1);
+        encoder.setLoopCount(loopCount);
+        encoder.addFrame(fill(encoder.obtainFrame(), 0x123456), 10);
+        encoder.finish();
+
+        return new GifDecoder(outputStream.toByteArray()).decode();
+    }
+
+    private static int[] fill(int[] argb, int color) {
+        for(int i = 0; i < argb.length; i++) {
+            argb[i] = 0xff000000 | color;
+        }
+
+        return argb;
+    }
+
+    private static byte[] copyOf(byte[] bytes, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, 0, copy, 0, length);
+
+        return copy;
+    }
+}
@@ -0,0 +1,106 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LzwEncoderTest {
+
+    @Test
+    public void roundTripsNoise() throws IOException {
+        // random 8 bit indices fill the 12 bit table several times over
+        byte[] indices = new byte[64 * 1024];
+        new Random(7).nextBytes(indices);
+
+        assertRoundTrip(new LzwEncoder(), indices, 8);
+    }
+
+    @Test
+    public void roundTripsLongRuns() throws IOException {
+        byte[] indices = new byte[320 * 240];
+        for(int i = 0; i < indices.length; i++) {
+            indices[i] = (byte) ((i / 1000) % 16);
+        }
+
+        assertRoundTrip(new LzwEncoder(), indices, 4);
+    }
+
+    @Test
+    public void roundTripsEveryColorDepth() throws IOException {
+        Random random = new Random(11);
+        LzwEncoder encoder = new LzwEncoder();
+        for(int depth = 1; depth <= 8; depth++) {
+            byte[] indices = new byte[5000];
+            for(int i = 0; i < indices.length; i++) {
+                // mostly repeating patterns with some noise, like a dithered frame
+                indices[i] = (byte) (random.nextInt(8) == 0 ? random.nextInt(1 << depth) : (i % 7) & ((1 << depth) - 1));
+            }
+
+            assertRoundTrip(encoder, indices, depth);
+        }
+    }
+
+    @Test
+    public void roundTripsTinyFrames() throws IOException {
+        LzwEncoder encoder = new LzwEncoder();
+        assertRoundTrip(encoder, new byte[] {3}, 2);
+        assertRoundTrip(encoder, new byte[] {1, 1}, 1);
+        assertRoundTrip(encoder, new byte[] {0, 1, 0, 1, 0, 1, 0}, 1);
+        assertRoundTrip(encoder, new byte[0], 8);
+    }
+
+    @Test
+    public void keepsNoStateBetweenFrames() throws IOException {
+        LzwEncoder encoder = new LzwEncoder();
+        byte[] first = new byte[20000];
+        new Random(3).nextBytes(first);
+        byte[] second = new byte[20000];
+        for(int i = 0; i < second.length; i++) {
+            second[i] = (byte) (i & 3);
+        }
+
+        assertRoundTrip(encoder, first, 8);
+        byte[] reused = assertRoundTrip(encoder, second, 2);
+        byte[] fresh = assertRoundTrip(new LzwEncoder(), second, 2);
+        assertArrayEquals(fresh, reused);
+    }
+
+    @Test
+    public void writesSubBlocksOfAtMost255Bytes() throws IOException {
+        byte[] indices = new byte[10000];
+        new Random(5).nextBytes(indices);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new LzwEncoder().encode(indices, indices.length, 8, outputStream);
+        byte[] stream = outputStream.toByteArray();
+
+        assertEquals(8, stream[0]);
+        int position = 1;
+        int blocks = 0;
+        while(stream[position] != 0) {
+            int size = stream[position] & 0xff;
+            assertTrue(size <= 255);
+            position += size + 1;
+            blocks++;
+        }
+        assertEquals(stream.length - 1, position);
+        assertTrue(blocks > 1);
+    }
+
+    // returns the encoded stream
+    private static byte[] assertRoundTrip(LzwEncoder encoder, byte[] indices, int colorDepth) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        encoder.encode(indices, indices.length, colorDepth, outputStream);
+        byte[] stream = outputStream.toByteArray();
+
+        assertEquals(Math.max(2, colorDepth), stream[0]);
+        assertArrayEquals(indices, GifDecoder.decodeLzw(stream));
+
+        return stream;
+    }
+}
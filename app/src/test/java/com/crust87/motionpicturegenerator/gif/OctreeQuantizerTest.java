@@ -0,0 +1,82 @@
+package com.crust87.motionpicturegenerator.gif;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OctreeQuantizerTest {
+
+    @Test
+    public void keepsFewColorsExactly() {
+        OctreeQuantizer quantizer = new OctreeQuantizer(256);
+        int[] colors = {0x000000, 0xffffff, 0xff0000, 0x00ff00, 0x0000ff, 0x808080, 0x4080c0};
+        for(int i = 0; i < 1000; i++) {
+            quantizer.addColor(colors[i % colors.length]);
+        }
+
+        assertEquals(colors.length, quantizer.buildPalette());
+        assertEquals(colors.length, quantizer.getColorCount());
+        int[] palette = quantizer.getPalette();
+        for(int color: colors) {
+            int index = quantizer.map((color >> 16) & 0xff, (color >> 8) & 0xff, color & 0xff);
+            assertEquals(color, palette[index]);
+        }
+    }
+
+    @Test
+    public void reducesToAtMost256Colors() {
+        OctreeQuantizer quantizer = new OctreeQuantizer(256);
+        Random random = new Random(1);
+        for(int i = 0; i < 100000; i++) {
+            quantizer.addColor(random.nextInt());
+        }
+
+        int colorCount = quantizer.buildPalette();
+        assertTrue(colorCount > 1);
+        assertTrue(colorCount <= 256);
+
+        Set<Integer> distinct = new HashSet<>();
+        for(int i = 0; i < colorCount; i++) {
+            distinct.add(quantizer.getPalette()[i]);
+        }
+        assertEquals(colorCount, distinct.size());
+    }
+
+    @Test
+    public void mapsUnseenColorsIntoThePalette() {
+        OctreeQuantizer quantizer = new OctreeQuantizer(16);
+        for(int i = 0; i < 256; i++) {
+            quantizer.addColor(i << 16 | (255 - i) << 8);
+        }
+        int colorCount = quantizer.buildPalette();
+        assertTrue(colorCount <= 16);
+
+        // blue was never added, the nearest entry is used
+        for(int b = 0; b < 256; b += 5) {
+            int index = quantizer.map(b / 2, 128, b);
+            assertTrue(index >= 0 && index < colorCount);
+        }
+    }
+
+    @Test
+    public void reusesTheTreeAfterReset() {
+        OctreeQuantizer quantizer = new OctreeQuantizer(256);
+        Random random = new Random(2);
+        for(int i = 0; i < 50000; i++) {
+            quantizer.addColor(random.nextInt());
+        }
+        assertTrue(quantizer.buildPalette() <= 256);
+
+        quantizer.reset();
+        quantizer.addColor(0x102030);
+        quantizer.addColor(0x102030);
+        assertEquals(1, quantizer.buildPalette());
+        assertEquals(0x102030, quantizer.getPalette()[0]);
+        assertEquals(0, quantizer.map(0xff, 0xff, 0xff));
+    }
+}
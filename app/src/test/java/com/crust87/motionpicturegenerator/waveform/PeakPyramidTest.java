@@ -0,0 +1,186 @@
+package com.crust87.motionpicturegenerator.waveform;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeakPyramidTest {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    @Test
+    public void keepsAPartialLastPeak() throws IOException {
+        PeakPyramid.Builder builder = new PeakPyramid.Builder(SAMPLE_RATE);
+        int length = PeakPyramid.SAMPLES_PER_PEAK * 3 + 10;
+        for(int i = 0; i < length; i++) {
+            builder.add((short) (i < PeakPyramid.SAMPLES_PER_PEAK * 3 ? 100 : -700 + i));
+        }
+        PeakPyramid peaks = builder.build();
+
+        assertEquals(4, peaks.getPeakCount());
+        assertEquals(3, peaks.getLevelCount());
+        assertEquals(-508, -peaks.getMaxAmplitude());
+
+        // at one peak per column the fourth column is the partial peak alone
+        short[] columns = new short[12];
+        peaks.getPeaks(0, SAMPLE_RATE / 1000f / PeakPyramid.SAMPLES_PER_PEAK, 6, columns);
+        assertEquals(100, columns[0]);
+        assertEquals(100, columns[5]);
+        assertEquals(-700 + PeakPyramid.SAMPLES_PER_PEAK * 3, columns[6]);
+        assertEquals(-700 + length - 1, columns[7]);
+        assertEquals(0, columns[8]);
+        assertEquals(0, columns[9]);
+    }
+
+    @Test
+    public void choosesTheCoarsestLevelNoWiderThanAColumn() {
+        PeakPyramid peaks = constant(PeakPyramid.SAMPLES_PER_PEAK * 1000, (short) 1);
+        assertEquals(11, peaks.getLevelCount());
+
+        float onePeakPerPixel = SAMPLE_RATE / 1000f / PeakPyramid.SAMPLES_PER_PEAK;
+        assertEquals(0, peaks.getLevel(onePeakPerPixel * 4));
+        assertEquals(0, peaks.getLevel(onePeakPerPixel));
+        assertEquals(0, peaks.getLevel(onePeakPerPixel / 1.5f));
+        assertEquals(1, peaks.getLevel(onePeakPerPixel / 2));
+        assertEquals(1, peaks.getLevel(onePeakPerPixel / 3));
+        assertEquals(2, peaks.getLevel(onePeakPerPixel / 4));
+        assertEquals(5, peaks.getLevel(onePeakPerPixel / 40));
+
+        // never past the single peak of the whole track
+        assertEquals(10, peaks.getLevel(onePeakPerPixel / 100000));
+    }
+
+    @Test
+    public void showsASpikeInItsColumnAtEveryZoom() {
+        int length = PeakPyramid.SAMPLES_PER_PEAK * 4096;
+        int spike = 150001;
+        PeakPyramid.Builder builder = new PeakPyramid.Builder(SAMPLE_RATE);
+        for(int i = 0; i < length; i++) {
+            builder.add((short) (i == spike ? 1000 : 0));
+        }
+        PeakPyramid peaks = builder.build();
+
+        float[] zooms = {0.001f, 0.0037f, 0.01f, 0.05f, 0.125f, 0.3f, 1f};
+        for(float pixelsPerMs: zooms) {
+            int width = (int) Math.ceil(peaks.getDurationMs() * pixelsPerMs) + 2;
+            short[] columns = new short[width * 2];
+            peaks.getPeaks(0, pixelsPerMs, width, columns);
+
+            // the columns of the peak holding the spike, at the level read for the zoom
+            int samplesPerPeak = PeakPyramid.SAMPLES_PER_PEAK << peaks.getLevel(pixelsPerMs);
+            double peakWidth = samplesPerPeak * 1000d / SAMPLE_RATE * pixelsPerMs;
+            double start = spike / samplesPerPeak * peakWidth;
+            int first = (int) Math.floor(start);
+            int last = (int) Math.ceil(start + peakWidth) - 1;
+            int count = 0;
+            for(int x = 0; x < width; x++) {
+                if(columns[x * 2 + 1] == 1000) {
+                    count++;
+                    assertTrue("spike at " + x + " out of " + first + " to " + last, x >= first && x <= last);
+                } else {
+                    assertEquals(0, columns[x * 2 + 1]);
+                }
+            }
+            assertTrue(count >= 1 && count <= Math.max(2, (int) Math.ceil(peakWidth) + 1));
+        }
+    }
+
+    @Test
+    public void leavesColumnsOutsideTheTrackEmpty() {
+        PeakPyramid peaks = constant(PeakPyramid.SAMPLES_PER_PEAK * 100 + 7, (short) 500);
+        float[] zooms = {0.01f, 0.02f, 0.1f, 0.125f, 0.5f};
+        for(float pixelsPerMs: zooms) {
+            float left = 37.5f;
+            float right = left + peaks.getDurationMs() * pixelsPerMs;
+            int width = (int) right + 50;
+            short[] columns = new short[width * 2];
+            peaks.getPeaks(left, pixelsPerMs, width, columns);
+
+            for(int x = 0; x < width; x++) {
+                boolean isInside = x >= (int) Math.ceil(left) && x + 1 <= (int) Math.floor(right);
+                boolean isOutside = x + 1 <= (int) Math.floor(left) || x >= (int) Math.ceil(right) + 1;
+                if(isInside) {
+                    assertEquals("column " + x + " at " + pixelsPerMs, 500, columns[x * 2 + 1]);
+                } else if(isOutside) {
+                    assertEquals("column " + x + " at " + pixelsPerMs, 0, columns[x * 2 + 1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leavesEveryColumnEmptyWithoutZoom() {
+        PeakPyramid peaks = constant(1000, (short) 500);
+        short[] columns = {1, 1, 1, 1};
+        peaks.getPeaks(0, 0, 2, columns);
+
+        assertEquals(0, columns[0]);
+        assertEquals(0, columns[3]);
+    }
+
+    @Test
+    public void writesLevelZeroAndMergesTheRestOnRead() throws IOException {
+        PeakPyramid.Builder builder = new PeakPyramid.Builder(SAMPLE_RATE);
+        for(int i = 0; i < 20000; i++) {
+            builder.add((short) (i * 7919 % 65536 - 32768));
+        }
+        PeakPyramid peaks = builder.build();
+        PeakPyramid read = roundTrip(peaks);
+
+        assertEquals(peaks.getPeakCount(), read.getPeakCount());
+        assertEquals(peaks.getLevelCount(), read.getLevelCount());
+        assertEquals(peaks.getMaxAmplitude(), read.getMaxAmplitude());
+        assertEquals(peaks.getDurationMs(), read.getDurationMs());
+
+        short[] expected = new short[400];
+        short[] actual = new short[400];
+        peaks.getPeaks(3, 0.07f, 200, expected);
+        read.getPeaks(3, 0.07f, 200, actual);
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i]);
+        }
+    }
+
+    @Test
+    public void keepsAnEmptyPyramidForVideosWithoutAudio() throws IOException {
+        PeakPyramid read = roundTrip(new PeakPyramid.Builder(SAMPLE_RATE).build());
+
+        assertEquals(0, read.getPeakCount());
+        assertEquals(0, read.getMaxAmplitude());
+        assertEquals(0, read.getDurationMs());
+
+        short[] columns = new short[20];
+        read.getPeaks(-5, 0.5f, 10, columns);
+        for(short column: columns) {
+            assertEquals(0, column);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        PeakPyramid.read(new DataInputStream(new ByteArrayInputStream(new byte[] {'R', 'I', 'F', 'F', 0, 0, 0, 1})));
+    }
+
+    private static PeakPyramid constant(int length, short value) {
+        PeakPyramid.Builder builder = new PeakPyramid.Builder(SAMPLE_RATE);
+        for(int i = 0; i < length; i++) {
+            builder.add(value);
+        }
+
+        return builder.build();
+    }
+
+    private static PeakPyramid roundTrip(PeakPyramid peaks) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        peaks.write(new DataOutputStream(outputStream));
+
+        return PeakPyramid.read(new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+    }
+}
@@ -0,0 +1,49 @@
+package com.crust87.motionpicturegenerator.waveform;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WaveformExtractorTest {
+
+    @Test
+    public void readsSamplesSplitAcrossReads() throws IOException {
+        // little endian 1, -2, 300, -32768, 32767 handed out one byte at a time
+        byte[] pcm = {1, 0, (byte) 0xfe, (byte) 0xff, 0x2c, 0x01, 0x00, (byte) 0x80, (byte) 0xff, 0x7f};
+        PeakPyramid.Builder builder = new PeakPyramid.Builder(WaveformExtractor.SAMPLE_RATE);
+        WaveformExtractor.read(new ByteArrayInputStream(pcm) {
+            @Override
+            public synchronized int read(byte[] buffer, int offset, int length) {
+                return super.read(buffer, offset, Math.min(1, length));
+            }
+        }, builder);
+        PeakPyramid peaks = builder.build();
+
+        short[] columns = new short[2];
+        peaks.getPeaks(0, 1000, 1, columns);
+        assertEquals(1, peaks.getPeakCount());
+        assertEquals(-32768, columns[0]);
+        assertEquals(32767, columns[1]);
+    }
+
+    @Test
+    public void recognizesVideosWithoutAudio() throws IOException {
+        assertTrue(WaveformExtractor.drain(open("no_audio.log")));
+        assertFalse(WaveformExtractor.drain(open("reencode.log")));
+    }
+
+    private static InputStream open(String log) throws IOException {
+        InputStream inputStream = WaveformExtractorTest.class.getResourceAsStream("/ffmpeg/" + log);
+        if(inputStream == null) {
+            throw new IOException("no capture " + log);
+        }
+
+        return inputStream;
+    }
+}